@@ -0,0 +1,262 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds concurrent gateway calls per operation class, so that slow
+ * launches can't starve fast status lookups. A call waits a bounded time
+ * in a bounded queue for a permit, and is rejected with a retryable
+ * ServerBusyException otherwise. Calls are admitted by wrapping the
+ * object served to py4j in wrap(), so every gateway method is admitted
+ * without code of its own.
+ */
+public class AdmissionController {
+    public static final String LOOKUP = "lookup";
+    public static final String MUTATE = "mutate";
+    public static final String LAUNCH = "launch";
+
+    private static final Map<String, String> CLASS_OF_METHOD = new HashMap<String, String>();
+    // cheap local calls, never queued so they answer under load too
+    private static final Set<String> NOT_ADMITTED = new HashSet<String>();
+
+    static {
+        for (String method : new String[] {"launchInstanceFromAMI",
+                "launchInstancesFromAMI", "provision", "attachVolumes", "detachVolumes"}) {
+            CLASS_OF_METHOD.put(method, LAUNCH);
+        }
+        for (String method : new String[] {"getInstanceIdFromName",
+                "getVolumeIdFromName", "getImageIdFromName", "getInstanceStatus",
+                "get_instance_macs", "get_instances_macs"}) {
+            CLASS_OF_METHOD.put(method, LOOKUP);
+        }
+        for (String method : new String[] {"forRegion", "getProfile", "getRegion",
+                "resumeOperations", "subscribeStateChanges", "addStateSubscriptionIds",
+                "removeStateSubscriptionIds", "unsubscribeStateChanges", "getJournalStats",
+                "getEniReaperStats", "getInventoryCacheStats", "getWarmPoolStats",
+                "getResourcePoolStats", "getPlacementStats", "getSnapshotIndexStats",
+                "getStateStreamStats", "getGatewayStats", "getMetrics", "getGauges"}) {
+            NOT_ADMITTED.add(method);
+        }
+    }
+
+    private static class OperationClass {
+        final String name;
+        final Semaphore permits;
+        final AtomicInteger queued = new AtomicInteger();
+        final MetricTimer queueWait;
+
+        OperationClass(String name, int maxConcurrent) {
+            this.name = name;
+            this.permits = new Semaphore(maxConcurrent, true);
+            this.queueWait = Metrics.timer("wait.admission-" + name);
+        }
+    }
+
+    private static class MethodCounters {
+        final MetricTimer timer;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+
+        MethodCounters(String method) {
+            timer = Metrics.timer("gateway." + method);
+        }
+    }
+
+    /**
+     * Admission of one call, to be exited in finally block. The call is
+     * timed from admission to exit.
+     */
+    public class Ticket {
+        private final OperationClass operationClass;
+        private final MethodCounters counters;
+        private final long startNanos = System.nanoTime();
+
+        private Ticket(OperationClass operationClass, MethodCounters counters) {
+            this.operationClass = operationClass;
+            this.counters = counters;
+        }
+
+        /**
+         * Count the call as failed
+         * @param e error the call failed with
+         */
+        public void failed(Exception e) {
+            if (counters == null) {
+                return;
+            }
+            counters.timer.recordError();
+            if (Metrics.isThrottle(e)) {
+                counters.timer.recordThrottle();
+            }
+        }
+
+        public void exit() {
+            if (operationClass == null) {
+                return;
+            }
+            counters.timer.recordSince(startNanos);
+            current.remove();
+            counters.inFlight.decrementAndGet();
+            operationClass.permits.release();
+        }
+    }
+
+    // ticket held by the current thread, nested calls are admitted with it
+    private final ThreadLocal<Ticket> current = new ThreadLocal<Ticket>();
+    private final Ticket nested = new Ticket(null, null);
+    private final Map<String, OperationClass> classes = new HashMap<String, OperationClass>();
+    private final ConcurrentMap<String, MethodCounters> methods =
+            new ConcurrentHashMap<String, MethodCounters>();
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+
+    public AdmissionController(GatewayConfig config) {
+        classes.put(LOOKUP, new OperationClass(LOOKUP, config.getMaxConcurrentLookups()));
+        classes.put(MUTATE, new OperationClass(MUTATE, config.getMaxConcurrentMutations()));
+        classes.put(LAUNCH, new OperationClass(LAUNCH, config.getMaxConcurrentLaunches()));
+        maxQueued = config.getMaxQueued();
+        queueTimeoutMillis = config.getQueueTimeoutMillis();
+    }
+
+    /**
+     * Admit a call of the gateway method
+     * @param method gateway method name
+     * @return ticket to exit once the call is done
+     * @throws ServerBusyException if no permit is available in time
+     */
+    public Ticket enter(String method) {
+        if (current.get() != null) {
+            return nested;
+        }
+        OperationClass operationClass = classes.get(classOf(method));
+        MethodCounters counters = countersOf(method);
+        counters.calls.incrementAndGet();
+
+        if (!operationClass.permits.tryAcquire()) {
+            if (operationClass.queued.incrementAndGet() > maxQueued) {
+                operationClass.queued.decrementAndGet();
+                throw reject(method, operationClass, counters);
+            }
+            counters.queued.incrementAndGet();
+            boolean acquired = false;
+            long queuedAt = System.nanoTime();
+            try {
+                acquired = operationClass.permits.tryAcquire(
+                        queueTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                operationClass.queueWait.recordSince(queuedAt);
+                counters.queued.decrementAndGet();
+                operationClass.queued.decrementAndGet();
+            }
+            if (!acquired) {
+                throw reject(method, operationClass, counters);
+            }
+        }
+
+        counters.inFlight.incrementAndGet();
+        Ticket ticket = new Ticket(operationClass, counters);
+        current.set(ticket);
+        return ticket;
+    }
+
+    /**
+     * Admit every call on target through type, the calls of a type object
+     * it returns as well, e.g. the server of another region
+     * @param target
+     * @param type interface of the calls
+     * @return proxy of target to serve instead of it
+     */
+    public <T> T wrap(final T target, final Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        Object result = admit(target, method, args);
+                        if (type.isInstance(result) && !Proxy.isProxyClass(result.getClass())) {
+                            return wrap(type.cast(result), type);
+                        }
+                        return result;
+                    }
+                }));
+    }
+
+    private Object admit(Object target, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (method.getDeclaringClass() == Object.class || NOT_ADMITTED.contains(name)) {
+            return invoke(target, method, args);
+        }
+        Ticket ticket = enter(name);
+        try {
+            return invoke(target, method, args);
+        } catch (Exception e) {
+            ticket.failed(e);
+            throw e;
+        } finally {
+            ticket.exit();
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Exception {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw (Error) e.getCause();
+        }
+    }
+
+    /**
+     * @return {method: {"in-flight":, "queued":, "calls":, "rejected":}}
+     */
+    public Map<String, Map<String, Long>> getStats() {
+        Map<String, Map<String, Long>> stats = new HashMap<String, Map<String, Long>>();
+        for (Map.Entry<String, MethodCounters> entry : methods.entrySet()) {
+            MethodCounters counters = entry.getValue();
+            Map<String, Long> methodStats = new HashMap<String, Long>();
+            methodStats.put("in-flight", (long) counters.inFlight.get());
+            methodStats.put("queued", (long) counters.queued.get());
+            methodStats.put("calls", counters.calls.get());
+            methodStats.put("rejected", counters.rejected.get());
+            stats.put(entry.getKey(), methodStats);
+        }
+        return stats;
+    }
+
+    static String classOf(String method) {
+        String operationClass = CLASS_OF_METHOD.get(method);
+        return operationClass == null ? MUTATE : operationClass;
+    }
+
+    private MethodCounters countersOf(String method) {
+        MethodCounters counters = methods.get(method);
+        if (counters == null) {
+            methods.putIfAbsent(method, new MethodCounters(method));
+            counters = methods.get(method);
+        }
+        return counters;
+    }
+
+    private ServerBusyException reject(String method, OperationClass operationClass,
+                                       MethodCounters counters) {
+        counters.rejected.incrementAndGet();
+        return new ServerBusyException("server busy: too many " + operationClass.name +
+                " calls in flight, " + method + " was not started, retry later");
+    }
+}
@@ -0,0 +1,315 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DeleteVolumeRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.EbsInstanceBlockDevice;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.amazonaws.services.ec2.model.InstanceNetworkInterface;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.Volume;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Terminates many instances at once: instances selected by ids, tag or
+ * filters are walked page by page with paginated DescribeInstances, and
+ * each page is terminated with as few TerminateInstances calls as the API
+ * allows, a call failed by some of its ids being split until only those
+ * fail. Terminations and the deletion of volumes left behind run on a
+ * bounded pool, network interfaces left behind go to the ENI reaper.
+ * Progress is readable from the returned sweep while it runs.
+ */
+public class BulkTerminator {
+    private static final Log log = LogFactory.getLog(BulkTerminator.class);
+
+    // max instances per page of DescribeInstances
+    static final int PAGE_SIZE = 1000;
+    // max instance ids per TerminateInstances
+    static final int MAX_TERMINATE_BATCH = 1000;
+    // max values of one "instance-id" filter per request
+    static final int MAX_IDS_PER_REQUEST = 200;
+    static final int PARALLELISM = Integer.getInteger("ec2.sweep.parallelism", 8);
+    static final long VOLUME_RELEASE_TIMEOUT_MILLIS =
+            Long.getLong("ec2.sweep.volumeReleaseTimeoutMillis", 10 * 60 * 1000);
+
+    // instances in these states can still be terminated
+    private static final Filter LIVE = new Filter().withName("instance-state-name").
+            withValues("pending", "running", "stopping", "stopped");
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Handle of one bulk termination, completed with its final progress
+     * once every instance is terminated and every dependent volume is
+     * deleted or given up.
+     */
+    public static class Sweep extends OperationHandle<Map<String, Long>> {
+        private final Map<String, AtomicLong> counters = new LinkedHashMap<String, AtomicLong>();
+        // tasks still running, the walk itself counts as one
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+        private final Semaphore batches = new Semaphore(PARALLELISM);
+
+        Sweep(String id) {
+            super(id);
+            for (String name : new String[] {"pages", "described", "terminated", "failed",
+                    "interfaces-queued", "volumes-pending", "volumes-deleted",
+                    "volumes-failed"}) {
+                counters.put(name, new AtomicLong());
+            }
+        }
+
+        /**
+         * @return {"pages":, "described":, "terminated":, "failed":,
+         *         "interfaces-queued":, "volumes-pending":,
+         *         "volumes-deleted":, "volumes-failed":} so far
+         */
+        public Map<String, Long> getProgress() {
+            Map<String, Long> progress = new HashMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+                progress.put(entry.getKey(), entry.getValue().get());
+            }
+            return progress;
+        }
+
+        void add(String counter, long delta) {
+            counters.get(counter).addAndGet(delta);
+        }
+
+        void started() {
+            outstanding.incrementAndGet();
+        }
+
+        void finished() {
+            if (outstanding.decrementAndGet() == 0) {
+                complete(getProgress());
+            }
+        }
+    }
+
+    private final AmazonEC2 ec2;
+    private final EC2Lookups lookups;
+    private final EniReaper eniReaper;
+    private final VolumeStateWatcher volumeWatcher;
+    private final ExecutorService walkers;
+    private final ExecutorService pool;
+
+    public BulkTerminator(RegionContext context) {
+        this.ec2 = context.getEC2();
+        this.lookups = context.getLookups();
+        this.eniReaper = context.getEniReaper();
+        this.volumeWatcher = context.getVolumeWatcher();
+        walkers = Executors.newCachedThreadPool(
+                new DaemonThreadFactory("sweep-walker-" + context.getRegion()));
+        pool = Executors.newFixedThreadPool(PARALLELISM,
+                new DaemonThreadFactory("sweep-" + context.getRegion()));
+    }
+
+    /**
+     * Terminate instances by id, ids unknown or already terminated are
+     * skipped
+     * @param instanceIds
+     * @param deleteVolumes whether to delete attached volumes EC2 keeps
+     */
+    public Sweep terminate(List<String> instanceIds, boolean deleteVolumes) {
+        List<List<Filter>> selections = new ArrayList<List<Filter>>();
+        for (int from = 0; from < instanceIds.size(); from += MAX_IDS_PER_REQUEST) {
+            List<String> chunk = new ArrayList<String>(instanceIds.subList(from,
+                    Math.min(instanceIds.size(), from + MAX_IDS_PER_REQUEST)));
+            // filter so that an unknown id doesn't fail the whole sweep
+            selections.add(Collections.singletonList(
+                    new Filter().withName("instance-id").withValues(chunk)));
+        }
+        return start(selections, deleteVolumes);
+    }
+
+    /**
+     * Terminate all instances matching filters
+     * @param filters DescribeInstances filters, empty for all instances
+     * @param deleteVolumes whether to delete attached volumes EC2 keeps
+     */
+    public Sweep terminateMatching(List<Filter> filters, boolean deleteVolumes) {
+        return start(Collections.singletonList(filters), deleteVolumes);
+    }
+
+    public void shutdown() {
+        walkers.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    private Sweep start(final List<List<Filter>> selections, final boolean deleteVolumes) {
+        final Sweep sweep = new Sweep("sweep-" + sequence.incrementAndGet());
+        walkers.execute(new Runnable() {
+            public void run() {
+                RateLimitedEC2.setBackground(true);
+                try {
+                    for (List<Filter> filters : selections) {
+                        walk(sweep, filters, deleteVolumes);
+                    }
+                    sweep.finished();
+                } catch (Exception e) {
+                    log.warn("sweep " + sweep.getId() + " failed", e);
+                    sweep.fail(e);
+                }
+            }
+        });
+        return sweep;
+    }
+
+    private void walk(Sweep sweep, List<Filter> filters, boolean deleteVolumes)
+            throws InterruptedException {
+        List<Filter> all = new ArrayList<Filter>(filters);
+        all.add(LIVE);
+        String nextToken = null;
+        do {
+            DescribeInstancesResult result = ec2.describeInstances(
+                    new DescribeInstancesRequest().withFilters(all).
+                            withMaxResults(PAGE_SIZE).withNextToken(nextToken));
+            List<Instance> page = new ArrayList<Instance>();
+            for (Reservation reservation : result.getReservations()) {
+                page.addAll(reservation.getInstances());
+            }
+            sweep.add("pages", 1);
+            sweep.add("described", page.size());
+            for (int from = 0; from < page.size(); from += MAX_TERMINATE_BATCH) {
+                submitBatch(sweep, page.subList(from,
+                        Math.min(page.size(), from + MAX_TERMINATE_BATCH)), deleteVolumes);
+            }
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
+    }
+
+    private void submitBatch(final Sweep sweep, final List<Instance> batch,
+                             final boolean deleteVolumes) throws InterruptedException {
+        // at most PARALLELISM batches of a sweep in flight, so a big
+        // account is walked no faster than it is terminated
+        sweep.batches.acquire();
+        sweep.started();
+        pool.execute(new Runnable() {
+            public void run() {
+                RateLimitedEC2.setBackground(true);
+                try {
+                    terminateBatch(sweep, batch, deleteVolumes);
+                } finally {
+                    sweep.batches.release();
+                    sweep.finished();
+                }
+            }
+        });
+    }
+
+    private void terminateBatch(Sweep sweep, List<Instance> batch, boolean deleteVolumes) {
+        List<String> networkIds = new ArrayList<String>();
+        for (Instance instance : terminate(sweep, batch)) {
+            lookups.forgetInstance(instance.getInstanceId());
+            for (InstanceNetworkInterface networkInterface : instance.getNetworkInterfaces()) {
+                // EC2 deletes those itself along with the instance
+                if (networkInterface.getAttachment() != null &&
+                        Boolean.TRUE.equals(networkInterface.getAttachment().
+                                getDeleteOnTermination())) {
+                    continue;
+                }
+                networkIds.add(networkInterface.getNetworkInterfaceId());
+            }
+            if (!deleteVolumes) {
+                continue;
+            }
+            for (InstanceBlockDeviceMapping mapping : instance.getBlockDeviceMappings()) {
+                EbsInstanceBlockDevice ebs = mapping.getEbs();
+                if (ebs != null && !Boolean.TRUE.equals(ebs.getDeleteOnTermination())) {
+                    deleteOnceReleased(sweep, ebs.getVolumeId());
+                }
+            }
+        }
+        eniReaper.enqueue(networkIds);
+        sweep.add("interfaces-queued", networkIds.size());
+    }
+
+    /**
+     * Terminate a batch with one call. One id can fail the whole call,
+     * e.g. a protected instance or one gone meanwhile, so on such an error
+     * the batch is split in halves until only the failing ids fail.
+     * @return instances of batch being terminated
+     */
+    private List<Instance> terminate(Sweep sweep, List<Instance> batch) {
+        List<String> ids = new ArrayList<String>(batch.size());
+        for (Instance instance : batch) {
+            ids.add(instance.getInstanceId());
+        }
+        List<InstanceStateChange> terminating;
+        try {
+            terminating = ec2.terminateInstances(new TerminateInstancesRequest().
+                    withInstanceIds(ids)).getTerminatingInstances();
+        } catch (AmazonServiceException e) {
+            if (batch.size() == 1 || Metrics.isThrottle(e)) {
+                log.warn("failed to terminate " + ids.size() + " instances: " +
+                        e.getErrorMessage());
+                sweep.add("failed", ids.size());
+                return Collections.emptyList();
+            }
+            int half = batch.size() / 2;
+            List<Instance> terminated = new ArrayList<Instance>(
+                    terminate(sweep, batch.subList(0, half)));
+            terminated.addAll(terminate(sweep, batch.subList(half, batch.size())));
+            return terminated;
+        } catch (RuntimeException e) {
+            log.warn("failed to terminate " + ids.size() + " instances", e);
+            sweep.add("failed", ids.size());
+            return Collections.emptyList();
+        }
+        sweep.add("terminated", terminating.size());
+        sweep.add("failed", ids.size() - terminating.size());
+        return batch;
+    }
+
+    private void deleteOnceReleased(final Sweep sweep, final String volumeId) {
+        sweep.add("volumes-pending", 1);
+        sweep.started();
+        volumeWatcher.watch(volumeId, "available", VOLUME_RELEASE_TIMEOUT_MILLIS).addCallback(
+                new OperationHandle.Callback<Volume>() {
+                    public void onSuccess(Volume volume) {
+                        pool.execute(new Runnable() {
+                            public void run() {
+                                RateLimitedEC2.setBackground(true);
+                                try {
+                                    ec2.deleteVolume(new DeleteVolumeRequest().
+                                            withVolumeId(volumeId));
+                                    lookups.forgetVolume(volumeId);
+                                    sweep.add("volumes-deleted", 1);
+                                } catch (RuntimeException e) {
+                                    log.warn("failed to delete volume " + volumeId, e);
+                                    sweep.add("volumes-failed", 1);
+                                } finally {
+                                    sweep.add("volumes-pending", -1);
+                                    sweep.finished();
+                                }
+                            }
+                        });
+                    }
+
+                    public void onFailure(Exception error) {
+                        log.warn("gave up volume " + volumeId + ": " + error.getMessage());
+                        sweep.add("volumes-pending", -1);
+                        sweep.add("volumes-failed", 1);
+                        sweep.finished();
+                    }
+                });
+    }
+}
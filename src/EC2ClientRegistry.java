@@ -0,0 +1,67 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of region contexts keyed by (credential profile, region),
+ * created on first use, so that one server process serves all regions
+ * and accounts.
+ */
+public class EC2ClientRegistry {
+    public static final String DEFAULT_PROFILE =
+            System.getProperty("ec2.profile", "default");
+    public static final String DEFAULT_REGION =
+            System.getProperty("ec2.region", "ap-southeast-1");
+
+    private static final ConcurrentMap<String, RegionContext> contexts =
+            new ConcurrentHashMap<String, RegionContext>();
+
+    private EC2ClientRegistry() {
+    }
+
+    public static RegionContext getDefault() {
+        return get(DEFAULT_PROFILE, DEFAULT_REGION);
+    }
+
+    /**
+     * @param profile credential profile, null for default
+     * @param region region name, e.g. "us-east-1", null for default
+     * @return context of the profile and region
+     */
+    public static RegionContext get(String profile, String region) {
+        if (profile == null) {
+            profile = DEFAULT_PROFILE;
+        }
+        if (region == null) {
+            region = DEFAULT_REGION;
+        }
+        String key = profile + "/" + region;
+        RegionContext context = contexts.get(key);
+        if (context != null) {
+            return context;
+        }
+        synchronized (contexts) {
+            // only one context, and one connection pool, per key
+            context = contexts.get(key);
+            if (context == null) {
+                context = new RegionContext(profile, region);
+                contexts.put(key, context);
+            }
+            return context;
+        }
+    }
+
+    /**
+     * Register a context built elsewhere, e.g. one with an endpoint
+     * override, replacing any context of the same profile and region
+     * @param context
+     */
+    public static void register(RegionContext context) {
+        contexts.put(context.getProfile() + "/" + context.getRegion(), context);
+    }
+
+    public static List<RegionContext> getAll() {
+        return new ArrayList<RegionContext>(contexts.values());
+    }
+}
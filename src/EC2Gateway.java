@@ -0,0 +1,140 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calls the py4j client can make, as served by EC2JavaServer. The
+ * gateway serves it through AdmissionController.wrap, which admits every
+ * call, so a method added here is admitted without more code. See
+ * EC2JavaServer for what each call does.
+ */
+public interface EC2Gateway {
+    EC2Gateway forRegion(String profile, String region);
+
+    String getProfile();
+
+    String getRegion();
+
+    // launches
+
+    HashMap<String, String> launchInstanceFromAMI(String EC2ImageId, String name,
+            String dataSubNetId, String apiSubNetId, String userData) throws Exception;
+
+    OperationHandle<HashMap<String, String>> launchInstanceFromAMIAsync(String EC2ImageId,
+            String name, String dataSubNetId, String apiSubNetId, String userData)
+            throws Exception;
+
+    HashMap<String, HashMap<String, String>> launchInstancesFromAMI(String EC2ImageId,
+            List<String> names, String dataSubNetId, String apiSubNetId, String userData)
+            throws Exception;
+
+    OperationHandle<HashMap<String, HashMap<String, String>>> launchInstancesFromAMIAsync(
+            String EC2ImageId, List<String> names, String dataSubNetId, String apiSubNetId,
+            String userData) throws Exception;
+
+    HashMap<String, HashMap<String, String>> provision(ProvisionSpec spec) throws Exception;
+
+    OperationHandle<HashMap<String, HashMap<String, String>>> provisionAsync(ProvisionSpec spec);
+
+    // instances
+
+    void attachSubNetToInstance(String subNetId, String instanceId, int deviceIndex,
+            String desp);
+
+    void deleteInstance(String instanceId) throws Exception;
+
+    BulkTerminator.Sweep terminateInstances(List<String> instanceIds, boolean deleteVolumes);
+
+    BulkTerminator.Sweep terminateInstancesByTag(String key, String value,
+            boolean deleteVolumes);
+
+    BulkTerminator.Sweep terminateInstancesByFilter(Map<String, String> filters,
+            boolean deleteVolumes);
+
+    void rebootInstance(String instanceId);
+
+    int resumeOperations();
+
+    // volumes
+
+    String createVolume(String name, Long size) throws Exception;
+
+    String createVolume(String name, Long size, String instanceId) throws Exception;
+
+    String createVolumeFromSnapshot(String openstackSnapshotId, String name) throws Exception;
+
+    String createVolumeFromSnapshot(String openstackSnapshotId, String name, String instanceId)
+            throws Exception;
+
+    void deleteVolume(String volumeId) throws Exception;
+
+    String attachVolumeToInstance(String EC2volumeId, String EC2InstanceId, String mountPoint);
+
+    String detachVolumeFromInstance(String EC2volumeId, String EC2InstanceId,
+            String mountPoint);
+
+    String detachVolumeFromInstance(String EC2volumeId, String EC2InstanceId,
+            String mountPoint, boolean force);
+
+    HashMap<String, HashMap<String, String>> attachVolumes(Map<String, String> instanceIds,
+            Map<String, String> devices) throws Exception;
+
+    VolumeAttacher.Batch attachVolumesAsync(Map<String, String> instanceIds,
+            Map<String, String> devices);
+
+    HashMap<String, HashMap<String, String>> detachVolumes(Map<String, String> instanceIds,
+            boolean force) throws Exception;
+
+    VolumeAttacher.Batch detachVolumesAsync(Map<String, String> instanceIds, boolean force);
+
+    // lookups
+
+    String getInstanceIdFromName(String name) throws Exception;
+
+    String getVolumeIdFromName(String name) throws Exception;
+
+    String getImageIdFromName(String name) throws Exception;
+
+    String getInstanceStatus(String instanceId) throws Exception;
+
+    HashMap<String, String> get_instance_macs(String instanceId) throws Exception;
+
+    HashMap<String, HashMap<String, String>> get_instances_macs(List<String> instanceIds);
+
+    // state stream
+
+    String subscribeStateChanges(StateListener listener, List<String> instanceIds,
+            List<String> volumeIds);
+
+    void addStateSubscriptionIds(String subscriptionId, List<String> instanceIds,
+            List<String> volumeIds);
+
+    void removeStateSubscriptionIds(String subscriptionId, List<String> instanceIds,
+            List<String> volumeIds);
+
+    void unsubscribeStateChanges(String subscriptionId);
+
+    // stats
+
+    Map<String, Long> getJournalStats();
+
+    Map<String, Long> getEniReaperStats();
+
+    Map<String, Map<String, Long>> getInventoryCacheStats();
+
+    Map<String, Map<String, Long>> getWarmPoolStats();
+
+    Map<String, Map<String, Map<String, Long>>> getResourcePoolStats();
+
+    Map<String, Map<String, Long>> getPlacementStats();
+
+    Map<String, Long> getSnapshotIndexStats();
+
+    Map<String, Map<String, Long>> getStateStreamStats();
+
+    Map<String, Map<String, Long>> getGatewayStats();
+
+    Map<String, Map<String, Long>> getMetrics();
+
+    Map<String, Double> getGauges();
+}
@@ -1,71 +1,114 @@
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
 import org.apache.commons.logging.impl.Log4JLogger;
 import py4j.GatewayServer;
 
+import java.net.InetAddress;
 import java.sql.Time;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.commons.logging.Log;
-import sun.misc.BASE64Encoder;
+import org.apache.commons.logging.LogFactory;
 
 /**
  * Class as EC2 java server, which will serve py4j client call
  * and call EC2 java client to act on AWS EC2 service.
  */
-public class EC2JavaServer {
-    private static AmazonEC2 ec2 = null;
-    private static AvailabilityZone availabilityZone = null;
+public class EC2JavaServer implements EC2Gateway {
+    private static final Log log = LogFactory.getLog(EC2JavaServer.class);
+
+    // shared by servers of all regions, bounds the calls of the process;
+    // main serves the servers wrapped in it
+    private static final AdmissionController admission =
+            new AdmissionController(GatewayConfig.fromSystemProperties());
+
+    private final RegionContext context;
+    private final AmazonEC2 ec2;
+    private final InstanceStateWatcher instanceWatcher;
+    private final VolumeStateWatcher volumeWatcher;
+    private final StateStream stateStream;
+    private final EC2Lookups lookups;
+    private final EniReaper eniReaper;
+    private final WarmPool warmPool;
+    private final VolumePool volumePool;
+    private final EniPool eniPool;
+    private final SnapshotIndex snapshotIndex;
+    private final BulkTerminator bulkTerminator;
+    private final VolumeAttacher volumeAttacher;
+    private final PlacementScheduler placement;
+    private final OperationJournal journal;
+    private final ExecutorService workers;
+
+    // wait at most 3 minutes until instance running
+    private static final long LAUNCH_TIMEOUT_MILLIS = 180 * 1000;
 
+    /**
+     * Server of default credential profile and region
+     */
     public EC2JavaServer() {
-        if (ec2 != null) {
-            return;
-        }
-          /*
-         * The ProfileCredentialsProvider will return your [default]
-         * credential profile by reading from the credentials file located at
-         * (~/.aws/credentials).
-         */
-        AWSCredentials credentials = null;
-        try {
-            credentials = new ProfileCredentialsProvider().getCredentials();
-        } catch (Exception e) {
-            throw new AmazonClientException(
-                    "Cannot load the credentials from the credential profiles file. " +
-                            "Please make sure that your credentials file is at the correct " +
-                            "location (~/.aws/credentials), and is in valid format.",
-                    e);
-        }
-        ec2 = new AmazonEC2Client(credentials);
-        ec2.setRegion(Region.getRegion(Regions.AP_SOUTHEAST_1));
-    }
-
-    private static AvailabilityZone getAvailZone() throws Exception {
-        if (availabilityZone == null) {
-            DescribeAvailabilityZonesResult result =
-                    ec2.describeAvailabilityZones();
-            if (!result.getAvailabilityZones().isEmpty()) {
-                availabilityZone = result.getAvailabilityZones().get(0);
-                System.out.print("available zone:" + availabilityZone);
-            } else {
-                throw new Exception("No availability zones");
-            }
-        }
+        this(EC2ClientRegistry.getDefault());
+    }
+
+    EC2JavaServer(RegionContext context) {
+        this.context = context;
+        this.ec2 = context.getEC2();
+        this.instanceWatcher = context.getInstanceWatcher();
+        this.volumeWatcher = context.getVolumeWatcher();
+        this.stateStream = context.getStateStream();
+        this.lookups = context.getLookups();
+        this.eniReaper = context.getEniReaper();
+        this.warmPool = context.getWarmPool();
+        this.volumePool = context.getVolumePool();
+        this.eniPool = context.getEniPool();
+        this.snapshotIndex = context.getSnapshotIndex();
+        this.bulkTerminator = context.getBulkTerminator();
+        this.volumeAttacher = context.getVolumeAttacher();
+        this.placement = context.getPlacement();
+        this.journal = context.getJournal();
+        this.workers = context.getWorkers();
+    }
+
+    /**
+     * Select credential profile and region, every call on the returned
+     * server acts on them
+     * @param profile credential profile in ~/.aws/credentials, null for
+     *                default
+     * @param region region name, e.g. "us-east-1", null for default
+     * @return server of the profile and region
+     */
+    public EC2JavaServer forRegion(String profile, String region) {
+        EC2JavaServer server = new EC2JavaServer(EC2ClientRegistry.get(profile, region));
+        server.resumeOperations();
+        return server;
+    }
+
+    public String getProfile() {
+        return context.getProfile();
+    }
 
-        return availabilityZone;
+    public String getRegion() {
+        return context.getRegion();
+    }
+
+    private AvailabilityZone getAvailZone() throws Exception {
+        return context.getAvailZone();
     }
 
     /**
-     * Create EC2 volume from EC2 snapshot
+     * Create EC2 volume from EC2 snapshot, in the home zone of the region
      * @param openstackSnapshotId note, this snapshotId is from openstack
      *                            side, which we need map it to EC2 snapshot
      *                            id
@@ -76,34 +119,71 @@ public class EC2JavaServer {
     public String createVolumeFromSnapshot(String openstackSnapshotId,
                                            String name)
             throws Exception {
-        DescribeSnapshotsRequest describeSnapshotsRequest =
-                new DescribeSnapshotsRequest().withFilters(new Filter().
-                        withName("description").
-                        withValues("*" + openstackSnapshotId + "*"));
-        DescribeSnapshotsResult describeSnapshotsResult =
-                ec2.describeSnapshots(describeSnapshotsRequest);
-        for (Snapshot snapshot : describeSnapshotsResult.getSnapshots()) {
-            System.out.print("snapshot:" + snapshot.getSnapshotId());
-        }
-        if (describeSnapshotsResult.getSnapshots().size() > 1 ||
-                describeSnapshotsResult.getSnapshots().isEmpty()) {
-            throw new Exception("snapshot is not unique or empty");
-        }
+        return createVolumeFromSnapshotIn(getAvailZone().getZoneName(),
+                openstackSnapshotId, name);
+    }
 
-        String EC2SnapshotId =
-        		describeSnapshotsResult.getSnapshots().get(0).getSnapshotId();
-        CreateVolumeRequest request = new CreateVolumeRequest();
-        request.setSnapshotId(EC2SnapshotId);
-        request.setAvailabilityZone(getAvailZone().getZoneName());
-        CreateVolumeResult result = ec2.createVolume(request);
+    /**
+     * Create EC2 volume from EC2 snapshot, in the zone of the instance it
+     * is for
+     * @param openstackSnapshotId
+     * @param name
+     * @param instanceId EC2 instance the volume will be attached to
+     * @return volumeId in EC2
+     */
+    public String createVolumeFromSnapshot(String openstackSnapshotId,
+                                           String name, String instanceId)
+            throws Exception {
+        return createVolumeFromSnapshotIn(placement.zoneOf(instanceId),
+                openstackSnapshotId, name);
+    }
+
+    private String createVolumeFromSnapshotIn(String zone, String openstackSnapshotId,
+                                              String name) throws Exception {
+        CreateVolumeResult result;
+        try {
+            result = runCreateVolumeFromSnapshot(openstackSnapshotId, zone);
+        } catch (AmazonServiceException e) {
+            if (!"InvalidSnapshot.NotFound".equals(e.getErrorCode())) {
+                throw e;
+            }
+            // deleted since indexed, look it up again
+            result = runCreateVolumeFromSnapshot(openstackSnapshotId, zone);
+        }
 
         // tag it with name
         ec2.createTags(new CreateTagsRequest().withResources(
                 result.getVolume().getVolumeId()).withTags(
                 new Tag("Name", name)));
+        lookups.rememberVolume(name, result.getVolume().getVolumeId());
         return result.getVolume().getVolumeId();
     }
 
+    private CreateVolumeResult runCreateVolumeFromSnapshot(String openstackSnapshotId,
+                                                           String zone)
+            throws Exception {
+        List<String> snapshotIds = snapshotIndex.find(openstackSnapshotId);
+        for (String snapshotId : snapshotIds) {
+            log.debug("snapshot:" + snapshotId);
+        }
+        if (snapshotIds.size() > 1 || snapshotIds.isEmpty()) {
+            throw new Exception("snapshot is not unique or empty");
+        }
+
+        String EC2SnapshotId = snapshotIds.get(0);
+        CreateVolumeRequest request = new CreateVolumeRequest();
+        request.setSnapshotId(EC2SnapshotId);
+        request.setAvailabilityZone(zone);
+        try {
+            return ec2.createVolume(request);
+        } catch (AmazonServiceException e) {
+            if ("InvalidSnapshot.NotFound".equals(e.getErrorCode())) {
+                snapshotIndex.forget(EC2SnapshotId);
+            }
+            throw e;
+        }
+    }
+
     /**
      * launch one EC2 instance from specified AMI id.
      * Note, we don't use key-pair to login, which requires the image is
@@ -117,96 +197,589 @@ public class EC2JavaServer {
     public HashMap<String, String> launchInstanceFromAMI(
             String EC2ImageId, String name, String dataSubNetId, String apiSubNetId, String userData)
             throws Exception {
-        // run instance according to image
-        Image img = ec2.describeImages(new DescribeImagesRequest().
-                withImageIds(EC2ImageId)).getImages().get(0);
-        InstanceType type = (img.getVirtualizationType().equals("hvm")) ?
-                InstanceType.T2Micro:InstanceType.T1Micro;
-        RunInstancesRequest req = new RunInstancesRequest(EC2ImageId, 1, 1).
-                withInstanceType(type).withPlacement(
-                new Placement().withAvailabilityZone(getAvailZone().getZoneName()));
-        if (dataSubNetId != null) {
-            req.withSubnetId(dataSubNetId);
+        return launchInstanceFromAMIAsync(EC2ImageId, name, dataSubNetId,
+                apiSubNetId, userData).get();
+    }
+
+    /**
+     * launch one EC2 instance from specified AMI id without waiting for it.
+     * The instance is run and tagged before return, then the shared
+     * instance watcher waits for it to be running, and the api subnet is
+     * attached in background. An instance of the warm pool of the image and
+     * data subnet is claimed instead of a new one if any.
+     * @param EC2ImageId AMI image id
+     * @param name instance name as tag
+     * @param dataSubNetId data subnet id
+     * @param apiSubNetId api subnet id
+     * @return handle of the launch, whose result is
+     *         {"public-ip":, "instance-id":}
+     */
+    public OperationHandle<HashMap<String, String>> launchInstanceFromAMIAsync(
+            String EC2ImageId, String name, String dataSubNetId,
+            String apiSubNetId, String userData)
+            throws Exception {
+        return startLaunch(EC2ImageId, name, dataSubNetId, apiSubNetId, userData).handle;
+    }
+
+    /**
+     * launch many EC2 instances from specified AMI id, with one
+     * RunInstances call and one shared wait until all are running.
+     * @param EC2ImageId AMI image id
+     * @param names instance names as tag, one instance per name
+     * @param dataSubNetId data subnet id
+     * @param apiSubNetId api subnet id
+     * @return {name: {"public-ip":, "instance-id":}}, or
+     *         {name: {"instance-id":, "error":}} for instance failed to run
+     */
+    public HashMap<String, HashMap<String, String>> launchInstancesFromAMI(
+            String EC2ImageId, List<String> names, String dataSubNetId,
+            String apiSubNetId, String userData)
+            throws Exception {
+        return launchInstancesFromAMIAsync(EC2ImageId, names, dataSubNetId,
+                apiSubNetId, userData).get();
+    }
+
+    /**
+     * launch many EC2 instances from specified AMI id without waiting for
+     * them, see launchInstancesFromAMI
+     * @return handle of the launch, completed once every instance is
+     *         running or failed
+     */
+    public OperationHandle<HashMap<String, HashMap<String, String>>> launchInstancesFromAMIAsync(
+            String EC2ImageId, List<String> names, String dataSubNetId,
+            String apiSubNetId, String userData)
+            throws Exception {
+        if (names.isEmpty()) {
+            throw new Exception("no instance names to launch");
+        }
+        RunInstancesRequest req = context.newRunInstancesRequest(EC2ImageId, names.size(),
+                dataSubNetId, userData);
+        Map<String, String> arguments = OperationJournal.arguments(
+                "image-id", EC2ImageId, "api-subnet-id", apiSubNetId);
+        for (int i = 0; i < names.size(); i++) {
+            arguments.put("name." + i, names.get(i));
+        }
+        OperationJournal.Entry entry = journal.begin("launch-batch", arguments);
+        Reservation reservation;
+        try {
+            reservation = context.runInstances(req);
+        } catch (Exception e) {
+            journal.end(entry);
+            throw e;
+        }
+        List<Instance> insts = reservation.getInstances();
+        List<String> instanceIds = new ArrayList<String>();
+        for (Instance instance : insts) {
+            instanceIds.add(instance.getInstanceId());
+        }
+        journal.record(entry, "instance-ids", join(instanceIds));
+
+        // name tag differs per instance, so it takes one CreateTags each,
+        // sent concurrently
+        List<Future<?>> tagging = new LinkedList<Future<?>>();
+        for (int i = 0; i < insts.size(); i++) {
+            final String instanceId = insts.get(i).getInstanceId();
+            final String name = names.get(i);
+            tagging.add(workers.submit(new Callable<Void>() {
+                public Void call() {
+                    tagInstanceName(instanceId, name);
+                    return null;
+                }
+            }));
+        }
+        // the instances run already, so a failed tag fails only its
+        // instance, whose id the caller still gets
+        List<Throwable> tagErrors = new ArrayList<Throwable>();
+        for (Future<?> future : tagging) {
+            try {
+                future.get();
+                tagErrors.add(null);
+            } catch (ExecutionException e) {
+                tagErrors.add(e.getCause());
+            }
         }
 
-        if (userData != null) {
-            BASE64Encoder base64Encoder = new BASE64Encoder();
-            String encoded = base64Encoder.encode(userData.getBytes());
-            req.withUserData(encoded);
+        List<OperationHandle<HashMap<String, String>>> launches =
+                new ArrayList<OperationHandle<HashMap<String, String>>>();
+        for (int i = 0; i < insts.size(); i++) {
+            if (tagErrors.get(i) == null) {
+                launches.add(trackPlacement(insts.get(i),
+                        awaitLaunch(instanceIds.get(i), apiSubNetId)));
+            } else {
+                launches.add(failedLaunch(instanceIds.get(i), names.get(i), tagErrors.get(i)));
+            }
+        }
+        return journal.endWhenDone(entry, collectLaunches(
+                "launch-" + reservation.getReservationId(), names, instanceIds, launches));
+    }
+
+    private OperationHandle<HashMap<String, String>> failedLaunch(String instanceId,
+                                                                  String name, Throwable error) {
+        log.warn("failed to tag instance " + instanceId + " " + name, error);
+        OperationHandle<HashMap<String, String>> launch =
+                new OperationHandle<HashMap<String, String>>("launch-" + instanceId);
+        launch.fail(error instanceof Exception ? (Exception) error : new Exception(error));
+        return launch;
+    }
+
+    /**
+     * @return handle completed once every launch is, with {name: result
+     *         of its launch}, or {name: {"instance-id":, "error":}}
+     */
+    private OperationHandle<HashMap<String, HashMap<String, String>>> collectLaunches(
+            String id, List<String> names, List<String> instanceIds,
+            List<OperationHandle<HashMap<String, String>>> launches) {
+        final HashMap<String, HashMap<String, String>> results =
+                new HashMap<String, HashMap<String, String>>();
+        final OperationHandle<HashMap<String, HashMap<String, String>>> operation =
+                new OperationHandle<HashMap<String, HashMap<String, String>>>(id);
+        final AtomicInteger remaining = new AtomicInteger(launches.size());
+        if (launches.isEmpty()) {
+            operation.complete(results);
         }
+        for (int i = 0; i < launches.size(); i++) {
+            final String instanceId = instanceIds.get(i);
+            final String name = names.get(i);
+            launches.get(i).addCallback(
+                    new OperationHandle.Callback<HashMap<String, String>>() {
+                        public void onSuccess(HashMap<String, String> result) {
+                            done(result);
+                        }
 
-        List<Instance> insts = ec2.runInstances(req).getReservation().getInstances();
+                        public void onFailure(Exception error) {
+                            HashMap<String, String> result = new HashMap<String, String>();
+                            result.put("instance-id", instanceId);
+                            result.put("error", error.getMessage());
+                            done(result);
+                        }
+
+                        private void done(HashMap<String, String> result) {
+                            synchronized (results) {
+                                results.put(name, result);
+                            }
+                            if (remaining.decrementAndGet() == 0) {
+                                operation.complete(results);
+                            }
+                        }
+                    });
+        }
+        return operation;
+    }
+
+    /**
+     * Provision one VM as specified: launch the instance, create its
+     * volumes in its zone and extra network interfaces while it is
+     * pending, and attach them once it is running, all with one call.
+     * @param spec
+     * @return {"instance": {"public-ip":, "instance-id":},
+     *         "volumes": {name: volume-id}, "devices": {name: device},
+     *         "macs": {subnet-id: mac}}
+     */
+    public HashMap<String, HashMap<String, String>> provision(ProvisionSpec spec)
+            throws Exception {
+        return provisionAsync(spec).get();
+    }
+
+    /**
+     * Provision one VM without waiting for it, see provision. Resources
+     * created before a step failed are left as they are, tagged with
+     * their names.
+     * @param spec
+     * @return handle of the provision, failed with the first failed step
+     */
+    public OperationHandle<HashMap<String, HashMap<String, String>>> provisionAsync(
+            final ProvisionSpec spec) {
+        TaskGraph graph = new TaskGraph("provision-" + spec.getName(), workers);
+        graph.add("launch", new TaskGraph.Task() {
+            public Object run(Map<String, Object> results) throws Exception {
+                return startLaunch(spec.getImageId(), spec.getName(),
+                        spec.getDataSubnetId(), null, spec.getUserData());
+            }
+        });
+        graph.add("instance", new TaskGraph.Task() {
+            public Object run(Map<String, Object> results) {
+                return ((Launch) results.get("launch")).handle;
+            }
+        }, "launch");
+
+        final List<String> volumeNames = new LinkedList<String>();
+        for (final ProvisionSpec.VolumeSpec volume : spec.getVolumes()) {
+            final String created = "volume:" + volume.name;
+            // in the zone of the instance, known once it is run
+            graph.add(created, new TaskGraph.Task() {
+                public Object run(Map<String, Object> results) throws Exception {
+                    String zone = ((Launch) results.get("launch")).instance.
+                            getPlacement().getAvailabilityZone();
+                    String volumeId = volume.size != null ?
+                            createVolumeIn(zone, volume.name, volume.size) :
+                            createVolumeFromSnapshotIn(zone,
+                                    volume.openstackSnapshotId, volume.name);
+                    return volumeWatcher.watch(volumeId, "available",
+                            LAUNCH_TIMEOUT_MILLIS);
+                }
+            }, "launch");
+            graph.add("attach:" + volume.name, new TaskGraph.Task() {
+                public Object run(Map<String, Object> results) {
+                    String volumeId = ((Volume) results.get(created)).getVolumeId();
+                    return ec2.attachVolume(new AttachVolumeRequest().
+                            withVolumeId(volumeId).
+                            withInstanceId(instanceIdOf(results)).
+                            withDevice(volume.device)).getAttachment().getDevice();
+                }
+            }, "instance", created);
+            volumeNames.add(volume.name);
+        }
+
+        List<String> attached = new LinkedList<String>();
+        attached.add("instance");
+        // pooled interfaces, which may be gone by the time they attach
+        final Set<String> pooled = Collections.synchronizedSet(new HashSet<String>());
+        int deviceIndex = 1;
+        for (final String[] network : spec.getNetworks()) {
+            final String created = "interface:" + deviceIndex;
+            final int index = deviceIndex++;
+            graph.add(created, new TaskGraph.Task() {
+                public Object run(Map<String, Object> results) {
+                    String pooledId = eniPool.claim(network[0]);
+                    if (pooledId != null) {
+                        pooled.add(pooledId);
+                        return pooledId;
+                    }
+                    return createNetworkInterface(network[0], network[1]);
+                }
+            });
+            graph.add("attach:" + created, new TaskGraph.Task() {
+                public Object run(Map<String, Object> results) {
+                    String interfaceId = (String) results.get(created);
+                    String instanceId = instanceIdOf(results);
+                    if (pooled.contains(interfaceId)) {
+                        if (attachPooledInterface(interfaceId, instanceId, index,
+                                network[1])) {
+                            return interfaceId;
+                        }
+                        interfaceId = createNetworkInterface(network[0], network[1]);
+                    }
+                    attachNetworkInterface(interfaceId, instanceId, index);
+                    return interfaceId;
+                }
+            }, "instance", created);
+            attached.add("attach:" + created);
+        }
+        graph.add("macs", new TaskGraph.Task() {
+            public Object run(Map<String, Object> results) throws Exception {
+                return lookups.getMacs(instanceIdOf(results));
+            }
+        }, attached.toArray(new String[attached.size()]));
+
+        final OperationHandle<HashMap<String, HashMap<String, String>>> operation =
+                new OperationHandle<HashMap<String, HashMap<String, String>>>(
+                        "provision-" + spec.getName());
+        graph.start().addCallback(new OperationHandle.Callback<Map<String, Object>>() {
+            @SuppressWarnings("unchecked")
+            public void onSuccess(Map<String, Object> results) {
+                HashMap<String, HashMap<String, String>> result =
+                        new HashMap<String, HashMap<String, String>>();
+                result.put("instance", (HashMap<String, String>) results.get("instance"));
+                result.put("macs", (HashMap<String, String>) results.get("macs"));
+                HashMap<String, String> volumes = new HashMap<String, String>();
+                HashMap<String, String> devices = new HashMap<String, String>();
+                for (String name : volumeNames) {
+                    volumes.put(name, ((Volume) results.get("volume:" + name)).getVolumeId());
+                    devices.put(name, (String) results.get("attach:" + name));
+                }
+                result.put("volumes", volumes);
+                result.put("devices", devices);
+                operation.complete(result);
+            }
+
+            public void onFailure(Exception error) {
+                operation.fail(error);
+            }
+        });
+        return operation;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String instanceIdOf(Map<String, Object> results) {
+        return ((Map<String, String>) results.get("instance")).get("instance-id");
+    }
+
+    /**
+     * Instance run or claimed for a launch, and the handle of the launch
+     */
+    private static class Launch {
+        final Instance instance;
+        final OperationHandle<HashMap<String, String>> handle;
+
+        Launch(Instance instance, OperationHandle<HashMap<String, String>> handle) {
+            this.instance = instance;
+            this.handle = handle;
+        }
+    }
+
+    private Launch startLaunch(String EC2ImageId, String name, String dataSubNetId,
+                               String apiSubNetId, String userData) throws Exception {
+        OperationJournal.Entry entry = journal.begin("launch", OperationJournal.arguments(
+                "name", name, "image-id", EC2ImageId, "api-subnet-id", apiSubNetId));
+        try {
+            Launch launch = startLaunch(entry, EC2ImageId, name, dataSubNetId,
+                    apiSubNetId, userData);
+            journal.endWhenDone(entry, launch.handle);
+            return launch;
+        } catch (Exception e) {
+            journal.end(entry);
+            throw e;
+        }
+    }
+
+    private Launch startLaunch(OperationJournal.Entry entry, String EC2ImageId, String name,
+                               String dataSubNetId, String apiSubNetId, String userData)
+            throws Exception {
+        // a running pooled instance can't take user data any more
+        Instance pooled = warmPool.claim(EC2ImageId, dataSubNetId, userData != null);
+        if (pooled != null) {
+            journal.record(entry, "pooled", "true");
+            journal.record(entry, "instance-id", pooled.getInstanceId());
+            try {
+                tagInstanceName(pooled.getInstanceId(), name,
+                        new Tag(WarmPool.POOL_TAG, WarmPool.CLAIMED));
+                placement.remember(pooled);
+                return new Launch(pooled, launchPooled(pooled, apiSubNetId, userData));
+            } catch (RuntimeException e) {
+                // out of the pool already, and the caller won't get it
+                warmPool.discard(pooled);
+                throw e;
+            }
+        }
+
+        // run instance according to image
+        RunInstancesRequest req = context.newRunInstancesRequest(EC2ImageId, 1,
+                dataSubNetId, userData);
+        List<Instance> insts = context.runInstances(req).getInstances();
         // tag it with name
         Instance instance = insts.get(0);
+        journal.record(entry, "instance-id", instance.getInstanceId());
+        tagInstanceName(instance.getInstanceId(), name);
+        return new Launch(instance, trackPlacement(instance,
+                awaitLaunch(instance.getInstanceId(), apiSubNetId)));
+    }
+
+    /**
+     * record how the launch of a just run instance goes in its zone
+     * @return launch
+     */
+    private OperationHandle<HashMap<String, String>> trackPlacement(
+            Instance launched, OperationHandle<HashMap<String, String>> launch) {
+        if (launched.getPlacement() == null) {
+            return launch;
+        }
+        final String zone = launched.getPlacement().getAvailabilityZone();
+        final long startNanos = System.nanoTime();
+        launch.addCallback(new OperationHandle.Callback<HashMap<String, String>>() {
+            public void onSuccess(HashMap<String, String> result) {
+                placement.launched(zone, startNanos);
+            }
+
+            public void onFailure(Exception error) {
+                placement.failed(zone);
+            }
+        });
+        return launch;
+    }
+
+    private void tagInstanceName(String instanceId, String name, Tag... otherTags) {
         ec2.createTags(new CreateTagsRequest().withResources(
-                instance.getInstanceId()).withTags(new Tag("Name", name)));
-
-        // wait at most 3 minutes until instance running
-        int timeOut = 180;
-        DescribeInstanceStatusRequest describeInstanceStatusRequest =
-                new DescribeInstanceStatusRequest().withInstanceIds(
-                        instance.getInstanceId());
-        while (timeOut > 0) {
-            DescribeInstanceStatusResult status =
-                    ec2.describeInstanceStatus(describeInstanceStatusRequest);
-            if (!status.getInstanceStatuses().isEmpty() &&
-                    status.getInstanceStatuses().get(0).getInstanceState().
-                    getName().equals("running")) {
-                break;
-            } else {
-                Thread.sleep(10*1000);
+                instanceId).withTags(new Tag("Name", name)).withTags(otherTags));
+        lookups.rememberInstance(name, instanceId);
+    }
+
+    /**
+     * finish launch of an instance claimed from warm pool: a running one
+     * right away, a stopped one once started
+     * @return handle whose result is {"public-ip":, "instance-id":}
+     */
+    private OperationHandle<HashMap<String, String>> launchPooled(
+            final Instance pooled, final String apiSubNetId, String userData) {
+        if (!"running".equals(pooled.getState().getName())) {
+            if (userData != null) {
+                ec2.modifyInstanceAttribute(new ModifyInstanceAttributeRequest().
+                        withInstanceId(pooled.getInstanceId()).
+                        withUserData(RegionContext.encodeUserData(userData)));
             }
-            timeOut -= 10;
+            ec2.startInstances(new StartInstancesRequest().
+                    withInstanceIds(pooled.getInstanceId()));
+            return awaitLaunch(pooled.getInstanceId(), apiSubNetId);
         }
 
-        if (timeOut <= 0) {
-            throw new Exception("timed out to wait vm to be running");
-        }
+        final OperationHandle<HashMap<String, String>> operation =
+                new OperationHandle<HashMap<String, String>>("launch-" + pooled.getInstanceId());
+        workers.submit(new Runnable() {
+            public void run() {
+                try {
+                    operation.complete(finishLaunch(pooled, apiSubNetId));
+                } catch (Exception e) {
+                    operation.fail(e);
+                }
+            }
+        });
+        return operation;
+    }
+
+    /**
+     * wait in background until instance running, then attach api subnet
+     * @return handle whose result is {"public-ip":, "instance-id":}
+     */
+    private OperationHandle<HashMap<String, String>> awaitLaunch(
+            String instanceId, final String apiSubNetId) {
+        final OperationHandle<HashMap<String, String>> operation =
+                new OperationHandle<HashMap<String, String>>("launch-" + instanceId);
+        instanceWatcher.watch(instanceId, "running", LAUNCH_TIMEOUT_MILLIS).addCallback(
+                new OperationHandle.Callback<Instance>() {
+                    public void onSuccess(final Instance running) {
+                        // leave the watcher thread to poll others
+                        workers.submit(new Runnable() {
+                            public void run() {
+                                try {
+                                    operation.complete(finishLaunch(running, apiSubNetId));
+                                } catch (Exception e) {
+                                    operation.fail(e);
+                                }
+                            }
+                        });
+                    }
 
-        // get public ip
-        DescribeInstancesRequest describeInstancesRequest =
-                new DescribeInstancesRequest().withInstanceIds(
-                        instance.getInstanceId());
-        DescribeInstancesResult instancesResult =
-                ec2.describeInstances(describeInstancesRequest);
+                    public void onFailure(Exception error) {
+                        operation.fail(error);
+                    }
+                });
+        return operation;
+    }
 
-        // attach api subnet
-        if (apiSubNetId != null) {
-            attachSubNetToInstance(apiSubNetId, instance.getInstanceId(), 1, "api-network");
+    private HashMap<String, String> finishLaunch(Instance running, String apiSubNetId) {
+        // attach api subnet, unless a launch resumed after restart did it
+        if (apiSubNetId != null && !hasInterfaceAt(running, 1)) {
+            attachSubNet(apiSubNetId, running.getInstanceId(), 1, "api-network");
         }
 
-        // fill result
+        // fill result, public ip is already in the description of running
+        // instance
         HashMap<String, String> result = new HashMap<String, String>();
-        result.put("public-ip", instancesResult.getReservations().get(0).
-                getInstances().get(0).getPublicIpAddress());
-        result.put("instance-id", instance.getInstanceId());
+        result.put("public-ip", running.getPublicIpAddress());
+        result.put("instance-id", running.getInstanceId());
         return result;
     }
 
+    private static boolean hasInterfaceAt(Instance instance, int deviceIndex) {
+        for (InstanceNetworkInterface networkInterface : instance.getNetworkInterfaces()) {
+            if (networkInterface.getAttachment() != null &&
+                    networkInterface.getAttachment().getDeviceIndex() == deviceIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void attachSubNetToInstance(String subNetId, String instanceId, int deviceIndex, String desp) {
-        // attach api subnet id
+        attachSubNet(subNetId, instanceId, deviceIndex, desp);
+    }
+
+    private void attachSubNet(String subNetId, String instanceId, int deviceIndex, String desp) {
+        // attach api subnet id, with a pooled interface if any
+        String pooledId = eniPool.claim(subNetId);
+        if (pooledId != null && attachPooledInterface(pooledId, instanceId, deviceIndex, desp)) {
+            return;
+        }
+        attachNetworkInterface(createNetworkInterface(subNetId, desp), instanceId, deviceIndex);
+    }
+
+    /**
+     * @return false if the pooled interface is gone
+     */
+    private boolean attachPooledInterface(String pooledId, String instanceId,
+                                          int deviceIndex, String desp) {
+        try {
+            attachNetworkInterface(pooledId, instanceId, deviceIndex);
+            eniPool.markClaimed(pooledId, desp);
+            return true;
+        } catch (AmazonServiceException e) {
+            if (!ResourcePool.isNotFound(e)) {
+                throw e;
+            }
+            log.warn("pooled interface " + pooledId + " is gone, creating one");
+            return false;
+        }
+    }
+
+    private String createNetworkInterface(String subNetId, String desp) {
         CreateNetworkInterfaceRequest createNetworkInterfaceRequest =
                 new CreateNetworkInterfaceRequest().withSubnetId(subNetId).withDescription(desp);
         CreateNetworkInterfaceResult createNetworkInterfaceResult =
                 ec2.createNetworkInterface(createNetworkInterfaceRequest);
+        return createNetworkInterfaceResult.getNetworkInterface().getNetworkInterfaceId();
+    }
+
+    private void attachNetworkInterface(String networkInterfaceId, String instanceId,
+                                        int deviceIndex) {
         AttachNetworkInterfaceRequest attachNetworkInterfaceRequest = new AttachNetworkInterfaceRequest().
-                withNetworkInterfaceId(createNetworkInterfaceResult.getNetworkInterface().getNetworkInterfaceId()).
+                withNetworkInterfaceId(networkInterfaceId).
                 withDeviceIndex(deviceIndex).withInstanceId(instanceId);
         ec2.attachNetworkInterface(attachNetworkInterfaceRequest);
     }
 
     /**
-     * Delete EC2 instance by EC2 instanceId
+     * Delete EC2 instance by EC2 instanceId. Returns once termination is
+     * accepted, network interfaces attached to the instance are deleted by
+     * the ENI reaper as soon as the instance releases them.
      * @param instanceId
      * @throws Exception
      */
     public void deleteInstance(String instanceId) throws Exception {
+        OperationJournal.Entry entry = journal.begin("delete-instance",
+                OperationJournal.arguments("instance-id", instanceId));
+        try {
+            deleteInstance(entry, instanceId);
+        } catch (Exception e) {
+            journal.end(entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Terminate instance, then hand its network interfaces to the ENI
+     * reaper; entry ends once they are deleted. The interfaces are
+     * recorded before terminating, as a terminated instance no longer
+     * lists them.
+     */
+    private void deleteInstance(OperationJournal.Entry entry, String instanceId)
+            throws Exception {
         DescribeInstancesRequest request = new DescribeInstancesRequest().
                 withInstanceIds(Collections.singletonList(instanceId));;
         DescribeInstancesResult result = ec2.describeInstances(request);
-        System.out.println("instances:" + result);
+        if (log.isDebugEnabled()) {
+            log.debug("instances:" + result);
+        }
 
+        List<String> networkIds = new LinkedList<String>();
+        for (Reservation reservation : result.getReservations()) {
+            for(Instance instance : reservation.getInstances()) {
+                for (InstanceNetworkInterface networkInterface : instance.getNetworkInterfaces()) {
+                    // EC2 deletes those itself along with the instance
+                    if (networkInterface.getAttachment() != null &&
+                            Boolean.TRUE.equals(networkInterface.getAttachment().
+                                    getDeleteOnTermination())) {
+                        continue;
+                    }
+                    networkIds.add(networkInterface.getNetworkInterfaceId());
+                }
+            }
+        }
+        journal.record(entry, "network-interface-ids", join(networkIds));
 
+        terminateInstance(instanceId);
+        journal.endWhenDone(entry, eniReaper.enqueue(networkIds));
+    }
+
+    private void terminateInstance(String instanceId) throws Exception {
         TerminateInstancesRequest terminateInstancesRequest =
                 new TerminateInstancesRequest().withInstanceIds(
                 Collections.singletonList(instanceId));
@@ -215,21 +788,182 @@ public class EC2JavaServer {
         if (terminateInstancesResult.getTerminatingInstances().isEmpty()) {
             throw new Exception("failed to delete Instance");
         }
+        lookups.forgetInstance(instanceId);
+    }
 
-        // wait 10 seconds
-        Thread.sleep(20*1000);
+    private static String join(List<String> ids) {
+        StringBuilder joined = new StringBuilder();
+        for (String id : ids) {
+            joined.append(joined.length() == 0 ? "" : ",").append(id);
+        }
+        return joined.toString();
+    }
 
-        for (Reservation reservation : result.getReservations()) {
-            for(Instance instance : reservation.getInstances()) {
-                for (InstanceNetworkInterface networkInterface : instance.getNetworkInterfaces()) {
-                    String networkId = networkInterface.getNetworkInterfaceId();
-                    DeleteNetworkInterfaceRequest deleteNetworkInterfaceRequest =
-                            new DeleteNetworkInterfaceRequest().withNetworkInterfaceId(networkId);
-                    ec2.deleteNetworkInterface(deleteNetworkInterfaceRequest);
-                    System.out.print("deleted interface:" + networkId);
+    private static List<String> split(String joined) {
+        List<String> ids = new LinkedList<String>();
+        for (String id : joined.split(",")) {
+            if (id.length() > 0) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Resume the launches, deletes and attaches a restart interrupted, as
+     * found in the operation journal. Runs once per region, later calls
+     * do nothing.
+     * @return number of operations resumed
+     */
+    public int resumeOperations() {
+        return journal.resume(new OperationJournal.Recovery() {
+            public void resume(OperationJournal.Entry entry) throws Exception {
+                if ("launch".equals(entry.getKind())) {
+                    resumeLaunch(entry);
+                } else if ("launch-batch".equals(entry.getKind())) {
+                    resumeLaunchBatch(entry);
+                } else if ("delete-instance".equals(entry.getKind())) {
+                    resumeDeleteInstance(entry);
+                } else if ("attach-volume".equals(entry.getKind())) {
+                    resumeAttachVolume(entry);
+                } else {
+                    log.warn("no recovery of " + entry);
+                    journal.end(entry);
                 }
             }
+        });
+    }
+
+    private void resumeLaunch(OperationJournal.Entry entry) {
+        String instanceId = entry.get("instance-id");
+        if (instanceId == null) {
+            // nothing was run, or the caller never learnt of it
+            journal.end(entry);
+            return;
+        }
+        if (entry.get("pooled") != null) {
+            tagInstanceName(instanceId, entry.get("name"),
+                    new Tag(WarmPool.POOL_TAG, WarmPool.CLAIMED));
+        } else {
+            tagInstanceName(instanceId, entry.get("name"));
+        }
+        journal.endWhenDone(entry, awaitLaunch(instanceId, entry.get("api-subnet-id")));
+    }
+
+    private void resumeLaunchBatch(OperationJournal.Entry entry) {
+        String ids = entry.get("instance-ids");
+        if (ids == null) {
+            journal.end(entry);
+            return;
+        }
+        List<String> instanceIds = split(ids);
+        List<String> names = new ArrayList<String>();
+        List<OperationHandle<HashMap<String, String>>> launches =
+                new ArrayList<OperationHandle<HashMap<String, String>>>();
+        for (int i = 0; i < instanceIds.size(); i++) {
+            String name = entry.get("name." + i);
+            names.add(name);
+            try {
+                tagInstanceName(instanceIds.get(i), name);
+                launches.add(awaitLaunch(instanceIds.get(i), entry.get("api-subnet-id")));
+            } catch (RuntimeException e) {
+                launches.add(failedLaunch(instanceIds.get(i), name, e));
+            }
+        }
+        journal.endWhenDone(entry, collectLaunches("launch-" + entry.getId(), names,
+                instanceIds, launches));
+    }
+
+    private void resumeDeleteInstance(OperationJournal.Entry entry) throws Exception {
+        String ids = entry.get("network-interface-ids");
+        if (ids == null) {
+            deleteInstance(entry, entry.get("instance-id"));
+            return;
+        }
+        // the restart may have come before the terminate
+        try {
+            terminateInstance(entry.get("instance-id"));
+        } catch (AmazonServiceException e) {
+            if (!"InvalidInstanceID.NotFound".equals(e.getErrorCode())) {
+                throw e;
+            }
+        }
+        journal.endWhenDone(entry, eniReaper.enqueue(split(ids)));
+    }
+
+    private void resumeAttachVolume(OperationJournal.Entry entry) {
+        try {
+            List<Volume> volumes = ec2.describeVolumes(new DescribeVolumesRequest().
+                    withVolumeIds(entry.get("volume-id"))).getVolumes();
+            // attached already, or in use elsewhere since
+            if (!volumes.isEmpty() && "available".equals(volumes.get(0).getState())) {
+                ec2.attachVolume(new AttachVolumeRequest().withVolumeId(entry.get("volume-id")).
+                        withInstanceId(entry.get("instance-id")).
+                        withDevice(entry.get("device")));
+            }
+        } finally {
+            journal.end(entry);
+        }
+    }
+
+    /**
+     * @return {"live":, "appended":, "syncs":, "compactions":,
+     *         "bytes-used":, "bytes-capacity":} of the operation journal
+     */
+    public Map<String, Long> getJournalStats() {
+        return journal.getStats();
+    }
+
+    /**
+     * get progress of deleting network interfaces of deleted instances
+     * @return {"queue-depth":, "oldest-pending-age-millis":, "deleted":,
+     *         "abandoned":}
+     */
+    public Map<String, Long> getEniReaperStats() {
+        return eniReaper.getStats();
+    }
+
+    /**
+     * Terminate instances in bulk, in batches of up to a thousand per
+     * TerminateInstances. Ids unknown or already terminated are skipped.
+     * @param instanceIds
+     * @param deleteVolumes whether to also delete the attached volumes
+     *                      EC2 keeps, once they are released
+     * @return handle of the sweep, with its progress so far in
+     *         getProgress(), completed with the final progress
+     */
+    public BulkTerminator.Sweep terminateInstances(List<String> instanceIds,
+                                                   boolean deleteVolumes) {
+        return bulkTerminator.terminate(instanceIds, deleteVolumes);
+    }
+
+    /**
+     * Terminate all instances with tag key=value, see terminateInstances
+     * @param key
+     * @param value may have "*" and "?" wildcards
+     * @param deleteVolumes
+     */
+    public BulkTerminator.Sweep terminateInstancesByTag(String key, String value,
+                                                        boolean deleteVolumes) {
+        return bulkTerminator.terminateMatching(Collections.singletonList(
+                new Filter().withName("tag:" + key).withValues(value)), deleteVolumes);
+    }
+
+    /**
+     * Terminate all instances matching DescribeInstances filters, see
+     * terminateInstances
+     * @param filters {filter name: value}, e.g. {"image-id": "ami-..."},
+     *                empty to terminate all instances of the region
+     * @param deleteVolumes
+     */
+    public BulkTerminator.Sweep terminateInstancesByFilter(Map<String, String> filters,
+                                                           boolean deleteVolumes) {
+        List<Filter> ec2Filters = new LinkedList<Filter>();
+        for (Map.Entry<String, String> entry : filters.entrySet()) {
+            ec2Filters.add(new Filter().withName(entry.getKey()).
+                    withValues(entry.getValue()));
         }
+        return bulkTerminator.terminateMatching(ec2Filters, deleteVolumes);
     }
 
     public void rebootInstance(String instanceId) {
@@ -247,6 +981,7 @@ public class EC2JavaServer {
     public void deleteVolume(String volumeId) throws Exception {
         DeleteVolumeRequest request = new DeleteVolumeRequest().withVolumeId(volumeId);
         ec2.deleteVolume(request);
+        lookups.forgetVolume(volumeId);
     }
 
     /**
@@ -275,22 +1010,114 @@ public class EC2JavaServer {
 
     public String detachVolumeFromInstance(
             String EC2volumeId, String EC2InstanceId, String mountPoint) {
+        return detachVolumeFromInstance(EC2volumeId, EC2InstanceId, mountPoint, true);
+    }
+
+    /**
+     * detach volume from instance
+     * @param EC2volumeId
+     * @param EC2InstanceId
+     * @param mountPoint
+     * @param force whether to force the detach, which risks the data the
+     *              instance did not flush
+     * @return device the volume was attached as
+     */
+    public String detachVolumeFromInstance(
+            String EC2volumeId, String EC2InstanceId, String mountPoint, boolean force) {
         DetachVolumeResult result = ec2.detachVolume(
                 new DetachVolumeRequest().withVolumeId(EC2volumeId).
-                        withInstanceId(EC2InstanceId).withForce(true));
+                        withInstanceId(EC2InstanceId).withForce(force));
         return result.getAttachment().getDevice();
     }
 
     /**
-     * Create volume from blank with specified name and size
+     * attach many volumes, at most ec2.attach.parallelism calls at once,
+     * and wait until all are attached
+     * @param instanceIds {volume id: instance id to attach it to}
+     * @param devices {volume id: device name, e.g. "/dev/sdf"}
+     * @return {volume id: {"instance-id":, "device":, "state":}}, or
+     *         {volume id: {"instance-id":, "error":}} for volume failed to
+     *         attach
+     */
+    public HashMap<String, HashMap<String, String>> attachVolumes(
+            Map<String, String> instanceIds, Map<String, String> devices) throws Exception {
+        return volumeAttacher.attach(instanceIds, devices).get();
+    }
+
+    /**
+     * attach many volumes without waiting for them, see attachVolumes
+     * @return handle of the batch, with the handle of each volume in
+     *         getHandle(volumeId), completed once every volume is attached
+     *         or failed
+     */
+    public VolumeAttacher.Batch attachVolumesAsync(Map<String, String> instanceIds,
+                                                   Map<String, String> devices) {
+        return volumeAttacher.attach(instanceIds, devices);
+    }
+
+    /**
+     * detach many volumes, at most ec2.attach.parallelism calls at once,
+     * and wait until all are available
+     * @param instanceIds {volume id: instance id to detach it from}
+     * @param force whether to force the detaches
+     * @return {volume id: {"instance-id":, "state":}}, or
+     *         {volume id: {"instance-id":, "error":}} for volume failed to
+     *         detach
+     */
+    public HashMap<String, HashMap<String, String>> detachVolumes(
+            Map<String, String> instanceIds, boolean force) throws Exception {
+        return volumeAttacher.detach(instanceIds, force).get();
+    }
+
+    /**
+     * detach many volumes without waiting for them, see detachVolumes
+     */
+    public VolumeAttacher.Batch detachVolumesAsync(Map<String, String> instanceIds,
+                                                   boolean force) {
+        return volumeAttacher.detach(instanceIds, force);
+    }
+
+    /**
+     * Create volume from blank with specified name and size, in the home
+     * zone of the region
      * @param name name as tag which will be used to anchor the volume
      * @param size
      * @return
      * @throws Exception
      */
     public String createVolume(String name, Long size) throws Exception {
+        return createVolumeIn(getAvailZone().getZoneName(), name, size);
+    }
+
+    /**
+     * Create volume from blank, in the zone of the instance it is for
+     * @param name name as tag
+     * @param size
+     * @param instanceId EC2 instance the volume will be attached to
+     * @return volumeId in EC2
+     */
+    public String createVolume(String name, Long size, String instanceId) throws Exception {
+        return createVolumeIn(placement.zoneOf(instanceId), name, size);
+    }
+
+    private String createVolumeIn(String zone, String name, Long size) throws Exception {
+        String pooledId = volumePool.claim(size.intValue(), zone);
+        if (pooledId != null) {
+            try {
+                ec2.createTags(new CreateTagsRequest().withResources(pooledId).withTags(
+                        new Tag("Name", name), volumePool.claimedTag()));
+                lookups.rememberVolume(name, pooledId);
+                return pooledId;
+            } catch (AmazonServiceException e) {
+                if (!ResourcePool.isNotFound(e)) {
+                    throw e;
+                }
+                log.warn("pooled volume " + pooledId + " is gone, creating one");
+            }
+        }
+
         CreateVolumeRequest request = new CreateVolumeRequest().
-                withAvailabilityZone(getAvailZone().getZoneName()).
+                withAvailabilityZone(zone).
                 withSize(size.intValue());
         CreateVolumeResult result = ec2.createVolume(request);
 
@@ -298,6 +1125,7 @@ public class EC2JavaServer {
         ec2.createTags(new CreateTagsRequest().withResources(
                 result.getVolume().getVolumeId()).withTags(
                 new Tag("Name", name)));
+        lookups.rememberVolume(name, result.getVolume().getVolumeId());
         return result.getVolume().getVolumeId();
     }
 
@@ -307,19 +1135,7 @@ public class EC2JavaServer {
      * @return
      */
     public String getInstanceIdFromName(String name) throws Exception {
-        String result = "None";
-        DescribeInstancesRequest describeInstancesRequest =
-                new DescribeInstancesRequest().withFilters(new Filter().
-                        withName("tag:Name").withValues(name));
-
-        DescribeInstancesResult describeInstancesResult = ec2.describeInstances(
-                describeInstancesRequest);
-        if (!describeInstancesResult.getReservations().isEmpty() &&
-                !describeInstancesResult.getReservations().get(0).getInstances().isEmpty()) {
-            result = describeInstancesResult.getReservations().get(0).
-                    getInstances().get(0).getInstanceId();
-        }
-        return result;
+        return noneIfNull(lookups.getInstanceId(name));
     }
 
     /**
@@ -329,17 +1145,7 @@ public class EC2JavaServer {
      * @throws Exception
      */
     public String getVolumeIdFromName(String name) throws Exception {
-        String result = "None";
-        DescribeVolumesRequest describeVolumesRequest =
-                new DescribeVolumesRequest().withFilters(new Filter().
-                        withName("tag:Name").withValues(name));
-        DescribeVolumesResult describeVolumesResult = ec2.describeVolumes(
-                describeVolumesRequest);
-        if (!describeVolumesResult.getVolumes().isEmpty()) {
-            result = describeVolumesResult.getVolumes().get(0).getVolumeId();
-        }
-
-        return result;
+        return noneIfNull(lookups.getVolumeId(name));
     }
 
     /**
@@ -349,17 +1155,7 @@ public class EC2JavaServer {
      * @throws Exception
      */
     public String getImageIdFromName(String name) throws Exception {
-        String result = "None";
-        DescribeImagesRequest describeImagesRequest =
-                new DescribeImagesRequest().withFilters(new Filter().
-                        withName("tag:Name").withValues(name));
-        DescribeImagesResult describeImagesResult = ec2.describeImages(
-                describeImagesRequest);
-        if (!describeImagesResult.getImages().isEmpty()) {
-            result = describeImagesResult.getImages().get(0).getImageId();
-        }
-
-        return result;
+        return noneIfNull(lookups.getImageId(name));
     }
 
     /**
@@ -367,58 +1163,171 @@ public class EC2JavaServer {
      * @param instanceId
      * @return
      */
-    public String getInstanceStatus(String instanceId) {
-        String result = "None";
-        DescribeInstancesRequest request = new DescribeInstancesRequest().
-                withInstanceIds(Collections.singletonList(instanceId));
-        DescribeInstancesResult describeInstancesResult
-                = ec2.describeInstances(request);
-        System.out.println("instances:" + result);
-        if (!describeInstancesResult.getReservations().isEmpty() &&
-                !describeInstancesResult.getReservations().get(0).getInstances().isEmpty()) {
-            result = describeInstancesResult.getReservations().get(0).
-                    getInstances().get(0).getState().getName();
-        }
-        return result;
+    public String getInstanceStatus(String instanceId) throws Exception {
+        return noneIfNull(lookups.getInstanceStatus(instanceId));
     }
 
-    public HashMap<String, String> get_instance_macs(String instanceId) {
-        HashMap<String, String> macs = new HashMap<String, String>();
-        DescribeInstancesRequest request = new DescribeInstancesRequest().
-                withInstanceIds(Collections.singletonList(instanceId));;
-        DescribeInstancesResult result = ec2.describeInstances(request);
-        System.out.println("instances:" + result);
+    /**
+     * get hit/miss counters of the name to id inventory caches
+     * @return {"instances": {"size":, "hits":, "misses":, "evictions":}, ...}
+     */
+    public Map<String, Map<String, Long>> getInventoryCacheStats() {
+        return lookups.getCacheStats();
+    }
 
-        for (Reservation reservation : result.getReservations()) {
-            for(Instance instance : reservation.getInstances()) {
-                for (InstanceNetworkInterface networkInterface : instance.getNetworkInterfaces()) {
-                    String networkId = networkInterface.getNetworkInterfaceId();
-                    DescribeNetworkInterfacesRequest describeNetworkInterfacesRequest =
-                            new DescribeNetworkInterfacesRequest().
-                                    withNetworkInterfaceIds(Collections.singletonList(networkId));
-                    DescribeNetworkInterfacesResult result1 =
-                            ec2.describeNetworkInterfaces(describeNetworkInterfacesRequest);
-                    if (!result1.getNetworkInterfaces().isEmpty()) {
-                        macs.put(result1.getNetworkInterfaces().get(0).getSubnetId(),
-                                result1.getNetworkInterfaces().get(0).getMacAddress());
-                    }
-                }
-            }
-        }
-        return macs;
+    /**
+     * get fill level and hit/miss counters of warm instance pools
+     * @return {pool-key: {"size":, "ready":, "launching":, "hits":,
+     *         "misses":, "reaped":}}
+     */
+    public Map<String, Map<String, Long>> getWarmPoolStats() {
+        return warmPool.getStats();
+    }
+
+    /**
+     * get fill level and hit/miss counters of blank volume and network
+     * interface pools
+     * @return {"volumes": {size: stats}, "network-interfaces": {subnet-id:
+     *         stats}}, stats as {"low":, "high":, "ready":, "creating":,
+     *         "hits":, "misses":, "reclaimed":}
+     */
+    public Map<String, Map<String, Map<String, Long>>> getResourcePoolStats() {
+        Map<String, Map<String, Map<String, Long>>> stats =
+                new HashMap<String, Map<String, Map<String, Long>>>();
+        stats.put("volumes", volumePool.getStats());
+        stats.put("network-interfaces", eniPool.getStats());
+        return stats;
+    }
+
+    /**
+     * get state and launch record of each availability zone
+     * @return {zone: {"available":, "success-percent":, "latency-millis":,
+     *         "cooldown-millis":, "launches":, "failures":,
+     *         "capacity-errors":}}
+     */
+    public Map<String, Map<String, Long>> getPlacementStats() {
+        return placement.getStats();
+    }
+
+    /**
+     * get size and hit counters of the OpenStack to EC2 snapshot index
+     * @return {"size":, "hits":, "scans":, "age-millis":}
+     */
+    public Map<String, Long> getSnapshotIndexStats() {
+        return snapshotIndex.getStats();
+    }
+
+    /**
+     * Subscribe to state changes of instances and volumes instead of
+     * polling them. listener is called back, through the py4j callback
+     * server, with the current state of each id once it is seen and on
+     * every change after, e.g. pending -> running, attaching -> attached,
+     * shutting-down -> terminated.
+     * @param listener python object implementing StateListener
+     * @param instanceIds null for none
+     * @param volumeIds null for none
+     * @return subscription id
+     */
+    public String subscribeStateChanges(StateListener listener, List<String> instanceIds,
+                                        List<String> volumeIds) {
+        return stateStream.subscribe(listener, instanceIds, volumeIds);
+    }
+
+    /**
+     * Add instances and volumes to a subscription
+     * @param subscriptionId
+     * @param instanceIds null for none
+     * @param volumeIds null for none
+     */
+    public void addStateSubscriptionIds(String subscriptionId, List<String> instanceIds,
+                                        List<String> volumeIds) {
+        stateStream.add(subscriptionId, instanceIds, volumeIds);
+    }
+
+    /**
+     * Remove instances and volumes from a subscription
+     * @param subscriptionId
+     * @param instanceIds null for none
+     * @param volumeIds null for none
+     */
+    public void removeStateSubscriptionIds(String subscriptionId, List<String> instanceIds,
+                                           List<String> volumeIds) {
+        stateStream.remove(subscriptionId, instanceIds, volumeIds);
+    }
+
+    public void unsubscribeStateChanges(String subscriptionId) {
+        stateStream.unsubscribe(subscriptionId);
+    }
+
+    /**
+     * get subscribed ids and delivery counters of each subscription
+     * @return {subscription-id: {"instances":, "volumes":, "queued":,
+     *         "delivered":, "dropped":}}
+     */
+    public Map<String, Map<String, Long>> getStateStreamStats() {
+        return stateStream.getStats();
+    }
+
+    /**
+     * get in-flight and queued calls of each gateway method
+     * @return {method: {"in-flight":, "queued":, "calls":, "rejected":}}
+     */
+    public Map<String, Map<String, Long>> getGatewayStats() {
+        return admission.getStats();
+    }
+
+    /**
+     * get latency percentiles, error and throttle counts of gateway
+     * methods, EC2 API calls and waits
+     * @return {timer-name: {"count":, "errors":, "throttles":,
+     *         "mean-micros":, "p50-micros":, "p99-micros":, "max-micros":}}
+     */
+    public Map<String, Map<String, Long>> getMetrics() {
+        return Metrics.snapshot();
+    }
+
+    /**
+     * get current values of gauges, e.g. effective EC2 call rate of each
+     * rate limiter bucket "ratelimit.<region>.<category>"
+     * @return {gauge-name: value}
+     */
+    public Map<String, Double> getGauges() {
+        return Metrics.gaugeSnapshot();
+    }
+
+    private static String noneIfNull(String value) {
+        return value == null ? "None" : value;
+    }
+
+    /**
+     * get mac address of each network interface attached to instance
+     * @param instanceId
+     * @return {subnet-id: mac}
+     */
+    public HashMap<String, String> get_instance_macs(String instanceId) throws Exception {
+        return lookups.getMacs(instanceId);
+    }
+
+    /**
+     * get mac addresses of many instances with one round trip
+     * @param instanceIds
+     * @return {instance-id: {subnet-id: mac}}
+     */
+    public HashMap<String, HashMap<String, String>> get_instances_macs(
+            List<String> instanceIds) {
+        return lookups.getMacs(instanceIds);
     }
 
     public static void testDeleteAllInstances() {
         EC2JavaServer ec2JavaServer = new EC2JavaServer();
         try {
-            DescribeInstancesRequest request = new DescribeInstancesRequest();
-            DescribeInstancesResult result = ec2.describeInstances(request);
-            for (Reservation reservation : result.getReservations()) {
-                for(Instance instance : reservation.getInstances()) {
-                    ec2JavaServer.deleteInstance(instance.getInstanceId());
-                }
+            BulkTerminator.Sweep sweep = ec2JavaServer.terminateInstancesByFilter(
+                    new HashMap<String, String>(), false);
+            while (!sweep.isDone()) {
+                System.out.println("progress:" + sweep.getProgress());
+                Thread.sleep(1000);
             }
-            System.out.println("result:" + result);
+            System.out.println("result:" + sweep.get());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -428,7 +1337,7 @@ public class EC2JavaServer {
     public static void testGetNetwork()  {
         EC2JavaServer ec2JavaServer = new EC2JavaServer();
         DescribeInstancesRequest request = new DescribeInstancesRequest();
-        DescribeInstancesResult result = ec2.describeInstances(request);
+        DescribeInstancesResult result = ec2JavaServer.ec2.describeInstances(request);
         System.out.println("instances:" + result);
 
         for (Reservation reservation : result.getReservations()) {
@@ -439,7 +1348,7 @@ public class EC2JavaServer {
                             new DescribeNetworkInterfacesRequest().
                                     withNetworkInterfaceIds(Collections.singletonList(networkId));
                     DescribeNetworkInterfacesResult result1 =
-                            ec2.describeNetworkInterfaces(describeNetworkInterfacesRequest);
+                            ec2JavaServer.ec2.describeNetworkInterfaces(describeNetworkInterfacesRequest);
                     System.out.println("network:" + result1);
                 }
             }
@@ -459,7 +1368,7 @@ public class EC2JavaServer {
 
             DescribeInstanceAttributeRequest request =
                     new DescribeInstanceAttributeRequest().withInstanceId(result.get("instance-id")).withAttribute("userData");
-            DescribeInstanceAttributeResult attribute = ec2.describeInstanceAttribute(request);
+            DescribeInstanceAttributeResult attribute = ec2JavaServer.ec2.describeInstanceAttribute(request);
             System.out.print(attribute.getInstanceAttribute());
         } catch (Exception e) {
             e.printStackTrace();
@@ -475,7 +1384,7 @@ public class EC2JavaServer {
         }
 
         DescribeInstancesRequest request = new DescribeInstancesRequest();
-        DescribeInstancesResult result = ec2.describeInstances(request);
+        DescribeInstancesResult result = ec2JavaServer.ec2.describeInstances(request);
         System.out.println("instances:" + result);
 
         try {
@@ -531,9 +1440,32 @@ public class EC2JavaServer {
         }
     }
 
-    public static void main(String [] args) {
-        // TODO: make the port configurable
-        GatewayServer gatewayServer = new GatewayServer(new EC2JavaServer(), 25535);
-        gatewayServer.start();
+    public static void main(String [] args) throws Exception {
+        GatewayConfig config = GatewayConfig.fromSystemProperties();
+        EC2JavaServer server = new EC2JavaServer();
+        // credentials, connections and metadata of the default region are
+        // ready before the first request comes in
+        if (Boolean.parseBoolean(System.getProperty("ec2.startup.warmUp", "true"))) {
+            EC2ClientRegistry.getDefault().warmUp(
+                    Long.getLong("ec2.startup.timeoutMillis", 30 * 1000));
+        }
+        server.resumeOperations();
+        EC2Gateway gateway = admission.wrap(server, EC2Gateway.class);
+        InetAddress address = InetAddress.getByName(config.getAddress());
+        InetAddress pythonAddress = InetAddress.getByName(GatewayServer.DEFAULT_ADDRESS);
+        for (int i = 0; i < config.getListeners(); i++) {
+            GatewayServer gatewayServer = new GatewayServer(gateway,
+                    config.getPort() + i, config.getPythonPort(), address,
+                    pythonAddress, GatewayServer.DEFAULT_CONNECT_TIMEOUT,
+                    config.getReadTimeoutMillis(), null);
+            gatewayServer.start();
+        }
+
+        // negative port disables the metrics endpoint
+        int metricsPort = Integer.getInteger("metrics.port", 25599);
+        if (metricsPort >= 0) {
+            new MetricsHttpServer(System.getProperty("metrics.address", "127.0.0.1"),
+                    metricsPort).start();
+        }
     }
 }
@@ -0,0 +1,352 @@
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeNetworkInterfacesRequest;
+import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.NetworkInterface;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.Volume;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lookups of instance status and of ids by name tag. Concurrent lookups
+ * are coalesced, so that many py4j callers asking at the same time share
+ * one Describe* request with many ids or many "tag:Name" values.
+ * Ids found by name are kept in inventory caches, which our own mutations
+ * populate and invalidate.
+ */
+public class EC2Lookups {
+    // how long concurrent lookups are collected into one request
+    static final long WINDOW_MILLIS = Long.getLong("ec2.coalesce.windowMillis", 20);
+    // max values of one filter per request
+    static final int MAX_BATCH_SIZE = 200;
+    static final int LOADER_THREADS = 4;
+    // name -> id inventory, names almost never change once assigned
+    static final int CACHE_SIZE = Integer.getInteger("ec2.inventory.size", 10000);
+    static final long CACHE_TTL_MILLIS =
+            Long.getLong("ec2.inventory.ttlMillis", 10 * 60 * 1000);
+
+    private final AmazonEC2 ec2;
+    private final RequestCoalescer<String, String> instanceStatus;
+    private final RequestCoalescer<String, String> instanceIdByName;
+    private final RequestCoalescer<String, String> volumeIdByName;
+    private final RequestCoalescer<String, String> imageIdByName;
+    private final RequestCoalescer<String, HashMap<String, String>> macs;
+    private final InventoryCache instances =
+            new InventoryCache("instances", CACHE_SIZE, CACHE_TTL_MILLIS);
+    private final InventoryCache volumes =
+            new InventoryCache("volumes", CACHE_SIZE, CACHE_TTL_MILLIS);
+    private final InventoryCache images =
+            new InventoryCache("images", CACHE_SIZE, CACHE_TTL_MILLIS);
+
+    public EC2Lookups(AmazonEC2 ec2) {
+        this.ec2 = ec2;
+        instanceStatus = new RequestCoalescer<String, String>("instance-status",
+                new RequestCoalescer.BatchLoader<String, String>() {
+                    public Map<String, String> load(Set<String> ids) {
+                        return loadInstanceStatus(ids);
+                    }
+                }, WINDOW_MILLIS, MAX_BATCH_SIZE, LOADER_THREADS);
+        instanceIdByName = new RequestCoalescer<String, String>("instance-name",
+                new RequestCoalescer.BatchLoader<String, String>() {
+                    public Map<String, String> load(Set<String> names) {
+                        return loadInstanceIds(names);
+                    }
+                }, WINDOW_MILLIS, MAX_BATCH_SIZE, LOADER_THREADS);
+        volumeIdByName = new RequestCoalescer<String, String>("volume-name",
+                new RequestCoalescer.BatchLoader<String, String>() {
+                    public Map<String, String> load(Set<String> names) {
+                        return loadVolumeIds(names);
+                    }
+                }, WINDOW_MILLIS, MAX_BATCH_SIZE, LOADER_THREADS);
+        imageIdByName = new RequestCoalescer<String, String>("image-name",
+                new RequestCoalescer.BatchLoader<String, String>() {
+                    public Map<String, String> load(Set<String> names) {
+                        return loadImageIds(names);
+                    }
+                }, WINDOW_MILLIS, MAX_BATCH_SIZE, LOADER_THREADS);
+        macs = new RequestCoalescer<String, HashMap<String, String>>("instance-macs",
+                new RequestCoalescer.BatchLoader<String, HashMap<String, String>>() {
+                    public Map<String, HashMap<String, String>> load(Set<String> ids) {
+                        return loadMacs(ids);
+                    }
+                }, WINDOW_MILLIS, MAX_BATCH_SIZE, LOADER_THREADS);
+    }
+
+    /**
+     * @param instanceId
+     * @return state name of the instance, or null if not found
+     */
+    public String getInstanceStatus(String instanceId) throws Exception {
+        return instanceStatus.get(instanceId);
+    }
+
+    /**
+     * @param name
+     * @return id of the first instance tagged with name, or null
+     */
+    public String getInstanceId(String name) throws Exception {
+        return cachedLookup(instances, instanceIdByName, name);
+    }
+
+    /**
+     * @param name
+     * @return id of the first volume tagged with name, or null
+     */
+    public String getVolumeId(String name) throws Exception {
+        return cachedLookup(volumes, volumeIdByName, name);
+    }
+
+    /**
+     * @param name
+     * @return id of the first image tagged with name, or null
+     */
+    public String getImageId(String name) throws Exception {
+        return cachedLookup(images, imageIdByName, name);
+    }
+
+    /**
+     * @param instanceId
+     * @return {subnet-id: mac} of network interfaces attached to instance
+     */
+    public HashMap<String, String> getMacs(String instanceId) throws Exception {
+        return macs.get(instanceId);
+    }
+
+    /**
+     * @param instanceIds
+     * @return {instance-id: {subnet-id: mac}}, with one describe request for
+     *         every MAX_BATCH_SIZE instances
+     */
+    public HashMap<String, HashMap<String, String>> getMacs(List<String> instanceIds) {
+        HashMap<String, HashMap<String, String>> result =
+                new HashMap<String, HashMap<String, String>>();
+        for (int from = 0; from < instanceIds.size(); from += MAX_BATCH_SIZE) {
+            result.putAll(loadMacs(new LinkedHashSet<String>(instanceIds.subList(
+                    from, Math.min(instanceIds.size(), from + MAX_BATCH_SIZE)))));
+        }
+        return result;
+    }
+
+    /**
+     * Record the name an instance was just tagged with
+     * @param name
+     * @param instanceId
+     */
+    public void rememberInstance(String name, String instanceId) {
+        instances.put(name, instanceId);
+    }
+
+    public void forgetInstance(String instanceId) {
+        instances.invalidateId(instanceId);
+    }
+
+    /**
+     * Record the name a volume was just tagged with
+     * @param name
+     * @param volumeId
+     */
+    public void rememberVolume(String name, String volumeId) {
+        volumes.put(name, volumeId);
+    }
+
+    public void forgetVolume(String volumeId) {
+        volumes.invalidateId(volumeId);
+    }
+
+    /**
+     * @return {"instances"|"volumes"|"images": {name: id}} of the ids
+     *         cached by name
+     */
+    public Map<String, Map<String, String>> exportNames() {
+        Map<String, Map<String, String>> names = new HashMap<String, Map<String, String>>();
+        for (InventoryCache cache : new InventoryCache[] {instances, volumes, images}) {
+            names.put(cache.getName(), cache.snapshot());
+        }
+        return names;
+    }
+
+    /**
+     * Cache ids by name, e.g. as exported before restart
+     * @param names {"instances"|"volumes"|"images": {name: id}}
+     */
+    public void importNames(Map<String, Map<String, String>> names) {
+        for (InventoryCache cache : new InventoryCache[] {instances, volumes, images}) {
+            Map<String, String> ids = names.get(cache.getName());
+            if (ids == null) {
+                continue;
+            }
+            for (Map.Entry<String, String> entry : ids.entrySet()) {
+                cache.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Look up imported names again, with one describe per MAX_BATCH_SIZE
+     * names, and correct or drop the cached ids which changed since
+     * @param names {"instances"|"volumes"|"images": {name: id}} imported
+     * @return number of cached ids corrected or dropped
+     */
+    public int reconcile(Map<String, Map<String, String>> names) {
+        int changed = 0;
+        for (InventoryCache cache : new InventoryCache[] {instances, volumes, images}) {
+            Map<String, String> ids = names.get(cache.getName());
+            if (ids == null) {
+                continue;
+            }
+            List<String> keys = new ArrayList<String>(ids.keySet());
+            for (int from = 0; from < keys.size(); from += MAX_BATCH_SIZE) {
+                Set<String> batch = new LinkedHashSet<String>(keys.subList(
+                        from, Math.min(keys.size(), from + MAX_BATCH_SIZE)));
+                Map<String, String> found = cache == instances ? loadInstanceIds(batch) :
+                        cache == volumes ? loadVolumeIds(batch) : loadImageIds(batch);
+                for (String name : batch) {
+                    String id = found.get(name);
+                    if (!ids.get(name).equals(id)) {
+                        cache.replace(name, ids.get(name), id);
+                        changed++;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return hit/miss counters of each inventory cache
+     */
+    public Map<String, Map<String, Long>> getCacheStats() {
+        Map<String, Map<String, Long>> stats = new HashMap<String, Map<String, Long>>();
+        for (InventoryCache cache : new InventoryCache[] {instances, volumes, images}) {
+            stats.put(cache.getName(), cache.getStats());
+        }
+        return stats;
+    }
+
+    public void shutdown() {
+        instanceStatus.shutdown();
+        instanceIdByName.shutdown();
+        volumeIdByName.shutdown();
+        imageIdByName.shutdown();
+        macs.shutdown();
+    }
+
+    private static String cachedLookup(InventoryCache cache,
+                                       RequestCoalescer<String, String> coalescer,
+                                       String name) throws Exception {
+        String id = cache.get(name);
+        if (id == null) {
+            id = coalescer.get(name);
+            // misses are not cached, the name may be tagged any time
+            cache.put(name, id);
+        }
+        return id;
+    }
+
+    private List<Instance> describeInstances(Filter filter) {
+        List<Instance> found = new ArrayList<Instance>();
+        DescribeInstancesRequest request =
+                new DescribeInstancesRequest().withFilters(filter);
+        do {
+            DescribeInstancesResult result = ec2.describeInstances(request);
+            for (Reservation reservation : result.getReservations()) {
+                found.addAll(reservation.getInstances());
+            }
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+        return found;
+    }
+
+    private Map<String, String> loadInstanceStatus(Set<String> ids) {
+        Map<String, String> result = new HashMap<String, String>();
+        // filter instead of instance ids, so that one unknown id doesn't
+        // fail the lookups of all others
+        for (Instance instance : describeInstances(new Filter().
+                withName("instance-id").withValues(ids))) {
+            result.put(instance.getInstanceId(), instance.getState().getName());
+        }
+        return result;
+    }
+
+    private Map<String, String> loadInstanceIds(Set<String> names) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (Instance instance : describeInstances(new Filter().
+                withName("tag:Name").withValues(names))) {
+            putFirst(result, nameOf(instance.getTags()), instance.getInstanceId());
+        }
+        return result;
+    }
+
+    private Map<String, String> loadVolumeIds(Set<String> names) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (Volume volume : ec2.describeVolumes(new DescribeVolumesRequest().
+                withFilters(new Filter().withName("tag:Name").withValues(names))).
+                getVolumes()) {
+            putFirst(result, nameOf(volume.getTags()), volume.getVolumeId());
+        }
+        return result;
+    }
+
+    private Map<String, String> loadImageIds(Set<String> names) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (Image image : ec2.describeImages(new DescribeImagesRequest().
+                withFilters(new Filter().withName("tag:Name").withValues(names))).
+                getImages()) {
+            putFirst(result, nameOf(image.getTags()), image.getImageId());
+        }
+        return result;
+    }
+
+    private Map<String, HashMap<String, String>> loadMacs(Set<String> instanceIds) {
+        Map<String, HashMap<String, String>> result =
+                new HashMap<String, HashMap<String, String>>();
+        for (String instanceId : instanceIds) {
+            result.put(instanceId, new HashMap<String, String>());
+        }
+        // mac address is not part of instance description, but all
+        // interfaces of all instances come in one request
+        DescribeNetworkInterfacesRequest request = new DescribeNetworkInterfacesRequest().
+                withFilters(new Filter().withName("attachment.instance-id").
+                        withValues(instanceIds));
+        for (NetworkInterface networkInterface :
+                ec2.describeNetworkInterfaces(request).getNetworkInterfaces()) {
+            if (networkInterface.getAttachment() == null) {
+                continue;
+            }
+            HashMap<String, String> instanceMacs =
+                    result.get(networkInterface.getAttachment().getInstanceId());
+            if (instanceMacs != null) {
+                instanceMacs.put(networkInterface.getSubnetId(),
+                        networkInterface.getMacAddress());
+            }
+        }
+        return result;
+    }
+
+    static String nameOf(List<Tag> tags) {
+        for (Tag tag : tags) {
+            if ("Name".equals(tag.getKey())) {
+                return tag.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static void putFirst(Map<String, String> map, String key, String value) {
+        if (key != null && !map.containsKey(key)) {
+            map.put(key, value);
+        }
+    }
+}
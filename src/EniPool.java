@@ -0,0 +1,99 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.model.CreateNetworkInterfaceRequest;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteNetworkInterfaceRequest;
+import com.amazonaws.services.ec2.model.DescribeNetworkInterfacesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.ModifyNetworkInterfaceAttributeRequest;
+import com.amazonaws.services.ec2.model.NetworkInterface;
+import com.amazonaws.services.ec2.model.Tag;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of unattached network interfaces per subnet, e.g.
+ * -Dec2.eniPool=subnet-1:8,subnet-2:2-4
+ */
+public class EniPool extends ResourcePool {
+    private static final Log log = LogFactory.getLog(EniPool.class);
+
+    static final String POOL_TAG = "eni-pool";
+
+    public EniPool(RegionContext context, String spec, long intervalMillis, long ttlMillis) {
+        super(context.getEC2(), context.getRegion(), "eni", POOL_TAG, spec, intervalMillis, ttlMillis);
+    }
+
+    /**
+     * Retag a claimed interface and set its description in background
+     * @param networkInterfaceId
+     * @param description
+     */
+    public void markClaimed(final String networkInterfaceId, final String description) {
+        runInBackground(new Runnable() {
+            public void run() {
+                try {
+                    ec2.createTags(new CreateTagsRequest().withResources(networkInterfaceId).
+                            withTags(claimedTag()));
+                    if (description != null) {
+                        ec2.modifyNetworkInterfaceAttribute(
+                                new ModifyNetworkInterfaceAttributeRequest().
+                                        withNetworkInterfaceId(networkInterfaceId).
+                                        withDescription(description));
+                    }
+                } catch (AmazonServiceException e) {
+                    // already deleted along with its instance
+                    if (!isNotFound(e)) {
+                        throw e;
+                    }
+                }
+            }
+        });
+    }
+
+    protected List<String> create(String key, String zone, int count) {
+        List<String> ids = new ArrayList<String>();
+        // no bulk CreateNetworkInterface, keep what was created if one fails
+        try {
+            for (int i = 0; i < count; i++) {
+                ids.add(ec2.createNetworkInterface(new CreateNetworkInterfaceRequest().
+                        withSubnetId(key).withDescription("pooled")).
+                        getNetworkInterface().getNetworkInterfaceId());
+            }
+        } catch (RuntimeException e) {
+            log.warn("created " + ids.size() + " of " + count + " interfaces in " + key, e);
+        }
+        return ids;
+    }
+
+    protected void delete(String id) {
+        ec2.deleteNetworkInterface(new DeleteNetworkInterfaceRequest().withNetworkInterfaceId(id));
+    }
+
+    protected Map<String, Map<String, String>> findTagged(String tagKey, List<String> keys) {
+        Map<String, Map<String, String>> found = new HashMap<String, Map<String, String>>();
+        DescribeNetworkInterfacesRequest request = new DescribeNetworkInterfacesRequest().
+                withFilters(new Filter().withName("tag:" + tagKey).withValues(keys),
+                        new Filter().withName("status").withValues("available"));
+        for (NetworkInterface networkInterface :
+                ec2.describeNetworkInterfaces(request).getNetworkInterfaces()) {
+            for (Tag tag : networkInterface.getTagSet()) {
+                if (tagKey.equals(tag.getKey())) {
+                    Map<String, String> ids = found.get(tag.getValue());
+                    if (ids == null) {
+                        ids = new HashMap<String, String>();
+                        found.put(tag.getValue(), ids);
+                    }
+                    // the subnet, which is the key, binds it to a zone already
+                    ids.put(networkInterface.getNetworkInterfaceId(), null);
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,268 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DeleteNetworkInterfaceRequest;
+import com.amazonaws.services.ec2.model.DescribeNetworkInterfacesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.NetworkInterface;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background queue deleting network interfaces of terminated instances.
+ * An interface can only be deleted once the instance released it, so
+ * pending interfaces are checked in one batched DescribeNetworkInterfaces
+ * per tick, deleted as soon as they are "available", and retried with
+ * exponential backoff otherwise. Each enqueue gets a handle completed
+ * once all its interfaces are deleted or given up.
+ */
+public class EniReaper {
+    private static final Log log = LogFactory.getLog(EniReaper.class);
+
+    static final int MAX_IDS_PER_REQUEST = 200;
+    static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+    // give up an interface still in use after this long
+    static final long MAX_AGE_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * Interfaces of one enqueue not done yet
+     */
+    private static class Batch {
+        final OperationHandle<Void> handle;
+        int remaining;
+
+        Batch(OperationHandle<Void> handle, int remaining) {
+            this.handle = handle;
+            this.remaining = remaining;
+        }
+    }
+
+    private static class Item {
+        final long enqueuedAt;
+        int attempts = 0;
+        long nextAttemptAt;
+        final List<Batch> batches = new ArrayList<Batch>(1);
+
+        Item(long now) {
+            enqueuedAt = now;
+            nextAttemptAt = now;
+        }
+    }
+
+    private final AmazonEC2 ec2;
+    private final long intervalMillis;
+    private final Map<String, Item> pending = new LinkedHashMap<String, Item>();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private ScheduledExecutorService scheduler = null;
+
+    public EniReaper(AmazonEC2 ec2, long intervalMillis) {
+        this.ec2 = ec2;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Queue network interfaces to be deleted once they are released
+     * @param networkInterfaceIds
+     * @return handle completed once they are all deleted or given up
+     */
+    public OperationHandle<Void> enqueue(Collection<String> networkInterfaceIds) {
+        OperationHandle<Void> handle = new OperationHandle<Void>(
+                "reap-" + networkInterfaceIds);
+        if (networkInterfaceIds.isEmpty()) {
+            handle.complete(null);
+            return handle;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (pending) {
+            Batch batch = new Batch(handle, 0);
+            for (String id : networkInterfaceIds) {
+                Item item = pending.get(id);
+                if (item == null) {
+                    item = new Item(now);
+                    pending.put(id, item);
+                }
+                if (!item.batches.contains(batch)) {
+                    item.batches.add(batch);
+                    batch.remaining++;
+                }
+            }
+            ensureStarted();
+        }
+        return handle;
+    }
+
+    public int getQueueDepth() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return age of the oldest pending interface, 0 if none is pending
+     */
+    public long getOldestPendingAgeMillis() {
+        long oldest = Long.MAX_VALUE;
+        synchronized (pending) {
+            for (Item item : pending.values()) {
+                oldest = Math.min(oldest, item.enqueuedAt);
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    /**
+     * @return {"queue-depth":, "oldest-pending-age-millis":, "deleted":,
+     *         "abandoned":}
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        stats.put("queue-depth", (long) getQueueDepth());
+        stats.put("oldest-pending-age-millis", getOldestPendingAgeMillis());
+        stats.put("deleted", deleted.get());
+        stats.put("abandoned", abandoned.get());
+        return stats;
+    }
+
+    public void shutdown() {
+        synchronized (pending) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+    }
+
+    private void ensureStarted() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("eni-reaper"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    tick();
+                } catch (Throwable t) {
+                    log.warn("failed to reap network interfaces", t);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void tick() {
+        RateLimitedEC2.setBackground(true);
+        long now = System.currentTimeMillis();
+        List<String> due = new ArrayList<String>();
+        synchronized (pending) {
+            for (Map.Entry<String, Item> entry : pending.entrySet()) {
+                if (entry.getValue().nextAttemptAt <= now) {
+                    due.add(entry.getKey());
+                }
+            }
+        }
+
+        for (int from = 0; from < due.size(); from += MAX_IDS_PER_REQUEST) {
+            List<String> chunk = due.subList(from,
+                    Math.min(due.size(), from + MAX_IDS_PER_REQUEST));
+            reap(chunk);
+        }
+    }
+
+    private void reap(List<String> ids) {
+        // filter so that interfaces already gone don't fail the request
+        DescribeNetworkInterfacesRequest request = new DescribeNetworkInterfacesRequest().
+                withFilters(new Filter().withName("network-interface-id").withValues(ids));
+        Map<String, String> statuses = new HashMap<String, String>();
+        for (NetworkInterface networkInterface :
+                ec2.describeNetworkInterfaces(request).getNetworkInterfaces()) {
+            statuses.put(networkInterface.getNetworkInterfaceId(),
+                    networkInterface.getStatus());
+        }
+
+        for (String id : ids) {
+            String status = statuses.get(id);
+            if (status == null) {
+                // deleted along with the instance, or by someone else
+                done(id);
+            } else if ("available".equals(status)) {
+                delete(id);
+            } else {
+                retryLater(id);
+            }
+        }
+    }
+
+    private void delete(String id) {
+        try {
+            ec2.deleteNetworkInterface(
+                    new DeleteNetworkInterfaceRequest().withNetworkInterfaceId(id));
+            deleted.incrementAndGet();
+            log.debug("deleted interface:" + id);
+            done(id);
+        } catch (AmazonServiceException e) {
+            if ("InvalidNetworkInterfaceID.NotFound".equals(e.getErrorCode())) {
+                done(id);
+            } else {
+                retryLater(id);
+            }
+        }
+    }
+
+    private void done(String id) {
+        Item item;
+        synchronized (pending) {
+            item = pending.remove(id);
+        }
+        finished(item);
+    }
+
+    private void finished(Item item) {
+        if (item == null) {
+            return;
+        }
+        List<OperationHandle<Void>> completed = new ArrayList<OperationHandle<Void>>();
+        synchronized (pending) {
+            for (Batch batch : item.batches) {
+                if (--batch.remaining == 0) {
+                    completed.add(batch.handle);
+                }
+            }
+        }
+        for (OperationHandle<Void> handle : completed) {
+            handle.complete(null);
+        }
+    }
+
+    private void retryLater(String id) {
+        long now = System.currentTimeMillis();
+        synchronized (pending) {
+            Item item = pending.get(id);
+            if (item == null) {
+                return;
+            }
+            if (now - item.enqueuedAt > MAX_AGE_MILLIS) {
+                pending.remove(id);
+                abandoned.incrementAndGet();
+                log.warn("gave up deleting interface:" + id);
+                finished(item);
+                return;
+            }
+            item.attempts++;
+            long backoff = Math.min(MAX_BACKOFF_MILLIS,
+                    intervalMillis << Math.min(item.attempts, 16));
+            item.nextAttemptAt = now + backoff;
+        }
+    }
+}
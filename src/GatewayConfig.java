@@ -0,0 +1,82 @@
+import py4j.GatewayServer;
+
+/**
+ * Settings of the py4j gateway front-end, read from system properties
+ * prefixed with "gateway.", e.g. -Dgateway.port=25535
+ */
+public class GatewayConfig {
+    public static final int DEFAULT_PORT = 25535;
+
+    private int port = DEFAULT_PORT;
+    private String address = GatewayServer.DEFAULT_ADDRESS;
+    private int pythonPort = GatewayServer.DEFAULT_PYTHON_PORT;
+    // number of gateway listeners, on consecutive ports from port
+    private int listeners = 1;
+    private int readTimeoutMillis = GatewayServer.DEFAULT_READ_TIMEOUT;
+    private int maxConcurrentLookups = 64;
+    private int maxConcurrentMutations = 16;
+    private int maxConcurrentLaunches = 8;
+    // callers allowed to wait for a permit of each operation class
+    private int maxQueued = 32;
+    private long queueTimeoutMillis = 5 * 1000;
+
+    public static GatewayConfig fromSystemProperties() {
+        GatewayConfig config = new GatewayConfig();
+        config.port = Integer.getInteger("gateway.port", config.port);
+        config.address = System.getProperty("gateway.address", config.address);
+        config.pythonPort = Integer.getInteger("gateway.pythonPort", config.pythonPort);
+        config.listeners = Integer.getInteger("gateway.listeners", config.listeners);
+        config.readTimeoutMillis = Integer.getInteger("gateway.readTimeoutMillis",
+                config.readTimeoutMillis);
+        config.maxConcurrentLookups = Integer.getInteger("gateway.maxConcurrentLookups",
+                config.maxConcurrentLookups);
+        config.maxConcurrentMutations = Integer.getInteger("gateway.maxConcurrentMutations",
+                config.maxConcurrentMutations);
+        config.maxConcurrentLaunches = Integer.getInteger("gateway.maxConcurrentLaunches",
+                config.maxConcurrentLaunches);
+        config.maxQueued = Integer.getInteger("gateway.maxQueued", config.maxQueued);
+        config.queueTimeoutMillis = Long.getLong("gateway.queueTimeoutMillis",
+                config.queueTimeoutMillis);
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getPythonPort() {
+        return pythonPort;
+    }
+
+    public int getListeners() {
+        return listeners;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public int getMaxConcurrentLookups() {
+        return maxConcurrentLookups;
+    }
+
+    public int getMaxConcurrentMutations() {
+        return maxConcurrentMutations;
+    }
+
+    public int getMaxConcurrentLaunches() {
+        return maxConcurrentLaunches;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public long getQueueTimeoutMillis() {
+        return queueTimeoutMillis;
+    }
+}
@@ -0,0 +1,49 @@
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared watcher of EC2 instance states: all pending instance ids are
+ * batched into one DescribeInstances call per tick.
+ */
+public class InstanceStateWatcher extends StateWatcher<Instance> {
+    public InstanceStateWatcher(AmazonEC2 ec2, long intervalMillis) {
+        super(ec2, "instance", intervalMillis);
+    }
+
+    protected Map<String, Instance> describe(List<String> ids) {
+        Map<String, Instance> described = new HashMap<String, Instance>();
+        // filter instead of instance ids, so that a just launched id
+        // that is not visible yet doesn't fail the whole batch
+        DescribeInstancesRequest request = new DescribeInstancesRequest().
+                withFilters(new Filter().withName("instance-id").withValues(ids));
+        do {
+            DescribeInstancesResult result = ec2.describeInstances(request);
+            for (Reservation reservation : result.getReservations()) {
+                for (Instance instance : reservation.getInstances()) {
+                    described.put(instance.getInstanceId(), instance);
+                }
+            }
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+        return described;
+    }
+
+    protected String stateOf(Instance instance) {
+        return instance.getState().getName();
+    }
+
+    protected boolean isUnreachable(String targetState, String state) {
+        if ("terminated".equals(targetState)) {
+            return false;
+        }
+        return "shutting-down".equals(state) || "terminated".equals(state);
+    }
+}
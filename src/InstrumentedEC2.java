@@ -0,0 +1,40 @@
+import com.amazonaws.services.ec2.AmazonEC2;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Proxy of AmazonEC2 timing every call into the "ec2.<call>" timer, and
+ * counting its errors and throttles.
+ */
+public class InstrumentedEC2 implements InvocationHandler {
+    private final AmazonEC2 target;
+
+    private InstrumentedEC2(AmazonEC2 target) {
+        this.target = target;
+    }
+
+    public static AmazonEC2 wrap(AmazonEC2 target) {
+        return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(),
+                new Class<?>[] {AmazonEC2.class}, new InstrumentedEC2(target));
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        MetricTimer timer = Metrics.timer("ec2." + method.getName());
+        long start = System.nanoTime();
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            timer.recordError();
+            if (cause instanceof Exception && Metrics.isThrottle((Exception) cause)) {
+                timer.recordThrottle();
+            }
+            throw cause;
+        } finally {
+            timer.recordSince(start);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded name to id cache of EC2 resources. Entries are evicted least
+ * recently used first when the cache is full, and expire after ttl.
+ * Our own mutations write through it, so names we just tagged never need a
+ * round trip to EC2.
+ */
+public class InventoryCache {
+    private static class CacheEntry {
+        final String id;
+        final long expireAt;
+
+        CacheEntry(String id, long expireAt) {
+            this.id = id;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private final String name;
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, CacheEntry> entries;
+    // id -> name, to evict by id on delete
+    private final Map<String, String> names = new HashMap<String, String>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public InventoryCache(String name, int maxSize, long ttlMillis) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > InventoryCache.this.maxSize) {
+                    names.remove(eldest.getValue().id);
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param key resource name
+     * @return cached id, or null on miss or expired entry
+     */
+    public synchronized String get(String key) {
+        CacheEntry entry = entries.get(key);
+        if (entry != null && entry.expireAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            names.remove(entry.id);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.id;
+    }
+
+    public synchronized void put(String key, String id) {
+        if (key == null || id == null) {
+            return;
+        }
+        CacheEntry old = entries.put(key,
+                new CacheEntry(id, System.currentTimeMillis() + ttlMillis));
+        if (old != null) {
+            names.remove(old.id);
+        }
+        String oldKey = names.put(id, key);
+        if (oldKey != null && !oldKey.equals(key)) {
+            entries.remove(oldKey);
+        }
+    }
+
+    /**
+     * Evict the entry pointing to id, e.g. after the resource is deleted
+     * @param id
+     */
+    public synchronized void invalidateId(String id) {
+        String key = names.remove(id);
+        if (key != null) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Set the id of key only if it is still expectedId, e.g. to correct an
+     * entry without undoing a newer put
+     * @param key resource name
+     * @param expectedId
+     * @param id new id, null to remove the entry
+     */
+    public synchronized void replace(String key, String expectedId, String id) {
+        CacheEntry entry = entries.get(key);
+        if (entry == null || !entry.id.equals(expectedId)) {
+            return;
+        }
+        if (id == null) {
+            entries.remove(key);
+            names.remove(entry.id);
+        } else {
+            put(key, id);
+        }
+    }
+
+    /**
+     * @return {name: id} of the entries not expired
+     */
+    public synchronized Map<String, String> snapshot() {
+        long now = System.currentTimeMillis();
+        Map<String, String> snapshot = new HashMap<String, String>();
+        for (Map.Entry<String, CacheEntry> entry : entries.entrySet()) {
+            if (entry.getValue().expireAt > now) {
+                snapshot.put(entry.getKey(), entry.getValue().id);
+            }
+        }
+        return snapshot;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        names.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return {"size":, "hits":, "misses":, "evictions":}
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        stats.put("size", (long) size());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+}
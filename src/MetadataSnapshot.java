@@ -0,0 +1,237 @@
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Metadata of a region which rarely changes, saved to a gzipped file so a
+ * restarted server serves from it right away: the availability zones, the
+ * virtualization type of images, and the ids cached by name. What was
+ * loaded is checked against EC2 in background once the server started,
+ * and the file is rewritten every SAVE_MILLIS and on shutdown.
+ */
+public class MetadataSnapshot {
+    private static final Log log = LogFactory.getLog(MetadataSnapshot.class);
+
+    static final long SAVE_MILLIS = Long.getLong("ec2.metadata.saveMillis", 5 * 60 * 1000);
+
+    private static final String ZONE = "zone";
+    private static final String IMAGE_TYPE = "image-type";
+
+    private final RegionContext context;
+    private final File file;
+    // names loaded, to be reconciled
+    private Map<String, Map<String, String>> loadedNames =
+            new HashMap<String, Map<String, String>>();
+    private ScheduledExecutorService scheduler = null;
+    // one save at a time, they share the .tmp file
+    private final Object saveLock = new Object();
+
+    /**
+     * @param context to load into and save from
+     * @param file where the snapshot is saved, null to not save it
+     */
+    public MetadataSnapshot(RegionContext context, File file) {
+        this.context = context;
+        this.file = file;
+    }
+
+    /**
+     * Load the saved snapshot into the context
+     * @return whether there was one
+     */
+    public boolean load() {
+        if (file == null || !file.exists()) {
+            return false;
+        }
+        List<AvailabilityZone> zones = new ArrayList<AvailabilityZone>();
+        Map<String, String> imageTypes = new HashMap<String, String>();
+        Map<String, Map<String, String>> names = new HashMap<String, Map<String, String>>();
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+            try {
+                // "kind<tab>id<tab>name" per line, the name last as it may
+                // have spaces
+                for (String line; (line = in.readLine()) != null; ) {
+                    String[] fields = line.split("\t", 3);
+                    if (fields.length < 3) {
+                        continue;
+                    }
+                    if (ZONE.equals(fields[0])) {
+                        zones.add(new AvailabilityZone().withZoneName(fields[2]).
+                                withState(fields[1]));
+                    } else if (IMAGE_TYPE.equals(fields[0])) {
+                        imageTypes.put(fields[1], fields[2]);
+                    } else {
+                        Map<String, String> ids = names.get(fields[0]);
+                        if (ids == null) {
+                            ids = new HashMap<String, String>();
+                            names.put(fields[0], ids);
+                        }
+                        ids.put(fields[2], fields[1]);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warn("failed to load metadata snapshot " + file, e);
+            return false;
+        }
+
+        context.getPlacement().seed(zones);
+        context.rememberImageTypes(imageTypes);
+        context.getLookups().importNames(names);
+        synchronized (this) {
+            loadedNames = names;
+        }
+        log.info("loaded " + zones.size() + " zones, " + imageTypes.size() +
+                " images and " + count(names) + " names from " + file);
+        return true;
+    }
+
+    /**
+     * Reconcile what was loaded with EC2 in background, then save
+     * periodically
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("metadata-snapshot"));
+        scheduler.execute(new Runnable() {
+            public void run() {
+                reconcile();
+            }
+        });
+        if (file != null) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    save();
+                }
+            }, SAVE_MILLIS, SAVE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown() {
+        ScheduledExecutorService stopped;
+        synchronized (this) {
+            stopped = scheduler;
+            scheduler = null;
+        }
+        if (stopped != null) {
+            stopped.shutdownNow();
+            try {
+                stopped.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        save();
+    }
+
+    void reconcile() {
+        RateLimitedEC2.setBackground(true);
+        long start = System.currentTimeMillis();
+        try {
+            context.getPlacement().refresh();
+        } catch (Exception e) {
+            log.warn("failed to refresh availability zones", e);
+        }
+        Map<String, Map<String, String>> names;
+        synchronized (this) {
+            names = loadedNames;
+            loadedNames = new HashMap<String, Map<String, String>>();
+        }
+        try {
+            int changed = context.getLookups().reconcile(names);
+            log.info("reconciled " + count(names) + " names, " + changed + " changed, in " +
+                    (System.currentTimeMillis() - start) + "ms");
+        } catch (RuntimeException e) {
+            log.warn("failed to reconcile cached names", e);
+        }
+        save();
+    }
+
+    void save() {
+        if (file == null) {
+            return;
+        }
+        synchronized (saveLock) {
+            saveNow();
+        }
+    }
+
+    private void saveNow() {
+        try {
+            File tmp = new File(file.getPath() + ".tmp");
+            Writer out = new OutputStreamWriter(new GZIPOutputStream(
+                    new FileOutputStream(tmp)), "UTF-8");
+            try {
+                for (AvailabilityZone zone : context.getPlacement().getZones()) {
+                    write(out, ZONE, zone.getState(), zone.getZoneName());
+                }
+                for (Map.Entry<String, String> entry : context.getImageTypes().entrySet()) {
+                    write(out, IMAGE_TYPE, entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry<String, Map<String, String>> kind :
+                        context.getLookups().exportNames().entrySet()) {
+                    for (Map.Entry<String, String> entry : kind.getValue().entrySet()) {
+                        write(out, kind.getKey(), entry.getValue(), entry.getKey());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("failed to rename " + tmp + " to " + file);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("failed to save metadata snapshot " + file, e);
+        }
+    }
+
+    private static void write(Writer out, String kind, String id, String name)
+            throws IOException {
+        if (name.indexOf('\t') >= 0 || name.indexOf('\n') >= 0) {
+            return;
+        }
+        out.write(kind);
+        out.write('\t');
+        out.write(id);
+        out.write('\t');
+        out.write(name);
+        out.write('\n');
+    }
+
+    private static int count(Map<String, Map<String, String>> names) {
+        int count = 0;
+        for (Map<String, String> ids : names.values()) {
+            count += ids.size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histogram with error and throttle counters of one gateway
+ * method, EC2 API call or wait.
+ */
+public class MetricTimer implements MetricTimerMBean {
+    private final String name;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+
+    public MetricTimer(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the timed call started
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void record(long duration, TimeUnit unit) {
+        histogram.record(unit.toMicros(duration));
+    }
+
+    public void recordError() {
+        errors.incrementAndGet();
+    }
+
+    public void recordThrottle() {
+        throttles.incrementAndGet();
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    public long getMeanMicros() {
+        return histogram.getMeanMicros();
+    }
+
+    public long getP50Micros() {
+        return histogram.getPercentileMicros(0.5);
+    }
+
+    public long getP99Micros() {
+        return histogram.getPercentileMicros(0.99);
+    }
+
+    public long getMaxMicros() {
+        return histogram.getMaxMicros();
+    }
+
+    /**
+     * @return {"count":, "errors":, "throttles":, "mean-micros":,
+     *         "p50-micros":, "p99-micros":, "max-micros":}
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new HashMap<String, Long>();
+        snapshot.put("count", getCount());
+        snapshot.put("errors", getErrors());
+        snapshot.put("throttles", getThrottles());
+        snapshot.put("mean-micros", getMeanMicros());
+        snapshot.put("p50-micros", getP50Micros());
+        snapshot.put("p99-micros", getP99Micros());
+        snapshot.put("max-micros", getMaxMicros());
+        return snapshot;
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * JMX view of one MetricTimer
+ */
+public interface MetricTimerMBean {
+    long getCount();
+
+    long getErrors();
+
+    long getThrottles();
+
+    long getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+}
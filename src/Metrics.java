@@ -0,0 +1,149 @@
+import com.amazonaws.AmazonServiceException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process wide registry of metric timers. Timers are named by what they
+ * time: "gateway.<method>" for py4j calls, "ec2.<call>" for EC2 API calls,
+ * "wait.<what>" for time spent waiting. Each timer is registered in JMX
+ * under "EC2JavaServer:type=Timer,name=<name>". Gauges report current
+ * values, like effective rates.
+ */
+public class Metrics {
+    private static final Log log = LogFactory.getLog(Metrics.class);
+    private static final ConcurrentMap<String, MetricTimer> timers =
+            new ConcurrentHashMap<String, MetricTimer>();
+    private static final ConcurrentMap<String, Gauge> gauges =
+            new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * Current value of something, read when metrics are reported
+     */
+    public interface Gauge {
+        double value();
+    }
+
+    private Metrics() {
+    }
+
+    public static MetricTimer timer(String name) {
+        MetricTimer timer = timers.get(name);
+        if (timer != null) {
+            return timer;
+        }
+        MetricTimer created = new MetricTimer(name);
+        timer = timers.putIfAbsent(name, created);
+        if (timer != null) {
+            return timer;
+        }
+        register(created);
+        return created;
+    }
+
+    /**
+     * Register gauge under name, replacing any previous one
+     */
+    public static void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return {gauge-name: value} sorted by name
+     */
+    public static Map<String, Double> gaugeSnapshot() {
+        Map<String, Double> snapshot = new TreeMap<String, Double>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().value());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param e error of an EC2 call
+     * @return whether EC2 rejected the call for exceeding request rate
+     */
+    public static boolean isThrottle(Exception e) {
+        if (!(e instanceof AmazonServiceException)) {
+            return false;
+        }
+        String code = ((AmazonServiceException) e).getErrorCode();
+        return "RequestLimitExceeded".equals(code) || "Throttling".equals(code);
+    }
+
+    /**
+     * @return {timer-name: snapshot} sorted by name
+     */
+    public static Map<String, Map<String, Long>> snapshot() {
+        Map<String, Map<String, Long>> snapshot = new TreeMap<String, Map<String, Long>>();
+        for (MetricTimer timer : timers.values()) {
+            snapshot.put(timer.getName(), timer.snapshot());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Render all timers in Prometheus text exposition format
+     */
+    public static String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE ec2_server_latency_seconds summary\n");
+        Map<String, MetricTimer> sorted = new TreeMap<String, MetricTimer>(timers);
+        for (MetricTimer timer : sorted.values()) {
+            String label = "name=\"" + timer.getName() + "\"";
+            LatencyHistogram histogram = timer.getHistogram();
+            appendSample(text, "ec2_server_latency_seconds", label + ",quantile=\"0.5\"",
+                    seconds(histogram.getPercentileMicros(0.5)));
+            appendSample(text, "ec2_server_latency_seconds", label + ",quantile=\"0.99\"",
+                    seconds(histogram.getPercentileMicros(0.99)));
+            appendSample(text, "ec2_server_latency_seconds", label + ",quantile=\"1\"",
+                    seconds(histogram.getMaxMicros()));
+            appendSample(text, "ec2_server_latency_seconds_sum", label,
+                    seconds(histogram.getSumMicros()));
+            appendSample(text, "ec2_server_latency_seconds_count", label,
+                    String.valueOf(histogram.getCount()));
+        }
+        text.append("# TYPE ec2_server_errors_total counter\n");
+        for (MetricTimer timer : sorted.values()) {
+            appendSample(text, "ec2_server_errors_total",
+                    "name=\"" + timer.getName() + "\"", String.valueOf(timer.getErrors()));
+        }
+        text.append("# TYPE ec2_server_throttles_total counter\n");
+        for (MetricTimer timer : sorted.values()) {
+            appendSample(text, "ec2_server_throttles_total",
+                    "name=\"" + timer.getName() + "\"", String.valueOf(timer.getThrottles()));
+        }
+        text.append("# TYPE ec2_server_gauge gauge\n");
+        for (Map.Entry<String, Double> entry : gaugeSnapshot().entrySet()) {
+            appendSample(text, "ec2_server_gauge", "name=\"" + entry.getKey() + "\"",
+                    String.valueOf(entry.getValue()));
+        }
+        return text.toString();
+    }
+
+    private static void appendSample(StringBuilder text, String metric, String labels,
+                                     String value) {
+        text.append(metric).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return String.valueOf(micros / 1e6);
+    }
+
+    private static void register(MetricTimer timer) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(timer, new ObjectName(
+                    "EC2JavaServer:type=Timer,name=" + ObjectName.quote(timer.getName())));
+        } catch (Exception e) {
+            log.warn("failed to register timer " + timer.getName() + " in JMX", e);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of an asynchronous operation running inside the EC2 java server.
+ * It is returned to py4j client right away, which can poll it with
+ * isDone() or block on get().
+ */
+public class OperationHandle<T> {
+    private static final Log log = LogFactory.getLog(OperationHandle.class);
+
+    public static final String PENDING = "pending";
+    public static final String SUCCEEDED = "succeeded";
+    public static final String FAILED = "failed";
+
+    /**
+     * Callback run once the operation completes, on the completing thread.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        void onFailure(Exception error);
+    }
+
+    private final String id;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Callback<T>> callbacks = new ArrayList<Callback<T>>();
+    private volatile String state = PENDING;
+    private volatile T result;
+    private volatile Exception error;
+
+    public OperationHandle(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * @return result of the operation, or null if not succeeded yet
+     */
+    public T getResult() {
+        return result;
+    }
+
+    /**
+     * @return error message of failed operation, or null
+     */
+    public String getError() {
+        return error == null ? null : error.getMessage();
+    }
+
+    /**
+     * Block until the operation completes
+     * @return result of the operation
+     * @throws Exception the error the operation failed with
+     */
+    public T get() throws Exception {
+        long start = System.nanoTime();
+        done.await();
+        Metrics.timer("wait.operation").recordSince(start);
+        return report();
+    }
+
+    /**
+     * Block at most timeoutMillis until the operation completes
+     * @param timeoutMillis
+     * @return result of the operation
+     * @throws Exception the error the operation failed with, or on timeout
+     */
+    public T get(long timeoutMillis) throws Exception {
+        long start = System.nanoTime();
+        boolean completed = done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        Metrics.timer("wait.operation").recordSince(start);
+        if (!completed) {
+            throw new Exception("timed out to wait operation " + id);
+        }
+        return report();
+    }
+
+    public void addCallback(Callback<T> callback) {
+        synchronized (callbacks) {
+            if (!isDone()) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    public boolean complete(T value) {
+        synchronized (callbacks) {
+            if (isDone()) {
+                return false;
+            }
+            result = value;
+            state = SUCCEEDED;
+            done.countDown();
+        }
+        notifyAllCallbacks();
+        return true;
+    }
+
+    public boolean fail(Exception e) {
+        synchronized (callbacks) {
+            if (isDone()) {
+                return false;
+            }
+            error = e;
+            state = FAILED;
+            done.countDown();
+        }
+        notifyAllCallbacks();
+        return true;
+    }
+
+    private T report() throws Exception {
+        if (error != null) {
+            throw error;
+        }
+        return result;
+    }
+
+    private void notifyAllCallbacks() {
+        List<Callback<T>> pending;
+        synchronized (callbacks) {
+            pending = new ArrayList<Callback<T>>(callbacks);
+            callbacks.clear();
+        }
+        for (Callback<T> callback : pending) {
+            notify(callback);
+        }
+    }
+
+    private void notify(Callback<T> callback) {
+        try {
+            if (error != null) {
+                callback.onFailure(error);
+            } else {
+                callback.onSuccess(result);
+            }
+        } catch (RuntimeException e) {
+            log.warn("callback of operation " + id + " failed", e);
+        }
+    }
+}
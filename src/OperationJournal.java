@@ -0,0 +1,497 @@
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the long-running operations of a region, so
+ * that the ones a restart interrupted can be resumed instead of found by
+ * describing the whole account. An operation records its intent when it
+ * begins, its progress as named values, e.g. the id of the instance run,
+ * and its end. Records go to a memory-mapped file and a record is durable
+ * once appended: appenders waiting together share one force of the
+ * mapping. The file is compacted to the operations not ended whenever it
+ * is full, and when opened, into a file of INITIAL_SIZE bytes, or twice
+ * as many as needed for the live operations if more.
+ * <p>
+ * Each record is its length, its CRC32 and its bytes; a torn record at
+ * the tail is ignored on replay.
+ */
+public class OperationJournal {
+    private static final Log log = LogFactory.getLog(OperationJournal.class);
+
+    static final int INITIAL_SIZE = Integer.getInteger("ec2.journal.sizeBytes", 4 * 1024 * 1024);
+    // whether appends wait for the mapping to be forced to disk
+    static final boolean SYNC = Boolean.parseBoolean(System.getProperty("ec2.journal.sync", "true"));
+
+    // values in modified UTF-8 of at most 64KB, only read on replay
+    private static final byte BEGIN_UTF = 1;
+    private static final byte STEP_UTF = 2;
+    private static final byte END = 3;
+    // values as their UTF-8 length and bytes
+    private static final byte BEGIN = 4;
+    private static final byte STEP = 5;
+    // length and CRC32
+    private static final int HEADER = 8;
+
+    /**
+     * An operation not ended yet
+     */
+    public static class Entry {
+        private final long id;
+        private final String kind;
+        private final Map<String, String> values = new LinkedHashMap<String, String>();
+
+        Entry(long id, String kind) {
+            this.id = id;
+            this.kind = kind;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        /**
+         * @param key of an argument or a step
+         * @return its value, null if not recorded
+         */
+        public synchronized String get(String key) {
+            return values.get(key);
+        }
+
+        synchronized void put(String key, String value) {
+            values.put(key, value);
+        }
+
+        synchronized Map<String, String> getValues() {
+            return new LinkedHashMap<String, String>(values);
+        }
+
+        public String toString() {
+            return kind + "-" + id + getValues();
+        }
+    }
+
+    /**
+     * Resumes an interrupted operation, and ends its entry once done
+     */
+    public interface Recovery {
+        void resume(Entry entry) throws Exception;
+    }
+
+    private final File file;
+    private final Map<Long, Entry> live = new LinkedHashMap<Long, Entry>();
+    private final List<Entry> interrupted = new ArrayList<Entry>();
+    private long nextId = 1;
+    private MappedByteBuffer buffer = null;
+    // group commit, guarded by this
+    private long appended = 0;
+    private long durable = 0;
+    private boolean forcing = false;
+    private long syncs = 0;
+    private long compactions = 0;
+
+    /**
+     * Open the journal and read the operations left unfinished
+     * @param file of the journal, null to only keep it in memory
+     */
+    public OperationJournal(File file) {
+        this.file = file;
+        if (file == null) {
+            return;
+        }
+        try {
+            if (file.exists()) {
+                replay();
+            }
+            compact(0);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to open journal " + file, e);
+        }
+        interrupted.addAll(live.values());
+        if (!interrupted.isEmpty()) {
+            log.info(interrupted.size() + " unfinished operations in " + file);
+        }
+    }
+
+    /**
+     * Record the start of an operation
+     * @param kind of operation, picks its recovery
+     * @param arguments what its recovery needs
+     * @return entry to record progress on and end
+     */
+    public Entry begin(String kind, Map<String, String> arguments) {
+        Entry entry;
+        long sequence;
+        synchronized (this) {
+            entry = new Entry(nextId++, kind);
+            for (Map.Entry<String, String> argument : arguments.entrySet()) {
+                if (argument.getValue() != null) {
+                    entry.put(argument.getKey(), argument.getValue());
+                }
+            }
+            live.put(entry.getId(), entry);
+            sequence = append(encodeBegin(entry));
+        }
+        sync(sequence);
+        return entry;
+    }
+
+    /**
+     * Record a step of an operation
+     * @param entry
+     * @param key name of the step
+     * @param value
+     */
+    public void record(Entry entry, String key, String value) {
+        long sequence;
+        synchronized (this) {
+            if (!live.containsKey(entry.getId())) {
+                return;
+            }
+            entry.put(key, value);
+            sequence = append(encode(STEP, entry.getId(), key, value));
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Record the end of an operation, successful or not. It is not waited
+     * for: an end lost in a crash only resumes an operation done already.
+     * @param entry
+     */
+    public synchronized void end(Entry entry) {
+        if (live.remove(entry.getId()) == null) {
+            return;
+        }
+        append(encode(END, entry.getId(), null, null));
+    }
+
+    /**
+     * End entry once operation completes, whether it succeeds or not
+     * @param entry
+     * @param operation
+     * @return operation
+     */
+    public <T> OperationHandle<T> endWhenDone(final Entry entry, OperationHandle<T> operation) {
+        operation.addCallback(new OperationHandle.Callback<T>() {
+            public void onSuccess(T result) {
+                end(entry);
+            }
+
+            public void onFailure(Exception error) {
+                end(entry);
+            }
+        });
+        return operation;
+    }
+
+    /**
+     * @param keysAndValues key, value, key, value... null values are left out
+     * @return arguments of begin
+     */
+    public static Map<String, String> arguments(String... keysAndValues) {
+        Map<String, String> arguments = new LinkedHashMap<String, String>();
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            arguments.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return arguments;
+    }
+
+    /**
+     * Hand the operations found unfinished when opened to recovery, once
+     * @param recovery
+     * @return number of operations resumed
+     */
+    public int resume(Recovery recovery) {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<Entry>(interrupted);
+            interrupted.clear();
+        }
+        for (Entry entry : entries) {
+            log.info("resuming " + entry);
+            try {
+                recovery.resume(entry);
+            } catch (Exception e) {
+                log.warn("failed to resume " + entry, e);
+                end(entry);
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * @return {"live":, "appended":, "syncs":, "compactions":,
+     *         "bytes-used":, "bytes-capacity":}
+     */
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        stats.put("live", (long) live.size());
+        stats.put("appended", appended);
+        stats.put("syncs", syncs);
+        stats.put("compactions", compactions);
+        stats.put("bytes-used", buffer == null ? 0L : buffer.position());
+        stats.put("bytes-capacity", buffer == null ? 0L : buffer.capacity());
+        return stats;
+    }
+
+    /**
+     * Force what was appended, to close the journal
+     */
+    public void shutdown() {
+        long sequence;
+        synchronized (this) {
+            sequence = appended;
+        }
+        sync(sequence);
+    }
+
+    /**
+     * @return sequence number of the record appended
+     */
+    private long append(byte[] record) {
+        appended++;
+        if (buffer == null) {
+            return appended;
+        }
+        if (buffer.remaining() < HEADER + record.length) {
+            try {
+                compact(HEADER + record.length);
+            } catch (IOException e) {
+                throw new IllegalStateException("failed to compact journal " + file, e);
+            }
+            // the live entries, with what record says, were just forced
+            durable = appended;
+            return appended;
+        }
+        write(record);
+        return appended;
+    }
+
+    private void write(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+        // length last, so a record is only visible once complete
+        buffer.putInt(start, record.length);
+    }
+
+    /**
+     * Wait until the record of sequence number is on disk. The first
+     * waiter forces everything appended so far, the others wait for it.
+     */
+    private void sync(long sequence) {
+        if (buffer == null || !SYNC) {
+            return;
+        }
+        MappedByteBuffer forced;
+        long target;
+        synchronized (this) {
+            while (durable < sequence && forcing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (durable >= sequence) {
+                return;
+            }
+            forcing = true;
+            forced = buffer;
+            target = appended;
+        }
+        try {
+            forced.force();
+        } finally {
+            synchronized (this) {
+                forcing = false;
+                durable = Math.max(durable, target);
+                syncs++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the live entries, into a new file
+     * which replaces the old one
+     * @param reserve bytes to leave free at least
+     */
+    private void compact(int reserve) throws IOException {
+        while (forcing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted compacting journal " + file);
+            }
+        }
+        List<byte[]> records = new ArrayList<byte[]>();
+        long used = reserve;
+        for (Entry entry : live.values()) {
+            byte[] record = encodeBegin(entry);
+            records.add(record);
+            used += HEADER + record.length;
+        }
+        int size = INITIAL_SIZE;
+        while (size < 2 * used) {
+            size *= 2;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        tmp.delete();
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        MappedByteBuffer compacted;
+        try {
+            out.setLength(size);
+            compacted = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            out.close();
+        }
+        MappedByteBuffer previous = buffer;
+        buffer = compacted;
+        for (byte[] record : records) {
+            write(record);
+        }
+        buffer.force();
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                buffer = previous;
+                throw new IOException("failed to rename " + tmp + " to " + file);
+            }
+        }
+        compactions++;
+        log.debug("compacted journal " + file + " to " + live.size() + " operations");
+    }
+
+    private void replay() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        MappedByteBuffer mapped;
+        try {
+            mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        } finally {
+            in.close();
+        }
+        int records = 0;
+        while (mapped.remaining() >= HEADER) {
+            int length = mapped.getInt();
+            int checksum = mapped.getInt();
+            if (length <= 0 || length > mapped.remaining()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            mapped.get(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                log.warn("torn record at " + (mapped.position() - length - HEADER) +
+                        " of journal " + file);
+                break;
+            }
+            apply(record);
+            records++;
+        }
+        log.debug("replayed " + records + " records of journal " + file);
+    }
+
+    private void apply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        long id = in.readLong();
+        nextId = Math.max(nextId, id + 1);
+        boolean utf = type == BEGIN_UTF || type == STEP_UTF;
+        if (type == BEGIN || type == BEGIN_UTF) {
+            Entry entry = new Entry(id, read(in, utf));
+            for (int count = in.readInt(); count > 0; count--) {
+                entry.put(read(in, utf), read(in, utf));
+            }
+            live.put(id, entry);
+        } else if (type == STEP || type == STEP_UTF) {
+            Entry entry = live.get(id);
+            if (entry != null) {
+                entry.put(read(in, utf), read(in, utf));
+            }
+        } else if (type == END) {
+            live.remove(id);
+        }
+    }
+
+    private static byte[] encodeBegin(Entry entry) {
+        Map<String, String> values = entry.getValues();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(BEGIN);
+            out.writeLong(entry.getId());
+            write(out, entry.getKind());
+            out.writeInt(values.size());
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                write(out, value.getKey());
+                write(out, value.getValue());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encode(byte type, long id, String key, String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeLong(id);
+            if (key != null) {
+                write(out, key);
+                write(out, value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * write value without the 64KB limit of writeUTF, e.g. the ids of a
+     * batch launch
+     */
+    private static void write(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String read(DataInputStream in, boolean utf) throws IOException {
+        if (utf) {
+            return in.readUTF();
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,439 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the availability zones launches go to. It tracks the state of
+ * every zone of the region and, per zone, recent launch success and time
+ * to running as moving averages. A launch without subnet tries the zones
+ * in order of preference, and moves on to the next one right away on a
+ * capacity error, which also takes the zone out of rotation for a
+ * cooldown, for that instance type only. Zones are described again every
+ * REFRESH_MILLIS by one caller while the others keep using the zones
+ * known, and never under the scheduler's lock. By default launches prefer
+ * a stable home zone, where the volumes created without target instance
+ * go as well; with -Dec2.placement.spread=true they rotate over the
+ * healthy zones weighted by their record. Volumes for an instance go to
+ * the zone of the instance.
+ */
+public class PlacementScheduler {
+    private static final Log log = LogFactory.getLog(PlacementScheduler.class);
+
+    static final boolean SPREAD = Boolean.getBoolean("ec2.placement.spread");
+    static final long REFRESH_MILLIS = Long.getLong("ec2.placement.refreshMillis", 5 * 60 * 1000);
+    static final long COOLDOWN_MILLIS = Long.getLong("ec2.placement.cooldownMillis", 5 * 60 * 1000);
+    // weight of the latest launch in the moving averages
+    static final double DECAY = 0.2;
+    static final int MAX_KNOWN_INSTANCES = 10000;
+
+    private static class Zone {
+        final String name;
+        AvailabilityZone description;
+        double success = 1.0;
+        double latencySeconds = 0;
+        // instance type -> end of its cooldown
+        final Map<String, Long> coolUntil = new HashMap<String, Long>();
+        // smooth weighted round robin
+        double credit = 0;
+        long launches = 0;
+        long failures = 0;
+        long capacityErrors = 0;
+
+        Zone(String name) {
+            this.name = name;
+        }
+
+        boolean isAvailable() {
+            return "available".equals(description.getState());
+        }
+
+        double weight() {
+            return success / (1 + latencySeconds);
+        }
+
+        long coolUntil(String instanceType) {
+            Long until = coolUntil.get(instanceType);
+            return until == null ? 0 : until;
+        }
+    }
+
+    private static final Comparator<Zone> BY_WEIGHT = new Comparator<Zone>() {
+        public int compare(Zone a, Zone b) {
+            return Double.compare(b.weight(), a.weight());
+        }
+    };
+
+    private final AmazonEC2 ec2;
+    private final boolean spread;
+    private final Map<String, Zone> zones = new LinkedHashMap<String, Zone>();
+    private String home = null;
+    private long refreshedAt = 0;
+    private boolean refreshing = false;
+    // zone of the instances launched or looked up lately
+    private final Map<String, String> instanceZones = new InstanceZones();
+
+    private static class InstanceZones extends LinkedHashMap<String, String> {
+        private static final long serialVersionUID = 1L;
+
+        InstanceZones() {
+            super(16, 0.75f, true);
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_KNOWN_INSTANCES;
+        }
+    }
+
+    public PlacementScheduler(AmazonEC2 ec2) {
+        this(ec2, SPREAD);
+    }
+
+    /**
+     * @param ec2
+     * @param spread whether to rotate launches over healthy zones
+     */
+    public PlacementScheduler(AmazonEC2 ec2, boolean spread) {
+        this.ec2 = ec2;
+        this.spread = spread;
+    }
+
+    /**
+     * @return the first available zone, kept as long as it is available
+     */
+    public AvailabilityZone getHomeZone() throws Exception {
+        refreshIfStale();
+        synchronized (this) {
+            return zones.get(home).description;
+        }
+    }
+
+    /**
+     * @param instanceType to launch
+     * @return names of the zones to try for a launch, in order; zones
+     *         cooling down after a capacity error for instanceType come last
+     */
+    public List<String> candidates(String instanceType) throws Exception {
+        refreshIfStale();
+        synchronized (this) {
+            return order(instanceType);
+        }
+    }
+
+    private List<String> order(final String instanceType) {
+        long now = System.currentTimeMillis();
+        List<Zone> healthy = new ArrayList<Zone>();
+        List<Zone> cooling = new ArrayList<Zone>();
+        for (Zone zone : zones.values()) {
+            if (!zone.isAvailable()) {
+                continue;
+            }
+            if (zone.coolUntil(instanceType) > now) {
+                cooling.add(zone);
+            } else {
+                healthy.add(zone);
+            }
+        }
+        Collections.sort(healthy, BY_WEIGHT);
+        Zone first = null;
+        if (spread && !healthy.isEmpty()) {
+            double total = 0;
+            for (Zone zone : healthy) {
+                zone.credit += zone.weight();
+                total += zone.weight();
+                if (first == null || zone.credit > first.credit) {
+                    first = zone;
+                }
+            }
+            first.credit -= total;
+        } else if (healthy.contains(zones.get(home))) {
+            first = zones.get(home);
+        }
+
+        List<String> names = new ArrayList<String>();
+        if (first != null) {
+            names.add(first.name);
+        }
+        for (Zone zone : healthy) {
+            if (zone != first) {
+                names.add(zone.name);
+            }
+        }
+        Collections.sort(cooling, new Comparator<Zone>() {
+            public int compare(Zone a, Zone b) {
+                long x = a.coolUntil(instanceType);
+                long y = b.coolUntil(instanceType);
+                return x < y ? -1 : x == y ? 0 : 1;
+            }
+        });
+        for (Zone zone : cooling) {
+            names.add(zone.name);
+        }
+        return names;
+    }
+
+    /**
+     * Run instances in the first candidate zone with capacity
+     * @param request without placement
+     * @return reservation of the instances
+     */
+    public Reservation run(RunInstancesRequest request) throws Exception {
+        AmazonServiceException last = null;
+        for (String zone : candidates(request.getInstanceType())) {
+            request.setPlacement(new Placement().withAvailabilityZone(zone));
+            try {
+                Reservation reservation = ec2.runInstances(request).getReservation();
+                remember(reservation);
+                return reservation;
+            } catch (AmazonServiceException e) {
+                if (!isCapacityError(e)) {
+                    throw e;
+                }
+                log.warn("no capacity in " + zone + ": " + e.getErrorMessage());
+                noCapacity(zone, request.getInstanceType());
+                last = e;
+            }
+        }
+        if (last == null) {
+            throw new Exception("No availability zones");
+        }
+        throw last;
+    }
+
+    /**
+     * @return whether e tells the zone can't run the request now, so
+     *         another zone may
+     */
+    static boolean isCapacityError(AmazonServiceException e) {
+        String code = e.getErrorCode();
+        return code != null && (code.startsWith("Insufficient") && code.endsWith("Capacity") ||
+                code.equals("Unsupported"));
+    }
+
+    /**
+     * Record the zones of instances just run
+     */
+    public synchronized void remember(Reservation reservation) {
+        for (Instance instance : reservation.getInstances()) {
+            remember(instance);
+        }
+    }
+
+    public synchronized void remember(Instance instance) {
+        if (instance.getPlacement() != null) {
+            instanceZones.put(instance.getInstanceId(),
+                    instance.getPlacement().getAvailabilityZone());
+        }
+    }
+
+    /**
+     * @param instanceId
+     * @return zone of the instance, to co-locate its volumes
+     */
+    public String zoneOf(String instanceId) throws Exception {
+        synchronized (this) {
+            String zone = instanceZones.get(instanceId);
+            if (zone != null) {
+                return zone;
+            }
+        }
+        for (Reservation reservation : ec2.describeInstances(new DescribeInstancesRequest().
+                withInstanceIds(instanceId)).getReservations()) {
+            for (Instance instance : reservation.getInstances()) {
+                remember(instance);
+                return instance.getPlacement().getAvailabilityZone();
+            }
+        }
+        throw new Exception("no instance " + instanceId);
+    }
+
+    /**
+     * Record a launch in zone which got running
+     * @param zone
+     * @param startNanos when it was run
+     */
+    public synchronized void launched(String zone, long startNanos) {
+        Zone record = zones.get(zone);
+        if (record == null) {
+            return;
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        record.launches++;
+        record.success = (1 - DECAY) * record.success + DECAY;
+        record.latencySeconds = record.launches == 1 ? seconds :
+                (1 - DECAY) * record.latencySeconds + DECAY * seconds;
+    }
+
+    /**
+     * Record a launch in zone which never got running
+     */
+    public synchronized void failed(String zone) {
+        Zone record = zones.get(zone);
+        if (record == null) {
+            return;
+        }
+        record.failures++;
+        record.success = (1 - DECAY) * record.success;
+    }
+
+    private synchronized void noCapacity(String zone, String instanceType) {
+        failed(zone);
+        Zone record = zones.get(zone);
+        if (record != null) {
+            record.capacityErrors++;
+            record.coolUntil.put(instanceType, System.currentTimeMillis() + COOLDOWN_MILLIS);
+        }
+    }
+
+    /**
+     * @return {zone: {"available":, "success-percent":, "latency-millis":,
+     *         "cooldown-millis":, "launches":, "failures":,
+     *         "capacity-errors":}}, cooldown of the instance type cooling
+     *         down longest
+     */
+    public synchronized Map<String, Map<String, Long>> getStats() {
+        long now = System.currentTimeMillis();
+        Map<String, Map<String, Long>> stats = new HashMap<String, Map<String, Long>>();
+        for (Zone zone : zones.values()) {
+            Map<String, Long> zoneStats = new HashMap<String, Long>();
+            zoneStats.put("available", zone.isAvailable() ? 1L : 0L);
+            zoneStats.put("success-percent", Math.round(zone.success * 100));
+            zoneStats.put("latency-millis", Math.round(zone.latencySeconds * 1000));
+            long coolUntil = 0;
+            for (long until : zone.coolUntil.values()) {
+                coolUntil = Math.max(coolUntil, until);
+            }
+            zoneStats.put("cooldown-millis", Math.max(0, coolUntil - now));
+            zoneStats.put("launches", zone.launches);
+            zoneStats.put("failures", zone.failures);
+            zoneStats.put("capacity-errors", zone.capacityErrors);
+            stats.put(zone.name, zoneStats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return zones known, without asking EC2
+     */
+    public synchronized List<AvailabilityZone> getZones() {
+        List<AvailabilityZone> known = new ArrayList<AvailabilityZone>();
+        for (Zone zone : zones.values()) {
+            known.add(zone.description);
+        }
+        return known;
+    }
+
+    /**
+     * Start from zones described earlier, e.g. before restart, unless the
+     * zones are known already. They count as fresh until refresh().
+     * @param described
+     */
+    public synchronized void seed(List<AvailabilityZone> described) {
+        if (home != null || described.isEmpty()) {
+            return;
+        }
+        try {
+            update(described);
+        } catch (Exception e) {
+            // none available, the first launch will describe them
+            return;
+        }
+        refreshedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Describe the zones now
+     */
+    public void refresh() throws Exception {
+        List<AvailabilityZone> described;
+        try {
+            described = ec2.describeAvailabilityZones().getAvailabilityZones();
+        } catch (AmazonServiceException e) {
+            synchronized (this) {
+                if (home == null) {
+                    throw e;
+                }
+                // keep the zones known, try again next time
+                log.warn("failed to refresh availability zones", e);
+                refreshedAt = System.currentTimeMillis();
+                return;
+            }
+        }
+        synchronized (this) {
+            refreshedAt = System.currentTimeMillis();
+            update(described);
+        }
+    }
+
+    private void refreshIfStale() throws Exception {
+        boolean known;
+        synchronized (this) {
+            if (home != null && (refreshing ||
+                    System.currentTimeMillis() - refreshedAt < REFRESH_MILLIS)) {
+                return;
+            }
+            // until first described, every caller needs the zones
+            known = home != null;
+            refreshing = known;
+        }
+        try {
+            refresh();
+        } finally {
+            if (known) {
+                synchronized (this) {
+                    refreshing = false;
+                }
+            }
+        }
+    }
+
+    private void update(List<AvailabilityZone> described) throws Exception {
+        Map<String, AvailabilityZone> byName = new HashMap<String, AvailabilityZone>();
+        for (AvailabilityZone description : described) {
+            byName.put(description.getZoneName(), description);
+            Zone zone = zones.get(description.getZoneName());
+            if (zone == null) {
+                zone = new Zone(description.getZoneName());
+                zones.put(zone.name, zone);
+            }
+            zone.description = description;
+        }
+        for (Zone zone : zones.values()) {
+            if (!byName.containsKey(zone.name)) {
+                zone.description = new AvailabilityZone().withZoneName(zone.name).
+                        withState("unavailable");
+            }
+        }
+
+        if (home == null || !zones.get(home).isAvailable()) {
+            String previous = home;
+            home = null;
+            for (Zone zone : zones.values()) {
+                if (zone.isAvailable()) {
+                    home = zone.name;
+                    break;
+                }
+            }
+            if (home == null) {
+                home = previous;
+                throw new Exception("No availability zones");
+            }
+            log.debug("home zone:" + home);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Listener of a state watcher's batched polls. Its ids are described along
+ * with the ones being waited for, in the same requests of each tick.
+ */
+public interface PollListener<T> {
+    /**
+     * @return ids to describe on the next tick
+     */
+    Collection<String> getPolledIds();
+
+    /**
+     * Called on the watcher thread after each tick, should return quickly
+     * @param ids the ids of getPolledIds() that were described
+     * @param described {id: description}, ids missing were not found
+     */
+    void onPolled(Collection<String> ids, Map<String, T> described);
+}
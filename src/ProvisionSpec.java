@@ -0,0 +1,133 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What EC2JavaServer.provision sets up for one VM: the instance, the
+ * subnets of its extra network interfaces, and the volumes attached to it.
+ * Built by chaining, e.g. from python:
+ * <pre>
+ * spec = gateway.jvm.ProvisionSpec(name, image_id).withDataSubnet(data) \
+ *     .withNetwork(api, "api-network").withVolume("disk1", 10, "/dev/sdf") \
+ *     .withSnapshotVolume("disk2", openstack_snapshot_id, "/dev/sdg")
+ * </pre>
+ */
+public class ProvisionSpec {
+    /**
+     * Volume to attach, blank of size, or from snapshot
+     */
+    public static class VolumeSpec {
+        final String name;
+        final Long size;
+        final String openstackSnapshotId;
+        final String device;
+
+        VolumeSpec(String name, Long size, String openstackSnapshotId, String device) {
+            this.name = name;
+            this.size = size;
+            this.openstackSnapshotId = openstackSnapshotId;
+            this.device = device;
+        }
+    }
+
+    private final String name;
+    private final String imageId;
+    private String dataSubnetId = null;
+    private String userData = null;
+    private final List<String[]> networks = new ArrayList<String[]>();
+    private final List<VolumeSpec> volumes = new ArrayList<VolumeSpec>();
+
+    /**
+     * @param name instance name as tag
+     * @param imageId AMI image id
+     */
+    public ProvisionSpec(String name, String imageId) {
+        this.name = name;
+        this.imageId = imageId;
+    }
+
+    /**
+     * @param subnetId subnet of the primary interface
+     */
+    public ProvisionSpec withDataSubnet(String subnetId) {
+        this.dataSubnetId = subnetId;
+        return this;
+    }
+
+    public ProvisionSpec withUserData(String userData) {
+        this.userData = userData;
+        return this;
+    }
+
+    /**
+     * Add an interface in subnet, at the next device index after the
+     * primary one
+     * @param subnetId
+     * @param description of the interface
+     */
+    public ProvisionSpec withNetwork(String subnetId, String description) {
+        networks.add(new String[] {subnetId, description});
+        return this;
+    }
+
+    /**
+     * Add a blank volume
+     * @param name volume name as tag
+     * @param size in GiB
+     * @param device e.g. "/dev/sdf"
+     */
+    public ProvisionSpec withVolume(String name, long size, String device) {
+        checkVolumeName(name);
+        volumes.add(new VolumeSpec(name, size, null, device));
+        return this;
+    }
+
+    /**
+     * Add a volume from snapshot
+     * @param name volume name as tag
+     * @param openstackSnapshotId OpenStack id of the snapshot
+     * @param device e.g. "/dev/sdf"
+     */
+    public ProvisionSpec withSnapshotVolume(String name, String openstackSnapshotId,
+                                            String device) {
+        checkVolumeName(name);
+        volumes.add(new VolumeSpec(name, null, openstackSnapshotId, device));
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getImageId() {
+        return imageId;
+    }
+
+    public String getDataSubnetId() {
+        return dataSubnetId;
+    }
+
+    public String getUserData() {
+        return userData;
+    }
+
+    /**
+     * @return {subnet id, description} of each extra interface, in device
+     *         index order
+     */
+    public List<String[]> getNetworks() {
+        return Collections.unmodifiableList(networks);
+    }
+
+    public List<VolumeSpec> getVolumes() {
+        return Collections.unmodifiableList(volumes);
+    }
+
+    private void checkVolumeName(String name) {
+        for (VolumeSpec volume : volumes) {
+            if (volume.name.equals(name)) {
+                throw new IllegalArgumentException("duplicate volume " + name);
+            }
+        }
+    }
+}
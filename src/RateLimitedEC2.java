@@ -0,0 +1,155 @@
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.ec2.AmazonEC2;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Proxy of AmazonEC2 pacing calls with one token bucket per API category:
+ * "describe", "mutate" and "run" (run/start/stop/terminate instances).
+ * Throttled calls slow their bucket down and are retried with jittered
+ * exponential backoff. Threads doing background work, like polling and
+ * reaping, mark themselves with setBackground and yield to interactive
+ * calls.
+ */
+public class RateLimitedEC2 implements InvocationHandler {
+    public static final String DESCRIBE = "describe";
+    public static final String MUTATE = "mutate";
+    public static final String RUN = "run";
+
+    static final int MAX_THROTTLE_RETRIES = Integer.getInteger("ec2.rate.maxRetries", 5);
+    static final long BASE_BACKOFF_MILLIS = 200;
+    static final long MAX_BACKOFF_MILLIS = 20 * 1000;
+
+    private static final ThreadLocal<Boolean> background = new ThreadLocal<Boolean>();
+    private static final Random random = new Random();
+
+    /**
+     * SDK retry policy leaving throttled calls to the rate limiter, so they
+     * are not retried at full speed underneath it, and capacity errors to
+     * the placement scheduler, which tries another zone instead
+     */
+    public static final RetryPolicy RETRY_POLICY = new RetryPolicy(
+            new RetryPolicy.RetryCondition() {
+                public boolean shouldRetry(AmazonWebServiceRequest request,
+                                           AmazonClientException exception,
+                                           int retriesAttempted) {
+                    return !Metrics.isThrottle(exception) &&
+                            !(exception instanceof AmazonServiceException &&
+                                    PlacementScheduler.isCapacityError(
+                                            (AmazonServiceException) exception)) &&
+                            PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(
+                                    request, exception, retriesAttempted);
+                }
+            }, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY,
+            PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true);
+
+    private final AmazonEC2 target;
+    private final Map<String, TokenBucket> buckets = new HashMap<String, TokenBucket>();
+
+    private RateLimitedEC2(AmazonEC2 target, String region) {
+        this.target = target;
+        addBucket(DESCRIBE, region, Double.parseDouble(
+                System.getProperty("ec2.rate.describe", "20")));
+        addBucket(MUTATE, region, Double.parseDouble(
+                System.getProperty("ec2.rate.mutate", "10")));
+        addBucket(RUN, region, Double.parseDouble(
+                System.getProperty("ec2.rate.run", "5")));
+    }
+
+    public static AmazonEC2 wrap(AmazonEC2 target, String region) {
+        return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(),
+                new Class<?>[] {AmazonEC2.class}, new RateLimitedEC2(target, region));
+    }
+
+    /**
+     * Mark EC2 calls of the current thread as background work
+     * @param isBackground
+     */
+    public static void setBackground(boolean isBackground) {
+        if (isBackground) {
+            background.set(Boolean.TRUE);
+        } else {
+            background.remove();
+        }
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        TokenBucket bucket = buckets.get(categoryOf(method, args));
+        if (bucket == null) {
+            return invokeTarget(method, args);
+        }
+
+        boolean isBackground = background.get() != null;
+        MetricTimer wait = Metrics.timer("wait.ratelimit-" + bucket.getName());
+        for (int attempt = 0; ; attempt++) {
+            long start = System.nanoTime();
+            bucket.acquire(isBackground);
+            wait.recordSince(start);
+            try {
+                Object result = invokeTarget(method, args);
+                bucket.onSuccess();
+                return result;
+            } catch (Exception e) {
+                if (!Metrics.isThrottle(e)) {
+                    throw e;
+                }
+                bucket.onThrottle();
+                if (attempt >= MAX_THROTTLE_RETRIES) {
+                    throw e;
+                }
+                // full jitter, so throttled callers don't retry in lockstep
+                long cap = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt);
+                long backoff = (long) (random.nextDouble() * cap);
+                start = System.nanoTime();
+                Thread.sleep(backoff);
+                Metrics.timer("wait.throttle-backoff").recordSince(start);
+            }
+        }
+    }
+
+    private Object invokeTarget(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void addBucket(String category, String region, double rate) {
+        final TokenBucket bucket = new TokenBucket(category, rate, Math.max(1, rate));
+        buckets.put(category, bucket);
+        Metrics.gauge("ratelimit." + region + "." + category, new Metrics.Gauge() {
+            public double value() {
+                return bucket.getRate();
+            }
+        });
+    }
+
+    static String categoryOf(Method method, Object[] args) {
+        String name = method.getName();
+        boolean isApiCall = (args != null && args.length == 1 &&
+                args[0] instanceof AmazonWebServiceRequest) ||
+                (args == null && name.startsWith("describe"));
+        if (!isApiCall) {
+            return null;
+        }
+        if (name.startsWith("describe")) {
+            return DESCRIBE;
+        }
+        if (name.equals("runInstances") || name.equals("terminateInstances") ||
+                name.equals("startInstances") || name.equals("stopInstances")) {
+            return RUN;
+        }
+        return MUTATE;
+    }
+}
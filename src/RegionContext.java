@@ -0,0 +1,428 @@
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import sun.misc.BASE64Encoder;
+
+/**
+ * Everything the server keeps for one (credential profile, region):
+ * its EC2 client with own connection pool, its placement over the
+ * availability zones, its worker threads and background watchers.
+ * Contexts share nothing, so a slow region never blocks another one.
+ */
+public class RegionContext {
+    private static final Log log = LogFactory.getLog(RegionContext.class);
+
+    static final long WATCH_INTERVAL_MILLIS = Long.getLong("ec2.watchIntervalMillis", 5 * 1000);
+    static final int WORKER_THREADS = Integer.getInteger("ec2.workerThreads", 8);
+    static final int MAX_CONNECTIONS = Integer.getInteger("ec2.http.maxConnections", 50);
+    static final int SOCKET_TIMEOUT_MILLIS =
+            Integer.getInteger("ec2.http.socketTimeoutMillis", 50 * 1000);
+    static final int CONNECTION_TIMEOUT_MILLIS =
+            Integer.getInteger("ec2.http.connectionTimeoutMillis", 10 * 1000);
+    // unclaimed pooled volumes and interfaces are deleted after this long
+    static final long RESOURCE_POOL_TTL_MILLIS =
+            Long.getLong("ec2.resourcePool.ttlMillis", 24 * 60 * 60 * 1000);
+    // rebuild the snapshot index this often, 0 to only extend it
+    static final long SNAPSHOT_INDEX_REFRESH_MILLIS =
+            Long.getLong("ec2.snapshotIndex.refreshMillis", 60 * 60 * 1000);
+    // accounts whose snapshots are indexed besides our own, comma separated
+    static final String SNAPSHOT_INDEX_OWNERS = System.getProperty("ec2.snapshotIndex.owners", "");
+    // pooled connections are kept alive and reused for at most this long
+    static final long CONNECTION_TTL_MILLIS =
+            Long.getLong("ec2.http.connectionTTLMillis", 5 * 60 * 1000);
+    // connections opened by warmUp
+    static final int STARTUP_CONNECTIONS = Integer.getInteger("ec2.startup.connections", 4);
+
+    private final String profile;
+    private final String region;
+    private final AmazonEC2 ec2;
+    private final ExecutorService workers;
+    private final InstanceStateWatcher instanceWatcher;
+    private final VolumeStateWatcher volumeWatcher;
+    private final StateStream stateStream;
+    private final EC2Lookups lookups;
+    private final EniReaper eniReaper;
+    private final WarmPool warmPool;
+    private final VolumePool volumePool;
+    private final EniPool eniPool;
+    private final SnapshotIndex snapshotIndex;
+    private final BulkTerminator bulkTerminator;
+    private final VolumeAttacher volumeAttacher;
+    private final PlacementScheduler placement;
+    private final MetadataSnapshot metadata;
+    private final OperationJournal journal;
+    private final AWSCredentialsProvider credentials;
+    // virtualization type by image id, images don't change
+    private final ConcurrentMap<String, String> imageTypes =
+            new ConcurrentHashMap<String, String>();
+
+    public RegionContext(String profile, String region) {
+        this(profile, region, new ProfileCredentials(profile),
+                System.getProperty("ec2.endpoint"));
+    }
+
+    /**
+     * @param profile name of the credentials
+     * @param region
+     * @param credentials
+     * @param endpoint EC2 endpoint url, null for the endpoint of region
+     */
+    public RegionContext(String profile, String region, AWSCredentials credentials,
+                         String endpoint) {
+        this(profile, region, new StaticCredentialsProvider(credentials), endpoint);
+    }
+
+    /**
+     * @param profile name of the credentials
+     * @param region
+     * @param credentials resolved on first request, or by warmUp
+     * @param endpoint EC2 endpoint url, null for the endpoint of region
+     */
+    public RegionContext(String profile, String region, AWSCredentialsProvider credentials,
+                         String endpoint) {
+        this.profile = profile;
+        this.region = region;
+        this.credentials = credentials;
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.setMaxConnections(MAX_CONNECTIONS);
+        configuration.setSocketTimeout(SOCKET_TIMEOUT_MILLIS);
+        configuration.setConnectionTimeout(CONNECTION_TIMEOUT_MILLIS);
+        configuration.setConnectionTTL(CONNECTION_TTL_MILLIS);
+        configuration.setUseReaper(true);
+        configuration.setRetryPolicy(RateLimitedEC2.RETRY_POLICY);
+        AmazonEC2 client = new AmazonEC2Client(credentials, configuration);
+        client.setRegion(Region.getRegion(Regions.fromName(region)));
+        if (endpoint != null) {
+            client.setEndpoint(endpoint);
+        }
+        ec2 = RateLimitedEC2.wrap(InstrumentedEC2.wrap(client), region);
+
+        workers = Executors.newFixedThreadPool(WORKER_THREADS,
+                new DaemonThreadFactory("ec2-worker-" + region));
+        instanceWatcher = new InstanceStateWatcher(ec2, WATCH_INTERVAL_MILLIS);
+        volumeWatcher = new VolumeStateWatcher(ec2, WATCH_INTERVAL_MILLIS);
+        stateStream = new StateStream(instanceWatcher, volumeWatcher);
+        lookups = new EC2Lookups(ec2);
+        placement = new PlacementScheduler(ec2);
+        eniReaper = new EniReaper(ec2, WATCH_INTERVAL_MILLIS);
+        warmPool = new WarmPool(this, System.getProperty("ec2.warmPool"),
+                WATCH_INTERVAL_MILLIS);
+        warmPool.start();
+        volumePool = new VolumePool(this, System.getProperty("ec2.volumePool"),
+                WATCH_INTERVAL_MILLIS, RESOURCE_POOL_TTL_MILLIS);
+        volumePool.start();
+        eniPool = new EniPool(this, System.getProperty("ec2.eniPool"),
+                WATCH_INTERVAL_MILLIS, RESOURCE_POOL_TTL_MILLIS);
+        eniPool.start();
+        String indexDir = System.getProperty("ec2.snapshotIndex.dir");
+        snapshotIndex = new SnapshotIndex(ec2, SNAPSHOT_INDEX_OWNERS, indexDir == null ? null :
+                new File(indexDir, "snapshots-" + profile + "-" + region + ".gz"),
+                SNAPSHOT_INDEX_REFRESH_MILLIS);
+        snapshotIndex.start();
+        bulkTerminator = new BulkTerminator(this);
+        String metadataDir = System.getProperty("ec2.metadata.dir");
+        metadata = new MetadataSnapshot(this, metadataDir == null ? null :
+                new File(metadataDir, "metadata-" + profile + "-" + region + ".gz"));
+        String journalDir = System.getProperty("ec2.journal.dir");
+        journal = new OperationJournal(journalDir == null ? null :
+                new File(journalDir, "journal-" + profile + "-" + region + ".log"));
+        volumeAttacher = new VolumeAttacher(this);
+    }
+
+    /**
+     * Credentials of a profile, read on first use rather than when the
+     * context is created
+     */
+    private static class ProfileCredentials implements AWSCredentialsProvider {
+        private final String profile;
+        private final ProfileCredentialsProvider provider;
+
+        ProfileCredentials(String profile) {
+            this.profile = profile;
+            this.provider = new ProfileCredentialsProvider(profile);
+        }
+
+        public AWSCredentials getCredentials() {
+              /*
+             * The ProfileCredentialsProvider will return the given
+             * credential profile by reading from the credentials file located at
+             * (~/.aws/credentials).
+             */
+            try {
+                return provider.getCredentials();
+            } catch (Exception e) {
+                throw new AmazonClientException(
+                        "Cannot load the credentials of profile " + profile +
+                                " from the credential profiles file. " +
+                                "Please make sure that your credentials file is at the correct " +
+                                "location (~/.aws/credentials), and is in valid format.",
+                        e);
+            }
+        }
+
+        public void refresh() {
+            provider.refresh();
+        }
+    }
+
+    /**
+     * Get ready for traffic: resolve the credentials, open connections to
+     * the endpoint and load the metadata snapshot, all at once, then start
+     * reconciling the snapshot in background. Whatever is not done within
+     * timeoutMillis is left to the first requests.
+     * @param timeoutMillis
+     */
+    public void warmUp(long timeoutMillis) {
+        long start = System.nanoTime();
+        List<Callable<Object>> steps = new ArrayList<Callable<Object>>();
+        final List<String> names = new ArrayList<String>();
+        names.add("credentials");
+        steps.add(new Callable<Object>() {
+            public Object call() {
+                return credentials.getCredentials();
+            }
+        });
+        names.add("metadata");
+        steps.add(new Callable<Object>() {
+            public Object call() {
+                return metadata.load();
+            }
+        });
+        // the zones are needed anyway, describing them opens a connection;
+        // more describes in parallel open more connections to reuse
+        names.add("zones");
+        steps.add(new Callable<Object>() {
+            public Object call() throws Exception {
+                placement.refresh();
+                return null;
+            }
+        });
+        for (int i = 1; i < STARTUP_CONNECTIONS; i++) {
+            names.add("connection");
+            steps.add(new Callable<Object>() {
+                public Object call() {
+                    return ec2.describeAvailabilityZones();
+                }
+            });
+        }
+
+        try {
+            List<Future<Object>> futures =
+                    workers.invokeAll(steps, timeoutMillis, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (CancellationException e) {
+                    log.warn("warm-up of " + names.get(i) + " in " + region + " timed out");
+                } catch (ExecutionException e) {
+                    log.warn("warm-up of " + names.get(i) + " in " + region + " failed",
+                            e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Metrics.timer("startup.warm-up").recordSince(start);
+        log.info("warmed up " + profile + "/" + region + " in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        metadata.start();
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public AmazonEC2 getEC2() {
+        return ec2;
+    }
+
+    public ExecutorService getWorkers() {
+        return workers;
+    }
+
+    public InstanceStateWatcher getInstanceWatcher() {
+        return instanceWatcher;
+    }
+
+    public VolumeStateWatcher getVolumeWatcher() {
+        return volumeWatcher;
+    }
+
+    public StateStream getStateStream() {
+        return stateStream;
+    }
+
+    public EC2Lookups getLookups() {
+        return lookups;
+    }
+
+    public EniReaper getEniReaper() {
+        return eniReaper;
+    }
+
+    public WarmPool getWarmPool() {
+        return warmPool;
+    }
+
+    public VolumePool getVolumePool() {
+        return volumePool;
+    }
+
+    public EniPool getEniPool() {
+        return eniPool;
+    }
+
+    public SnapshotIndex getSnapshotIndex() {
+        return snapshotIndex;
+    }
+
+    public BulkTerminator getBulkTerminator() {
+        return bulkTerminator;
+    }
+
+    public VolumeAttacher getVolumeAttacher() {
+        return volumeAttacher;
+    }
+
+    public PlacementScheduler getPlacement() {
+        return placement;
+    }
+
+    public MetadataSnapshot getMetadata() {
+        return metadata;
+    }
+
+    public OperationJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return {image id: virtualization type} of the images run so far
+     */
+    public Map<String, String> getImageTypes() {
+        return new HashMap<String, String>(imageTypes);
+    }
+
+    /**
+     * @param types {image id: virtualization type}, e.g. loaded from disk
+     */
+    public void rememberImageTypes(Map<String, String> types) {
+        imageTypes.putAll(types);
+    }
+
+    /**
+     * Request to run count instances of image, sized by the virtualization
+     * type of image. Its zone is set by runInstances.
+     * @param EC2ImageId AMI image id
+     * @param count
+     * @param dataSubNetId subnet of the primary interface, null for default
+     * @param userData null for none
+     */
+    public RunInstancesRequest newRunInstancesRequest(
+            String EC2ImageId, int count, String dataSubNetId, String userData)
+            throws Exception {
+        InstanceType type = (virtualizationTypeOf(EC2ImageId).equals("hvm")) ?
+                InstanceType.T2Micro:InstanceType.T1Micro;
+        RunInstancesRequest req = new RunInstancesRequest(EC2ImageId, count, count).
+                withInstanceType(type);
+        if (dataSubNetId != null) {
+            req.withSubnetId(dataSubNetId);
+        }
+
+        if (userData != null) {
+            req.withUserData(encodeUserData(userData));
+        }
+        return req;
+    }
+
+    private String virtualizationTypeOf(String imageId) {
+        String type = imageTypes.get(imageId);
+        if (type == null) {
+            Image img = ec2.describeImages(new DescribeImagesRequest().
+                    withImageIds(imageId)).getImages().get(0);
+            type = img.getVirtualizationType();
+            imageTypes.put(imageId, type);
+        }
+        return type;
+    }
+
+    /**
+     * Run instances in the zone of their subnet if any, else in the zone
+     * picked by the placement scheduler
+     * @param request of newRunInstancesRequest
+     */
+    public Reservation runInstances(RunInstancesRequest request) throws Exception {
+        if (request.getSubnetId() == null) {
+            return placement.run(request);
+        }
+        Reservation reservation = ec2.runInstances(request).getReservation();
+        placement.remember(reservation);
+        return reservation;
+    }
+
+    static String encodeUserData(String userData) {
+        BASE64Encoder base64Encoder = new BASE64Encoder();
+        return base64Encoder.encode(userData.getBytes());
+    }
+
+    /**
+     * @return home zone of the region, for volumes without target instance
+     */
+    public AvailabilityZone getAvailZone() throws Exception {
+        return placement.getHomeZone();
+    }
+
+    public void shutdown() {
+        metadata.shutdown();
+        warmPool.shutdown();
+        volumePool.shutdown();
+        eniPool.shutdown();
+        snapshotIndex.shutdown();
+        bulkTerminator.shutdown();
+        volumeAttacher.shutdown();
+        stateStream.shutdown();
+        instanceWatcher.shutdown();
+        volumeWatcher.shutdown();
+        eniReaper.shutdown();
+        lookups.shutdown();
+        workers.shutdownNow();
+        journal.shutdown();
+        ec2.shutdown();
+    }
+}
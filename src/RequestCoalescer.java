@@ -0,0 +1,173 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesce concurrent lookups of single keys into batched loads.
+ * A lookup while no load is in flight is loaded right away. One arriving
+ * while a load is in flight opens a batch window instead, every lookup
+ * arriving in the window joins it, and the whole batch is loaded by one
+ * request when the load in flight ends, the window closes or the batch is
+ * full, whichever comes first. Each caller then gets its own answer.
+ */
+public class RequestCoalescer<K, V> {
+
+    /**
+     * Load many keys with one request
+     */
+    public interface BatchLoader<K, V> {
+        /**
+         * @param keys keys to load
+         * @return values of found keys, keys not found may be absent
+         * @throws Exception
+         */
+        Map<K, V> load(Set<K> keys) throws Exception;
+    }
+
+    private class Batch implements Runnable {
+        final Map<K, OperationHandle<V>> handles =
+                new LinkedHashMap<K, OperationHandle<V>>();
+        boolean sent = false;
+
+        /**
+         * Close the window, unless the batch was sent already
+         */
+        public void run() {
+            synchronized (RequestCoalescer.this) {
+                if (sent) {
+                    return;
+                }
+                send(this);
+            }
+            flush(this);
+        }
+    }
+
+    private final String name;
+    private final BatchLoader<K, V> loader;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private Batch current = null;
+    // batches sent and not loaded yet
+    private int inFlight = 0;
+
+    /**
+     * @param name name of the lookup, used for thread names
+     * @param loader batch loader
+     * @param windowMillis how long a batch collects lookups at most while
+     *                     a load is in flight, 0 disables coalescing
+     * @param maxBatchSize batch is loaded right away when reaching it
+     * @param loaderThreads number of batches which can load at the same time
+     */
+    public RequestCoalescer(String name, BatchLoader<K, V> loader,
+                            long windowMillis, int maxBatchSize,
+                            int loaderThreads) {
+        this.name = name;
+        this.loader = loader;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = Executors.newScheduledThreadPool(loaderThreads,
+                new DaemonThreadFactory("coalescer-" + name));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Look up one key, blocking until its batch is loaded
+     * @param key
+     * @return value of the key, or null if not found
+     * @throws Exception the error the batch load failed with
+     */
+    public V get(K key) throws Exception {
+        if (windowMillis <= 0) {
+            return loader.load(Collections.singleton(key)).get(key);
+        }
+        return submit(key).get();
+    }
+
+    /**
+     * Look up one key without blocking
+     * @param key
+     * @return handle completed with the value, or null if not found
+     */
+    public OperationHandle<V> submit(K key) {
+        Batch ready = null;
+        OperationHandle<V> handle;
+        synchronized (this) {
+            boolean idle = current == null && inFlight == 0;
+            if (current == null) {
+                current = new Batch();
+                if (!idle) {
+                    scheduler.schedule(current, windowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            handle = current.handles.get(key);
+            if (handle == null) {
+                handle = new OperationHandle<V>(name + "-" + key);
+                current.handles.put(key, handle);
+            }
+            if (idle || current.handles.size() >= maxBatchSize) {
+                // the scheduled run of a full batch finds nothing left to do
+                ready = current;
+                send(ready);
+            }
+        }
+        if (ready != null) {
+            final Batch batch = ready;
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    flush(batch);
+                }
+            });
+        }
+        return handle;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Take batch out of the window and count it in flight, under the lock
+     */
+    private void send(Batch batch) {
+        if (current == batch) {
+            current = null;
+        }
+        batch.sent = true;
+        inFlight++;
+    }
+
+    /**
+     * Load a batch sent, then the one which opened while it loaded
+     */
+    private void flush(Batch batch) {
+        while (batch != null) {
+            Map<K, OperationHandle<V>> handles = batch.handles;
+            try {
+                Map<K, V> values = loader.load(handles.keySet());
+                for (Map.Entry<K, OperationHandle<V>> entry : handles.entrySet()) {
+                    entry.getValue().complete(values.get(entry.getKey()));
+                }
+            } catch (Exception e) {
+                for (OperationHandle<V> handle : handles.values()) {
+                    handle.fail(e);
+                }
+            }
+            synchronized (this) {
+                inFlight--;
+                batch = current;
+                if (batch != null) {
+                    send(batch);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background-maintained pool of blank EC2 resources, bucketed by a key,
+ * e.g. volume size or subnet. A bucket is configured as "key:high" or
+ * "key:low-high": once fewer than low resources are ready it is refilled
+ * up to high. Pooled resources carry the tag tagKey=key, so a restarted
+ * server adopts them. A resource unclaimed for ttlMillis is deleted, and
+ * a bucket nobody claimed from for as long stays empty until its next
+ * miss. Resources bound to an availability zone, e.g. volumes, are
+ * created in zone() and only claimed for their own zone.
+ */
+public abstract class ResourcePool {
+    private static final Log log = LogFactory.getLog(ResourcePool.class);
+
+    // value of the pool tag once a resource left its pool
+    static final String CLAIMED = "claimed";
+
+    private static class Item {
+        final String id;
+        // null if not bound to a zone
+        final String zone;
+        final long createdAt;
+
+        Item(String id, String zone, long createdAt) {
+            this.id = id;
+            this.zone = zone;
+            this.createdAt = createdAt;
+        }
+
+        boolean isIn(String zone) {
+            return this.zone == null || zone == null || this.zone.equals(zone);
+        }
+    }
+
+    private static class Bucket {
+        final String key;
+        final int low;
+        final int high;
+        final LinkedList<Item> ready = new LinkedList<Item>();
+        int creating = 0;
+        long lastClaimAt = System.currentTimeMillis();
+        boolean drained = false;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong reclaimed = new AtomicLong();
+
+        Bucket(String key, int low, int high) {
+            this.key = key;
+            this.low = low;
+            this.high = high;
+        }
+    }
+
+    protected final AmazonEC2 ec2;
+    private final String name;
+    private final String tagKey;
+    private final long intervalMillis;
+    private final long ttlMillis;
+    private final Map<String, Bucket> buckets = new LinkedHashMap<String, Bucket>();
+    private ScheduledExecutorService scheduler = null;
+    private boolean adopted = false;
+    private boolean refillQueued = false;
+
+    private final Runnable refill = new Runnable() {
+        public void run() {
+            try {
+                tick();
+            } catch (Throwable t) {
+                log.warn("failed to refill " + name + " pool", t);
+            }
+        }
+    };
+
+    /**
+     * @param ec2
+     * @param region of ec2, for gauge names
+     * @param name of the pool in logs and gauges
+     * @param tagKey tag marking pooled resources
+     * @param spec "key:high,key:low-high", null or empty for no bucket
+     * @param intervalMillis how often buckets are checked
+     * @param ttlMillis
+     */
+    protected ResourcePool(AmazonEC2 ec2, String region, String name, String tagKey,
+                           String spec, long intervalMillis, long ttlMillis) {
+        this.ec2 = ec2;
+        this.name = name;
+        this.tagKey = tagKey;
+        this.intervalMillis = intervalMillis;
+        this.ttlMillis = ttlMillis;
+        if (spec == null) {
+            return;
+        }
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("bad " + name + " pool bucket: " + entry);
+            }
+            String key = entry.substring(0, colon).trim();
+            String size = entry.substring(colon + 1).trim();
+            int dash = size.indexOf('-');
+            int high = Integer.parseInt(dash < 0 ? size : size.substring(dash + 1));
+            int low = dash < 0 ? (high + 1) / 2 : Integer.parseInt(size.substring(0, dash));
+            final Bucket bucket = new Bucket(key, low, high);
+            buckets.put(key, bucket);
+            Metrics.gauge(name + "pool." + region + "." + key + ".ready", new Metrics.Gauge() {
+                public double value() {
+                    synchronized (ResourcePool.this) {
+                        return bucket.ready.size();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Create count blank resources for bucket key
+     * @param zone from zone()
+     * @return ids of the created resources
+     */
+    protected abstract List<String> create(String key, String zone, int count)
+            throws Exception;
+
+    /**
+     * Delete an unclaimed resource
+     */
+    protected abstract void delete(String id);
+
+    /**
+     * Find unclaimed resources left tagged by a previous server
+     * @param tagKey
+     * @param keys values of the tag to look for
+     * @return {key: {id: zone, null if not bound to one}}
+     */
+    protected abstract Map<String, Map<String, String>> findTagged(String tagKey,
+                                                                   List<String> keys);
+
+    /**
+     * @return availability zone new resources are created in, null if
+     *         they aren't bound to one
+     */
+    protected String zone() throws Exception {
+        return null;
+    }
+
+    public boolean isEnabled() {
+        return !buckets.isEmpty();
+    }
+
+    /**
+     * Tag marking a claimed resource, to be set along with its own tags
+     */
+    public Tag claimedTag() {
+        return new Tag(tagKey, CLAIMED);
+    }
+
+    /**
+     * Run task on the pool thread, off the request path
+     */
+    protected void runInBackground(final Runnable task) {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = scheduler;
+        }
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                RateLimitedEC2.setBackground(true);
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.warn(name + " pool task failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return whether e tells the resource doesn't exist (any more)
+     */
+    static boolean isNotFound(AmazonServiceException e) {
+        String code = e.getErrorCode();
+        return code != null && (code.endsWith(".NotFound") || code.equals("InvalidID"));
+    }
+
+    public synchronized void start() {
+        if (scheduler != null || buckets.isEmpty()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory(name + "-pool"));
+        scheduler.scheduleWithFixedDelay(refill, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Take a resource out of the bucket. The caller owns it from now on,
+     * and has to retag it with claimedTag().
+     * @param key
+     * @return id of the resource, or null if the bucket is empty or not
+     *         configured
+     */
+    public String claim(String key) {
+        return claim(key, null);
+    }
+
+    /**
+     * Take a resource in zone out of the bucket, see claim(key)
+     * @param key
+     * @param zone the resource has to be in, null for any
+     */
+    public synchronized String claim(String key, String zone) {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            return null;
+        }
+        bucket.lastClaimAt = System.currentTimeMillis();
+        bucket.drained = false;
+        Item item = null;
+        for (Iterator<Item> it = bucket.ready.iterator(); it.hasNext(); ) {
+            Item ready = it.next();
+            if (ready.isIn(zone)) {
+                it.remove();
+                item = ready;
+                break;
+            }
+        }
+        if (item == null) {
+            bucket.misses.incrementAndGet();
+        } else {
+            bucket.hits.incrementAndGet();
+        }
+        if (bucket.ready.size() < bucket.low && scheduler != null && !refillQueued) {
+            refillQueued = true;
+            scheduler.execute(refill);
+        }
+        return item == null ? null : item.id;
+    }
+
+    /**
+     * @return {key: {"low":, "high":, "ready":, "creating":, "hits":,
+     *         "misses":, "reclaimed":}}
+     */
+    public synchronized Map<String, Map<String, Long>> getStats() {
+        Map<String, Map<String, Long>> stats = new HashMap<String, Map<String, Long>>();
+        for (Bucket bucket : buckets.values()) {
+            Map<String, Long> bucketStats = new HashMap<String, Long>();
+            bucketStats.put("low", (long) bucket.low);
+            bucketStats.put("high", (long) bucket.high);
+            bucketStats.put("ready", (long) bucket.ready.size());
+            bucketStats.put("creating", (long) bucket.creating);
+            bucketStats.put("hits", bucket.hits.get());
+            bucketStats.put("misses", bucket.misses.get());
+            bucketStats.put("reclaimed", bucket.reclaimed.get());
+            stats.put(bucket.key, bucketStats);
+        }
+        return stats;
+    }
+
+    void tick() throws Exception {
+        RateLimitedEC2.setBackground(true);
+        if (!adopted) {
+            adopt();
+            adopted = true;
+        }
+        long now = System.currentTimeMillis();
+        String zone = zone();
+        List<Bucket> snapshot;
+        synchronized (this) {
+            refillQueued = false;
+            snapshot = new ArrayList<Bucket>(buckets.values());
+        }
+        for (Bucket bucket : snapshot) {
+            List<String> expired = new ArrayList<String>();
+            int deficit = 0;
+            synchronized (this) {
+                if (!bucket.drained && now - bucket.lastClaimAt > ttlMillis) {
+                    bucket.drained = true;
+                    log.info("draining idle " + name + " pool " + bucket.key);
+                }
+                for (Iterator<Item> it = bucket.ready.iterator(); it.hasNext(); ) {
+                    Item item = it.next();
+                    if (bucket.drained || now - item.createdAt > ttlMillis) {
+                        it.remove();
+                        expired.add(item.id);
+                    }
+                }
+                // those left in another zone don't serve claims for this one
+                int available = bucket.creating;
+                for (Item item : bucket.ready) {
+                    if (item.isIn(zone)) {
+                        available++;
+                    }
+                }
+                if (!bucket.drained && available < bucket.low) {
+                    deficit = bucket.high - available;
+                    bucket.creating += deficit;
+                }
+            }
+            for (String id : expired) {
+                try {
+                    delete(id);
+                    bucket.reclaimed.incrementAndGet();
+                } catch (RuntimeException e) {
+                    log.warn("failed to delete pooled " + name + " " + id, e);
+                }
+            }
+            if (deficit > 0) {
+                fill(bucket, zone, deficit);
+            }
+        }
+    }
+
+    private void adopt() {
+        List<String> keys;
+        synchronized (this) {
+            keys = new ArrayList<String>(buckets.keySet());
+        }
+        Map<String, Map<String, String>> found = findTagged(tagKey, keys);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Map.Entry<String, Map<String, String>> entry : found.entrySet()) {
+                Bucket bucket = buckets.get(entry.getKey());
+                if (bucket == null) {
+                    continue;
+                }
+                // age is unknown, so they live one more ttl
+                for (Map.Entry<String, String> id : entry.getValue().entrySet()) {
+                    bucket.ready.add(new Item(id.getKey(), id.getValue(), now));
+                }
+            }
+        }
+    }
+
+    private void fill(Bucket bucket, String zone, int count) {
+        List<String> ids = new ArrayList<String>();
+        try {
+            ids = create(bucket.key, zone, count);
+            if (!ids.isEmpty()) {
+                // same tag on all, so one CreateTags
+                ec2.createTags(new CreateTagsRequest().withResources(ids).withTags(
+                        new Tag(tagKey, bucket.key)));
+            }
+            log.debug("created " + ids.size() + " into " + name + " pool " + bucket.key);
+        } catch (Exception e) {
+            log.warn("failed to fill " + name + " pool " + bucket.key, e);
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            bucket.creating -= count;
+            for (String id : ids) {
+                bucket.ready.add(new Item(id, zone, now));
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * Thrown to py4j client when the server has no room for another call of
+ * an operation class. The call was not started, so it is safe to retry.
+ */
+public class ServerBusyException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ServerBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,345 @@
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSnapshotsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Snapshot;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Index from OpenStack snapshot id to EC2 snapshot ids, so that mapping
+ * a snapshot doesn't take a wildcard description scan over every snapshot
+ * visible to the account. It is built from one DescribeSnapshots of the
+ * snapshots of the account and of the trusted owners only, extended with
+ * snapshots observed by later lookups, rebuilt every refreshMillis to drop
+ * deleted ones, and optionally saved to a gzipped file to serve right
+ * away after restart.
+ * Every UUID in a snapshot description is an index key; ids which are not
+ * UUIDs, and UUIDs the index doesn't know, are looked up with the
+ * description scan, which sees shared and public snapshots too.
+ */
+public class SnapshotIndex {
+    private static final Log log = LogFactory.getLog(SnapshotIndex.class);
+
+    static final Pattern UUID = Pattern.compile(
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    private final AmazonEC2 ec2;
+    private final List<String> owners = new ArrayList<String>();
+    private final File file;
+    private final long refreshMillis;
+    // OpenStack id -> EC2 snapshot ids whose description has it
+    private Map<String, List<String>> index = new HashMap<String, List<String>>();
+    private boolean ready = false;
+    private boolean dirty = false;
+    private List<Snapshot> observedWhileBuilding = null;
+    private long builtAt = 0;
+    private ScheduledExecutorService scheduler = null;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong scans = new AtomicLong();
+
+    /**
+     * @param ec2
+     * @param trustedOwners comma separated account ids whose snapshots are
+     *                      indexed besides the account's own, may be empty
+     * @param file where the index is saved, null to keep it in memory only
+     * @param refreshMillis how often the index is rebuilt, 0 for never,
+     *                      which keeps deleted snapshots until a lookup
+     *                      fails on them
+     */
+    public SnapshotIndex(AmazonEC2 ec2, String trustedOwners, File file, long refreshMillis) {
+        this.ec2 = ec2;
+        owners.add("self");
+        for (String owner : trustedOwners.split(",")) {
+            if (owner.trim().length() > 0) {
+                owners.add(owner.trim());
+            }
+        }
+        this.file = file;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * Load the saved index if any, and build the index in background
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        if (file != null && file.exists()) {
+            try {
+                index = load(file);
+                ready = true;
+                log.info("loaded " + index.size() + " snapshot ids from " + file);
+            } catch (IOException e) {
+                log.warn("failed to load snapshot index " + file, e);
+            }
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("snapshot-index"));
+        scheduler.execute(new Runnable() {
+            public void run() {
+                build();
+            }
+        });
+        if (refreshMillis > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    build();
+                }
+            }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        }
+        if (file != null) {
+            // save what lookups observed, at most once a minute
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    saveIfDirty();
+                }
+            }, 60, 60, TimeUnit.SECONDS);
+        }
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+        saveIfDirty();
+    }
+
+    /**
+     * Find EC2 snapshots whose description has the OpenStack snapshot id.
+     * A hit is not checked again: a second snapshot of the same id is only
+     * seen once a rebuild or a scan finds it, up to refreshMillis after it
+     * was created, and one of another owner than the indexed ones never is.
+     * @param openstackSnapshotId
+     * @return ids of the EC2 snapshots, empty if none, more than one if
+     *         the mapping is ambiguous
+     */
+    public List<String> find(String openstackSnapshotId) {
+        if (UUID.matcher(openstackSnapshotId).matches()) {
+            synchronized (this) {
+                List<String> ids = index.get(openstackSnapshotId.toLowerCase());
+                if (ready && ids != null) {
+                    hits.incrementAndGet();
+                    return new ArrayList<String>(ids);
+                }
+            }
+        }
+        return scan(openstackSnapshotId);
+    }
+
+    /**
+     * Drop a snapshot found deleted
+     * @param snapshotId EC2 snapshot id
+     */
+    public synchronized void forget(String snapshotId) {
+        for (Iterator<List<String>> it = index.values().iterator(); it.hasNext(); ) {
+            List<String> ids = it.next();
+            if (ids.remove(snapshotId)) {
+                dirty = true;
+                if (ids.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {"size":, "hits":, "scans":, "age-millis":}, age is -1 until
+     *         built
+     */
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        stats.put("size", (long) index.size());
+        stats.put("hits", hits.get());
+        stats.put("scans", scans.get());
+        stats.put("age-millis", builtAt == 0 ? -1 : System.currentTimeMillis() - builtAt);
+        return stats;
+    }
+
+    private List<String> scan(String openstackSnapshotId) {
+        scans.incrementAndGet();
+        DescribeSnapshotsRequest request = new DescribeSnapshotsRequest().withFilters(
+                new Filter().withName("description").
+                        withValues("*" + openstackSnapshotId + "*"));
+        List<String> ids = new ArrayList<String>();
+        List<Snapshot> snapshots = ec2.describeSnapshots(request).getSnapshots();
+        for (Snapshot snapshot : snapshots) {
+            ids.add(snapshot.getSnapshotId());
+        }
+        observe(snapshots);
+        return ids;
+    }
+
+    private synchronized void observe(List<Snapshot> snapshots) {
+        for (Snapshot snapshot : snapshots) {
+            if (add(index, snapshot)) {
+                dirty = true;
+            }
+        }
+        if (observedWhileBuilding != null) {
+            observedWhileBuilding.addAll(snapshots);
+        }
+    }
+
+    void build() {
+        RateLimitedEC2.setBackground(true);
+        synchronized (this) {
+            observedWhileBuilding = new ArrayList<Snapshot>();
+        }
+        try {
+            long start = System.currentTimeMillis();
+            // no pagination of DescribeSnapshots in this SDK, one call
+            // returns all of them; only the owners' snapshots, public ones
+            // are left to the scan, and only descriptions which may hold
+            // a UUID
+            List<Snapshot> snapshots = ec2.describeSnapshots(
+                    new DescribeSnapshotsRequest().withOwnerIds(owners).withFilters(
+                            new Filter().withName("description").withValues("*-*-*-*-*"))).
+                    getSnapshots();
+            Map<String, List<String>> built = new HashMap<String, List<String>>();
+            for (Snapshot snapshot : snapshots) {
+                add(built, snapshot);
+            }
+            synchronized (this) {
+                for (Snapshot snapshot : observedWhileBuilding) {
+                    add(built, snapshot);
+                }
+                index = built;
+                ready = true;
+                dirty = true;
+                builtAt = System.currentTimeMillis();
+            }
+            log.info("indexed " + snapshots.size() + " snapshots in " +
+                    (System.currentTimeMillis() - start) + "ms");
+            saveIfDirty();
+        } catch (RuntimeException e) {
+            log.warn("failed to build snapshot index", e);
+        } finally {
+            synchronized (this) {
+                observedWhileBuilding = null;
+            }
+        }
+    }
+
+    /**
+     * @return whether snapshot added a mapping
+     */
+    private static boolean add(Map<String, List<String>> index, Snapshot snapshot) {
+        if (snapshot.getDescription() == null) {
+            return false;
+        }
+        boolean added = false;
+        Matcher matcher = UUID.matcher(snapshot.getDescription());
+        while (matcher.find()) {
+            String key = matcher.group().toLowerCase();
+            List<String> ids = index.get(key);
+            if (ids == null) {
+                // one snapshot per id normally
+                ids = new ArrayList<String>(1);
+                index.put(key, ids);
+            }
+            if (!ids.contains(snapshot.getSnapshotId())) {
+                ids.add(snapshot.getSnapshotId());
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    private void saveIfDirty() {
+        if (file == null) {
+            return;
+        }
+        Map<String, List<String>> copy = new HashMap<String, List<String>>();
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            for (Map.Entry<String, List<String>> entry : index.entrySet()) {
+                copy.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+            }
+            dirty = false;
+        }
+        try {
+            save(copy, file);
+        } catch (IOException e) {
+            log.warn("failed to save snapshot index " + file, e);
+        }
+    }
+
+    /**
+     * Write one "openstack-id snapshot-id..." line per id, gzipped, and
+     * replace file at once
+     */
+    static void save(Map<String, List<String>> index, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new GZIPOutputStream(
+                new FileOutputStream(tmp)), "UTF-8");
+        try {
+            for (Map.Entry<String, List<String>> entry : index.entrySet()) {
+                out.write(entry.getKey());
+                for (String id : entry.getValue()) {
+                    out.write(' ');
+                    out.write(id);
+                }
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("failed to rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    static Map<String, List<String>> load(File file) throws IOException {
+        Map<String, List<String>> index = new HashMap<String, List<String>>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+        try {
+            for (String line; (line = in.readLine()) != null; ) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length < 2) {
+                    continue;
+                }
+                List<String> ids = new ArrayList<String>(fields.length - 1);
+                Collections.addAll(ids, fields);
+                ids.remove(0);
+                index.put(fields[0], ids);
+            }
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+}
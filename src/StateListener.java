@@ -0,0 +1,22 @@
+/**
+ * Receiver of state changes of subscribed instances and volumes, usually
+ * implemented on the Python side and called back through the py4j
+ * callback server:
+ * <pre>
+ * class Listener(object):
+ *     def onStateChange(self, resourceType, resourceId, previousState, state):
+ *         ...
+ *     class Java:
+ *         implements = ["StateListener"]
+ * </pre>
+ */
+public interface StateListener {
+    /**
+     * @param resourceType "instance" or "volume"
+     * @param resourceId EC2 id
+     * @param previousState null on the first state seen after subscribing
+     * @param state new state, "deleted" once a volume disappeared
+     */
+    void onStateChange(String resourceType, String resourceId, String previousState,
+                       String state);
+}
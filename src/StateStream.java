@@ -0,0 +1,329 @@
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Volume;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes state changes of subscribed instances and volumes to listeners,
+ * instead of every client polling its own resources. The ids of all
+ * subscriptions ride on the batched polls of the instance and volume
+ * watchers, and every change is queued to the subscriptions of that id.
+ * Each subscription has a bounded queue drained by the shared delivery
+ * threads, so a slow listener only drops its own oldest events, and a
+ * listener failing MAX_FAILURES times in a row is unsubscribed.
+ */
+public class StateStream {
+    private static final Log log = LogFactory.getLog(StateStream.class);
+
+    static final int QUEUE_CAPACITY = Integer.getInteger("ec2.stream.queueCapacity", 1000);
+    static final int DELIVERY_THREADS = Integer.getInteger("ec2.stream.deliveryThreads", 4);
+    static final int MAX_FAILURES = 3;
+
+    static final String INSTANCE = "instance";
+    static final String VOLUME = "volume";
+    static final String DELETED = "deleted";
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static class Event {
+        final String resourceType;
+        final String resourceId;
+        final String previousState;
+        final String state;
+
+        Event(String resourceType, String resourceId, String previousState, String state) {
+            this.resourceType = resourceType;
+            this.resourceId = resourceId;
+            this.previousState = previousState;
+            this.state = state;
+        }
+    }
+
+    private class Subscription implements Runnable {
+        final String id;
+        final StateListener listener;
+        final Set<String> instanceIds = new HashSet<String>();
+        final Set<String> volumeIds = new HashSet<String>();
+        final ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(queueCapacity);
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        // a delivery thread is draining the queue
+        boolean draining = false;
+        int failures = 0;
+
+        Subscription(String id, StateListener listener) {
+            this.id = id;
+            this.listener = listener;
+        }
+
+        void offer(Event event) {
+            synchronized (this) {
+                while (!queue.offer(event)) {
+                    queue.poll();
+                    dropped.incrementAndGet();
+                }
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            ExecutorService executor = delivery;
+            if (executor != null) {
+                executor.execute(this);
+            }
+        }
+
+        public void run() {
+            while (true) {
+                Event event;
+                synchronized (this) {
+                    event = queue.poll();
+                    if (event == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    listener.onStateChange(event.resourceType, event.resourceId,
+                            event.previousState, event.state);
+                    delivered.incrementAndGet();
+                    failures = 0;
+                } catch (RuntimeException e) {
+                    log.warn("failed to deliver state change to subscription " + id, e);
+                    if (++failures >= MAX_FAILURES) {
+                        unsubscribe(id);
+                        synchronized (this) {
+                            queue.clear();
+                            draining = false;
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private final InstanceStateWatcher instanceWatcher;
+    private final VolumeStateWatcher volumeWatcher;
+    private final int queueCapacity;
+    private final Map<String, Subscription> subscriptions =
+            new ConcurrentHashMap<String, Subscription>();
+    // last state seen of each subscribed resource, guarded by this
+    private final Map<String, String> instanceStates = new HashMap<String, String>();
+    private final Map<String, String> volumeStates = new HashMap<String, String>();
+    private volatile ExecutorService delivery = null;
+
+    private final PollListener<Instance> instanceListener = new PollListener<Instance>() {
+        public Collection<String> getPolledIds() {
+            return polledIds(true);
+        }
+
+        public void onPolled(Collection<String> ids, Map<String, Instance> described) {
+            for (String id : ids) {
+                Instance instance = described.get(id);
+                // not visible yet right after launch
+                if (instance != null) {
+                    changed(INSTANCE, id, instance.getState().getName());
+                }
+            }
+        }
+    };
+
+    private final PollListener<Volume> volumeListener = new PollListener<Volume>() {
+        public Collection<String> getPolledIds() {
+            return polledIds(false);
+        }
+
+        public void onPolled(Collection<String> ids, Map<String, Volume> described) {
+            for (String id : ids) {
+                Volume volume = described.get(id);
+                if (volume != null) {
+                    changed(VOLUME, id, volumeWatcher.stateOf(volume));
+                } else if (isKnown(id)) {
+                    changed(VOLUME, id, DELETED);
+                }
+            }
+        }
+    };
+
+    public StateStream(InstanceStateWatcher instanceWatcher, VolumeStateWatcher volumeWatcher) {
+        this(instanceWatcher, volumeWatcher, QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity events queued to each subscription at most
+     */
+    StateStream(InstanceStateWatcher instanceWatcher, VolumeStateWatcher volumeWatcher,
+                int queueCapacity) {
+        this.instanceWatcher = instanceWatcher;
+        this.volumeWatcher = volumeWatcher;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param listener called on every state change of the ids
+     * @param instanceIds null for none
+     * @param volumeIds null for none
+     * @return id of the subscription
+     */
+    public String subscribe(StateListener listener, Collection<String> instanceIds,
+                            Collection<String> volumeIds) {
+        Subscription subscription = new Subscription(
+                "subscription-" + sequence.incrementAndGet(), listener);
+        synchronized (this) {
+            if (delivery == null) {
+                delivery = Executors.newFixedThreadPool(DELIVERY_THREADS,
+                        new DaemonThreadFactory("state-delivery"));
+                instanceWatcher.addPollListener(instanceListener);
+                volumeWatcher.addPollListener(volumeListener);
+            }
+            subscriptions.put(subscription.id, subscription);
+        }
+        add(subscription.id, instanceIds, volumeIds);
+        return subscription.id;
+    }
+
+    /**
+     * Add ids to a subscription, the current state of ids already seen is
+     * delivered right away
+     */
+    public void add(String subscriptionId, Collection<String> instanceIds,
+                    Collection<String> volumeIds) {
+        Subscription subscription = get(subscriptionId);
+        List<Event> known = new ArrayList<Event>();
+        synchronized (this) {
+            if (instanceIds != null) {
+                for (String id : instanceIds) {
+                    if (subscription.instanceIds.add(id) && instanceStates.containsKey(id)) {
+                        known.add(new Event(INSTANCE, id, null, instanceStates.get(id)));
+                    }
+                }
+            }
+            if (volumeIds != null) {
+                for (String id : volumeIds) {
+                    if (subscription.volumeIds.add(id) && volumeStates.containsKey(id)) {
+                        known.add(new Event(VOLUME, id, null, volumeStates.get(id)));
+                    }
+                }
+            }
+        }
+        for (Event event : known) {
+            subscription.offer(event);
+        }
+    }
+
+    public void remove(String subscriptionId, Collection<String> instanceIds,
+                       Collection<String> volumeIds) {
+        Subscription subscription = get(subscriptionId);
+        synchronized (this) {
+            if (instanceIds != null) {
+                subscription.instanceIds.removeAll(instanceIds);
+            }
+            if (volumeIds != null) {
+                subscription.volumeIds.removeAll(volumeIds);
+            }
+            pruneStates();
+        }
+    }
+
+    public void unsubscribe(String subscriptionId) {
+        synchronized (this) {
+            if (subscriptions.remove(subscriptionId) != null) {
+                pruneStates();
+            }
+        }
+    }
+
+    /**
+     * @return {subscription-id: {"instances":, "volumes":, "queued":,
+     *         "delivered":, "dropped":}}
+     */
+    public synchronized Map<String, Map<String, Long>> getStats() {
+        Map<String, Map<String, Long>> stats = new HashMap<String, Map<String, Long>>();
+        for (Subscription subscription : subscriptions.values()) {
+            Map<String, Long> subscriptionStats = new HashMap<String, Long>();
+            subscriptionStats.put("instances", (long) subscription.instanceIds.size());
+            subscriptionStats.put("volumes", (long) subscription.volumeIds.size());
+            subscriptionStats.put("queued", (long) subscription.queue.size());
+            subscriptionStats.put("delivered", subscription.delivered.get());
+            subscriptionStats.put("dropped", subscription.dropped.get());
+            stats.put(subscription.id, subscriptionStats);
+        }
+        return stats;
+    }
+
+    public synchronized void shutdown() {
+        instanceWatcher.removePollListener(instanceListener);
+        volumeWatcher.removePollListener(volumeListener);
+        if (delivery != null) {
+            delivery.shutdownNow();
+            delivery = null;
+        }
+        subscriptions.clear();
+    }
+
+    private Subscription get(String subscriptionId) {
+        Subscription subscription = subscriptions.get(subscriptionId);
+        if (subscription == null) {
+            throw new IllegalArgumentException("no subscription " + subscriptionId);
+        }
+        return subscription;
+    }
+
+    private synchronized Collection<String> polledIds(boolean instances) {
+        Set<String> ids = new HashSet<String>();
+        for (Subscription subscription : subscriptions.values()) {
+            ids.addAll(instances ? subscription.instanceIds : subscription.volumeIds);
+        }
+        return ids;
+    }
+
+    private synchronized boolean isKnown(String volumeId) {
+        String state = volumeStates.get(volumeId);
+        return state != null && !DELETED.equals(state);
+    }
+
+    private void changed(String resourceType, String id, String state) {
+        List<Subscription> subscribed = new ArrayList<Subscription>();
+        String previous;
+        synchronized (this) {
+            Map<String, String> states = INSTANCE.equals(resourceType) ?
+                    instanceStates : volumeStates;
+            previous = states.put(id, state);
+            if (state.equals(previous)) {
+                return;
+            }
+            for (Subscription subscription : subscriptions.values()) {
+                Set<String> ids = INSTANCE.equals(resourceType) ?
+                        subscription.instanceIds : subscription.volumeIds;
+                if (ids.contains(id)) {
+                    subscribed.add(subscription);
+                }
+            }
+        }
+        Event event = new Event(resourceType, id, previous, state);
+        for (Subscription subscription : subscribed) {
+            subscription.offer(event);
+        }
+    }
+
+    // forget states of ids no subscription has any more
+    private void pruneStates() {
+        instanceStates.keySet().retainAll(polledIds(true));
+        volumeStates.keySet().retainAll(polledIds(false));
+    }
+}
@@ -0,0 +1,320 @@
+import com.amazonaws.services.ec2.AmazonEC2;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared watcher of the states of one kind of EC2 resource. Instead of
+ * every caller polling its own resource, all watched ids are batched into
+ * one describe call per tick, and the waiting handles are completed from
+ * the result. Poll listeners get their ids described in the same batches.
+ * Subclasses describe a batch of ids and tell the state of a resource.
+ */
+public abstract class StateWatcher<T> {
+    private static final Log log = LogFactory.getLog(StateWatcher.class);
+
+    // max values of one id filter per request
+    static final int MAX_IDS_PER_REQUEST = 200;
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    protected final AmazonEC2 ec2;
+    private final String kind;
+    private final long intervalMillis;
+    private final Map<String, List<Waiter<T>>> waiters =
+            new HashMap<String, List<Waiter<T>>>();
+    private final List<PollListener<T>> listeners =
+            new CopyOnWriteArrayList<PollListener<T>>();
+    private ScheduledExecutorService scheduler = null;
+
+    private static class Waiter<T> {
+        final String targetState;
+        final long createdAt = System.currentTimeMillis();
+        final long deadline;
+        final OperationHandle<T> handle;
+        final long startNanos = System.nanoTime();
+        // whether the resource was described since watched
+        boolean seen = false;
+
+        Waiter(String targetState, long deadline, OperationHandle<T> handle) {
+            this.targetState = targetState;
+            this.deadline = deadline;
+            this.handle = handle;
+        }
+    }
+
+    /**
+     * @param ec2
+     * @param kind of resource, e.g. "instance", in thread and metric names
+     * @param intervalMillis between ticks
+     */
+    protected StateWatcher(AmazonEC2 ec2, String kind, long intervalMillis) {
+        this.ec2 = ec2;
+        this.kind = kind;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Describe resources with one request, or as few as paging allows
+     * @param ids at most MAX_IDS_PER_REQUEST; ids not found are left out
+     *            rather than failing the batch
+     * @return {id: resource}
+     */
+    protected abstract Map<String, T> describe(List<String> ids);
+
+    /**
+     * @return state of resource, as watched for
+     */
+    protected abstract String stateOf(T resource);
+
+    /**
+     * @return whether a resource in state never reaches targetState
+     */
+    protected boolean isUnreachable(String targetState, String state) {
+        return false;
+    }
+
+    /**
+     * @return how long after being watched an id not found is taken as
+     *         deleted, 0 to wait for the timeout. An id seen before is
+     *         taken as deleted as soon as it is no longer found.
+     */
+    protected long getNotFoundGraceMillis() {
+        return 0;
+    }
+
+    /**
+     * Wait for resource to reach target state
+     * @param id of the resource
+     * @param targetState e.g. "running", "available"
+     * @param timeoutMillis
+     * @return handle completed with the described resource once it is in
+     *         target state, or failed on timeout
+     */
+    public OperationHandle<T> watch(String id, String targetState, long timeoutMillis) {
+        OperationHandle<T> handle = new OperationHandle<T>(
+                "watch-" + id + "-" + sequence.incrementAndGet());
+        Waiter<T> waiter = new Waiter<T>(targetState,
+                System.currentTimeMillis() + timeoutMillis, handle);
+        synchronized (waiters) {
+            List<Waiter<T>> list = waiters.get(id);
+            if (list == null) {
+                list = new LinkedList<Waiter<T>>();
+                waiters.put(id, list);
+            }
+            list.add(waiter);
+            ensureStarted();
+        }
+        return handle;
+    }
+
+    public void addPollListener(PollListener<T> listener) {
+        listeners.add(listener);
+        synchronized (waiters) {
+            ensureStarted();
+        }
+    }
+
+    public void removePollListener(PollListener<T> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return number of ids currently being waited for
+     */
+    public int getPendingCount() {
+        synchronized (waiters) {
+            return waiters.size();
+        }
+    }
+
+    public void shutdown() {
+        synchronized (waiters) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+    }
+
+    private void ensureStarted() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory(kind + "-state-watcher"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    tick();
+                } catch (Throwable t) {
+                    // keep watching, the next tick will retry
+                    log.warn("failed to describe watched " + kind + "s", t);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void tick() {
+        RateLimitedEC2.setBackground(true);
+        List<String> waited = expireAndSnapshot();
+        Set<String> idSet = new LinkedHashSet<String>(waited);
+        Map<PollListener<T>, Collection<String>> polled =
+                new HashMap<PollListener<T>, Collection<String>>();
+        for (PollListener<T> listener : listeners) {
+            Collection<String> listenerIds = listener.getPolledIds();
+            polled.put(listener, listenerIds);
+            idSet.addAll(listenerIds);
+        }
+        if (idSet.isEmpty()) {
+            return;
+        }
+
+        List<String> ids = new ArrayList<String>(idSet);
+        Map<String, T> described = new HashMap<String, T>();
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_REQUEST) {
+            List<String> chunk = ids.subList(from,
+                    Math.min(ids.size(), from + MAX_IDS_PER_REQUEST));
+            Map<String, T> resources = describe(chunk);
+            described.putAll(resources);
+            for (Map.Entry<String, T> entry : resources.entrySet()) {
+                update(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String id : waited) {
+            if (!described.containsKey(id)) {
+                notFound(id);
+            }
+        }
+
+        for (Map.Entry<PollListener<T>, Collection<String>> entry : polled.entrySet()) {
+            try {
+                entry.getKey().onPolled(entry.getValue(), described);
+            } catch (RuntimeException e) {
+                log.warn("poll listener failed", e);
+            }
+        }
+    }
+
+    private List<String> expireAndSnapshot() {
+        List<Waiter<T>> expired = new ArrayList<Waiter<T>>();
+        List<String> ids;
+        long now = System.currentTimeMillis();
+        synchronized (waiters) {
+            Iterator<Map.Entry<String, List<Waiter<T>>>> it =
+                    waiters.entrySet().iterator();
+            while (it.hasNext()) {
+                List<Waiter<T>> list = it.next().getValue();
+                Iterator<Waiter<T>> wit = list.iterator();
+                while (wit.hasNext()) {
+                    Waiter<T> waiter = wit.next();
+                    if (waiter.handle.isDone() || waiter.deadline <= now) {
+                        expired.add(waiter);
+                        wit.remove();
+                    }
+                }
+                if (list.isEmpty()) {
+                    it.remove();
+                }
+            }
+            ids = new ArrayList<String>(waiters.keySet());
+        }
+
+        for (Waiter<T> waiter : expired) {
+            if (waiter.handle.fail(new Exception(
+                    "timed out to wait " + kind + " to be " + waiter.targetState))) {
+                timerOf(waiter).recordError();
+            }
+        }
+        return ids;
+    }
+
+    private void update(String id, T resource) {
+        String state = stateOf(resource);
+        List<Waiter<T>> reached = new ArrayList<Waiter<T>>();
+        List<Waiter<T>> lost = new ArrayList<Waiter<T>>();
+        synchronized (waiters) {
+            List<Waiter<T>> list = waiters.get(id);
+            if (list == null) {
+                return;
+            }
+            Iterator<Waiter<T>> it = list.iterator();
+            while (it.hasNext()) {
+                Waiter<T> waiter = it.next();
+                waiter.seen = true;
+                if (waiter.targetState.equals(state)) {
+                    reached.add(waiter);
+                    it.remove();
+                } else if (isUnreachable(waiter.targetState, state)) {
+                    lost.add(waiter);
+                    it.remove();
+                }
+            }
+            if (list.isEmpty()) {
+                waiters.remove(id);
+            }
+        }
+
+        for (Waiter<T> waiter : reached) {
+            timerOf(waiter).recordSince(waiter.startNanos);
+            waiter.handle.complete(resource);
+        }
+        for (Waiter<T> waiter : lost) {
+            timerOf(waiter).recordError();
+            waiter.handle.fail(new Exception(kind + " " + id + " is " + state +
+                    ", will never be " + waiter.targetState));
+        }
+    }
+
+    private void notFound(String id) {
+        long grace = getNotFoundGraceMillis();
+        if (grace <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Waiter<T>> gone = new ArrayList<Waiter<T>>();
+        synchronized (waiters) {
+            List<Waiter<T>> list = waiters.get(id);
+            if (list == null) {
+                return;
+            }
+            Iterator<Waiter<T>> it = list.iterator();
+            while (it.hasNext()) {
+                Waiter<T> waiter = it.next();
+                // not visible yet right after being created, unless seen
+                if (waiter.seen || now - waiter.createdAt >= grace) {
+                    gone.add(waiter);
+                    it.remove();
+                }
+            }
+            if (list.isEmpty()) {
+                waiters.remove(id);
+            }
+        }
+
+        for (Waiter<T> waiter : gone) {
+            timerOf(waiter).recordError();
+            waiter.handle.fail(new Exception(kind + " " + id +
+                    " no longer exists, will never be " + waiter.targetState));
+        }
+    }
+
+    private MetricTimer timerOf(Waiter<T> waiter) {
+        return Metrics.timer("wait." + kind + "-" + waiter.targetState);
+    }
+}
@@ -0,0 +1,182 @@
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs named tasks as soon as the tasks they depend on succeeded, so
+ * independent steps of an operation overlap instead of running in a
+ * chain. A task returning an OperationHandle is done once the handle
+ * completes, with its result, which lets a task wait on the watchers
+ * without holding a thread. The graph fails with the first failed task,
+ * and tasks not started by then never run.
+ */
+public class TaskGraph {
+    private static final Log log = LogFactory.getLog(TaskGraph.class);
+
+    public interface Task {
+        /**
+         * @param results {name: result} of the tasks this task depends on
+         * @return result of the task, or an OperationHandle of it
+         */
+        Object run(Map<String, Object> results) throws Exception;
+    }
+
+    private static class Node {
+        final String name;
+        final Task task;
+        final List<String> dependencies;
+        int waitingFor;
+
+        Node(String name, Task task, List<String> dependencies) {
+            this.name = name;
+            this.task = task;
+            this.dependencies = dependencies;
+            this.waitingFor = dependencies.size();
+        }
+    }
+
+    private final String id;
+    private final Executor executor;
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+    private final Map<String, List<Node>> dependents = new HashMap<String, List<Node>>();
+    // guarded by this
+    private final Map<String, Object> results = new HashMap<String, Object>();
+    private OperationHandle<Map<String, Object>> handle = null;
+
+    /**
+     * @param id of the handle of the graph
+     * @param executor running the tasks
+     */
+    public TaskGraph(String id, Executor executor) {
+        this.id = id;
+        this.executor = executor;
+    }
+
+    /**
+     * @param name unique name of the task
+     * @param task
+     * @param dependsOn names of tasks added before
+     */
+    public synchronized TaskGraph add(String name, Task task, String... dependsOn) {
+        if (handle != null) {
+            throw new IllegalStateException("graph " + id + " already started");
+        }
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("duplicate task " + name);
+        }
+        List<String> dependencies = new ArrayList<String>();
+        Collections.addAll(dependencies, dependsOn);
+        Node node = new Node(name, task, dependencies);
+        for (String dependency : dependencies) {
+            if (!nodes.containsKey(dependency)) {
+                throw new IllegalArgumentException(
+                        "task " + name + " depends on unknown task " + dependency);
+            }
+            dependents.get(dependency).add(node);
+        }
+        nodes.put(name, node);
+        dependents.put(name, new ArrayList<Node>());
+        return this;
+    }
+
+    /**
+     * Start the tasks without dependency
+     * @return handle completed with {name: result} of all tasks
+     */
+    public OperationHandle<Map<String, Object>> start() {
+        List<Node> ready = new ArrayList<Node>();
+        synchronized (this) {
+            if (handle != null) {
+                throw new IllegalStateException("graph " + id + " already started");
+            }
+            handle = new OperationHandle<Map<String, Object>>(id);
+            if (nodes.isEmpty()) {
+                handle.complete(results);
+                return handle;
+            }
+            for (Node node : nodes.values()) {
+                if (node.waitingFor == 0) {
+                    ready.add(node);
+                }
+            }
+        }
+        for (Node node : ready) {
+            submit(node);
+        }
+        return handle;
+    }
+
+    private void submit(final Node node) {
+        executor.execute(new Runnable() {
+            public void run() {
+                if (handle.isDone()) {
+                    return;
+                }
+                Map<String, Object> inputs = new HashMap<String, Object>();
+                synchronized (TaskGraph.this) {
+                    for (String dependency : node.dependencies) {
+                        inputs.put(dependency, results.get(dependency));
+                    }
+                }
+                Object result;
+                try {
+                    result = node.task.run(inputs);
+                } catch (Exception e) {
+                    failed(node, e);
+                    return;
+                }
+                if (!(result instanceof OperationHandle)) {
+                    succeeded(node, result);
+                    return;
+                }
+                @SuppressWarnings("unchecked")
+                OperationHandle<Object> pending = (OperationHandle<Object>) result;
+                pending.addCallback(new OperationHandle.Callback<Object>() {
+                    public void onSuccess(Object value) {
+                        succeeded(node, value);
+                    }
+
+                    public void onFailure(Exception error) {
+                        failed(node, error);
+                    }
+                });
+            }
+        });
+    }
+
+    private void succeeded(Node node, Object result) {
+        List<Node> ready = new ArrayList<Node>();
+        Map<String, Object> all = null;
+        synchronized (this) {
+            results.put(node.name, result);
+            for (Node dependent : dependents.get(node.name)) {
+                if (--dependent.waitingFor == 0) {
+                    ready.add(dependent);
+                }
+            }
+            if (results.size() == nodes.size()) {
+                all = new HashMap<String, Object>(results);
+            }
+        }
+        if (all != null) {
+            handle.complete(all);
+            return;
+        }
+        for (Node dependent : ready) {
+            submit(dependent);
+        }
+    }
+
+    private void failed(Node node, Exception e) {
+        if (handle.fail(e)) {
+            log.warn("task " + node.name + " of " + id + " failed", e);
+        }
+    }
+}
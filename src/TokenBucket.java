@@ -0,0 +1,80 @@
+/**
+ * Token bucket pacing one category of EC2 API calls. Its rate adapts to
+ * EC2 throttling: halved on every throttled call and raised additively on
+ * every successful one, between minRate and maxRate. Background callers
+ * can't take the last reserved tokens, so interactive calls go first.
+ */
+public class TokenBucket {
+    private static final double RESERVED_FRACTION = 0.25;
+
+    private final String name;
+    private final double maxRate;
+    private final double minRate;
+    private final double capacity;
+    private double rate;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * @param name
+     * @param maxRate calls per second
+     * @param burst max tokens kept when idle
+     */
+    public TokenBucket(String name, double maxRate, double burst) {
+        this.name = name;
+        this.maxRate = maxRate;
+        this.minRate = Math.max(0.1, maxRate / 50);
+        this.capacity = burst;
+        this.rate = maxRate;
+        this.tokens = burst;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Take one token, sleeping until one is available
+     * @param background whether the call is background work
+     * @throws InterruptedException
+     */
+    public void acquire(boolean background) throws InterruptedException {
+        // a small bucket still leaves background callers one token
+        double floor = background ?
+                Math.max(0, Math.min(capacity * RESERVED_FRACTION, capacity - 1)) : 0;
+        while (true) {
+            long sleepNanos;
+            synchronized (this) {
+                refill();
+                if (tokens >= floor + 1) {
+                    tokens -= 1;
+                    return;
+                }
+                sleepNanos = (long) ((floor + 1 - tokens) / rate * 1e9);
+            }
+            Thread.sleep(Math.max(1, sleepNanos / 1000000),
+                    (int) (sleepNanos % 1000000));
+        }
+    }
+
+    public synchronized void onSuccess() {
+        rate = Math.min(maxRate, rate + maxRate / 100);
+    }
+
+    public synchronized void onThrottle() {
+        refill();
+        rate = Math.max(minRate, rate / 2);
+        // drop the burst too, it is what got us throttled
+        tokens = Math.min(tokens, 0);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) / 1e9 * rate);
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,241 @@
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AttachVolumeRequest;
+import com.amazonaws.services.ec2.model.DetachVolumeRequest;
+import com.amazonaws.services.ec2.model.Volume;
+import com.amazonaws.services.ec2.model.VolumeAttachment;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Attaches or detaches many volumes at once. The AttachVolume and
+ * DetachVolume calls run on a bounded pool, then each volume is waited
+ * for by the shared volume watcher, so all volumes of all batches are
+ * tracked by one DescribeVolumes per tick until "attached", or
+ * "available" once detached.
+ */
+public class VolumeAttacher {
+    static final int PARALLELISM = Integer.getInteger("ec2.attach.parallelism", 8);
+    static final long TIMEOUT_MILLIS = Long.getLong("ec2.attach.timeoutMillis", 5 * 60 * 1000);
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Handle of one batch, completed once every volume is done, with
+     * {volume id: {"instance-id":, "device":, "state":}}, or
+     * {volume id: {"instance-id":, "error":}} for a volume which failed
+     */
+    public static class Batch extends OperationHandle<HashMap<String, HashMap<String, String>>> {
+        private final Map<String, OperationHandle<Volume>> handles =
+                new LinkedHashMap<String, OperationHandle<Volume>>();
+        private final HashMap<String, HashMap<String, String>> results =
+                new HashMap<String, HashMap<String, String>>();
+        // volumes not done yet, adding them counts as one
+        private final AtomicInteger remaining = new AtomicInteger(1);
+        private final AtomicInteger failed = new AtomicInteger();
+        private final VolumeStateWatcher volumeWatcher;
+
+        Batch(String id, VolumeStateWatcher volumeWatcher) {
+            super(id);
+            this.volumeWatcher = volumeWatcher;
+        }
+
+        /**
+         * @param volumeId
+         * @return handle of the volume alone, completed with its
+         *         description once attached or detached
+         */
+        public OperationHandle<Volume> getHandle(String volumeId) {
+            return handles.get(volumeId);
+        }
+
+        public Map<String, OperationHandle<Volume>> getHandles() {
+            return Collections.unmodifiableMap(handles);
+        }
+
+        /**
+         * @return {"requested":, "pending":, "done":, "failed":} so far
+         */
+        public Map<String, Long> getProgress() {
+            Map<String, Long> progress = new HashMap<String, Long>();
+            long pending = isDone() ? 0 : remaining.get();
+            progress.put("requested", (long) handles.size());
+            progress.put("pending", pending);
+            progress.put("done", handles.size() - pending - failed.get());
+            progress.put("failed", (long) failed.get());
+            return progress;
+        }
+
+        void add(final String volumeId, final String instanceId,
+                 OperationHandle<Volume> handle) {
+            handles.put(volumeId, handle);
+            remaining.incrementAndGet();
+            handle.addCallback(new OperationHandle.Callback<Volume>() {
+                public void onSuccess(Volume volume) {
+                    HashMap<String, String> result = new HashMap<String, String>();
+                    result.put("instance-id", instanceId);
+                    result.put("state", volumeWatcher.stateOf(volume));
+                    for (VolumeAttachment attachment : volume.getAttachments()) {
+                        result.put("device", attachment.getDevice());
+                    }
+                    done(volumeId, result);
+                }
+
+                public void onFailure(Exception error) {
+                    failed.incrementAndGet();
+                    HashMap<String, String> result = new HashMap<String, String>();
+                    result.put("instance-id", instanceId);
+                    result.put("error", error.getMessage());
+                    done(volumeId, result);
+                }
+            });
+        }
+
+        void added() {
+            finished();
+        }
+
+        private void done(String volumeId, HashMap<String, String> result) {
+            synchronized (results) {
+                results.put(volumeId, result);
+            }
+            finished();
+        }
+
+        private void finished() {
+            if (remaining.decrementAndGet() == 0) {
+                synchronized (results) {
+                    complete(new HashMap<String, HashMap<String, String>>(results));
+                }
+            }
+        }
+    }
+
+    private final AmazonEC2 ec2;
+    private final VolumeStateWatcher volumeWatcher;
+    private final OperationJournal journal;
+    private final ExecutorService pool;
+
+    public VolumeAttacher(RegionContext context) {
+        this.ec2 = context.getEC2();
+        this.volumeWatcher = context.getVolumeWatcher();
+        this.journal = context.getJournal();
+        pool = Executors.newFixedThreadPool(PARALLELISM,
+                new DaemonThreadFactory("attach-" + context.getRegion()));
+    }
+
+    /**
+     * Attach volumes
+     * @param instanceIds {volume id: instance id to attach it to}
+     * @param devices {volume id: device name, e.g. "/dev/sdf"}
+     */
+    public Batch attach(Map<String, String> instanceIds, Map<String, String> devices) {
+        for (String volumeId : instanceIds.keySet()) {
+            if (devices.get(volumeId) == null) {
+                throw new IllegalArgumentException("no device for volume " + volumeId);
+            }
+        }
+        Batch batch = new Batch("attach-" + sequence.incrementAndGet(), volumeWatcher);
+        for (Map.Entry<String, String> entry : instanceIds.entrySet()) {
+            batch.add(entry.getKey(), entry.getValue(), attach(entry.getKey(),
+                    entry.getValue(), devices.get(entry.getKey())));
+        }
+        batch.added();
+        return batch;
+    }
+
+    /**
+     * Detach volumes
+     * @param instanceIds {volume id: instance id to detach it from}
+     * @param force whether to force the detach, which risks the data not
+     *              flushed by the instance
+     */
+    public Batch detach(Map<String, String> instanceIds, boolean force) {
+        Batch batch = new Batch("detach-" + sequence.incrementAndGet(), volumeWatcher);
+        for (Map.Entry<String, String> entry : instanceIds.entrySet()) {
+            batch.add(entry.getKey(), entry.getValue(),
+                    detach(entry.getKey(), entry.getValue(), force));
+        }
+        batch.added();
+        return batch;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private OperationHandle<Volume> attach(final String volumeId, final String instanceId,
+                                           final String device) {
+        final OperationHandle<Volume> handle = new OperationHandle<Volume>(
+                "attach-" + volumeId + "-" + sequence.incrementAndGet());
+        execute(handle, new Runnable() {
+            public void run() {
+                // on the pool, so the batch's forces are shared and the
+                // caller doesn't wait for them
+                OperationJournal.Entry entry = journal.begin("attach-volume",
+                        OperationJournal.arguments("volume-id", volumeId,
+                                "instance-id", instanceId, "device", device));
+                journal.endWhenDone(entry, handle);
+                try {
+                    ec2.attachVolume(new AttachVolumeRequest().withVolumeId(volumeId).
+                            withInstanceId(instanceId).withDevice(device));
+                } catch (RuntimeException e) {
+                    handle.fail(e);
+                    return;
+                }
+                follow(volumeWatcher.watch(volumeId, "attached", TIMEOUT_MILLIS), handle);
+            }
+        });
+        return handle;
+    }
+
+    private OperationHandle<Volume> detach(final String volumeId, final String instanceId,
+                                           final boolean force) {
+        final OperationHandle<Volume> handle = new OperationHandle<Volume>(
+                "detach-" + volumeId + "-" + sequence.incrementAndGet());
+        execute(handle, new Runnable() {
+            public void run() {
+                try {
+                    ec2.detachVolume(new DetachVolumeRequest().withVolumeId(volumeId).
+                            withInstanceId(instanceId).withForce(force));
+                } catch (RuntimeException e) {
+                    handle.fail(e);
+                    return;
+                }
+                follow(volumeWatcher.watch(volumeId, "available", TIMEOUT_MILLIS), handle);
+            }
+        });
+        return handle;
+    }
+
+    /**
+     * Run task on the pool, or fail handle if the pool is shut down
+     */
+    private void execute(OperationHandle<Volume> handle, Runnable task) {
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            handle.fail(e);
+        }
+    }
+
+    private static void follow(OperationHandle<Volume> watch,
+                               final OperationHandle<Volume> handle) {
+        watch.addCallback(new OperationHandle.Callback<Volume>() {
+            public void onSuccess(Volume volume) {
+                handle.complete(volume);
+            }
+
+            public void onFailure(Exception error) {
+                handle.fail(error);
+            }
+        });
+    }
+}
@@ -0,0 +1,89 @@
+import com.amazonaws.services.ec2.model.CreateVolumeRequest;
+import com.amazonaws.services.ec2.model.DeleteVolumeRequest;
+import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.amazonaws.services.ec2.model.DescribeVolumesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.Volume;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of blank EBS volumes, bucketed by size in GiB, e.g.
+ * -Dec2.volumePool=8:4,100:1-2. Volumes are created in the home zone of
+ * the region and each is claimed only for its own zone, so those left
+ * in a former home zone serve its instances until they expire.
+ */
+public class VolumePool extends ResourcePool {
+    private static final Log log = LogFactory.getLog(VolumePool.class);
+
+    static final String POOL_TAG = "volume-pool";
+
+    private final RegionContext context;
+
+    public VolumePool(RegionContext context, String spec, long intervalMillis,
+                      long ttlMillis) {
+        super(context.getEC2(), context.getRegion(), "volume", POOL_TAG, spec, intervalMillis, ttlMillis);
+        this.context = context;
+    }
+
+    /**
+     * @param size in GiB
+     * @param zone the volume has to be in
+     * @return id of a blank volume of size in zone, or null if none is
+     *         pooled
+     */
+    public String claim(int size, String zone) {
+        return claim(String.valueOf(size), zone);
+    }
+
+    protected String zone() throws Exception {
+        return context.getAvailZone().getZoneName();
+    }
+
+    protected List<String> create(String key, String zone, int count) throws Exception {
+        List<String> ids = new ArrayList<String>();
+        // no bulk CreateVolume, keep what was created if one fails
+        try {
+            for (int i = 0; i < count; i++) {
+                ids.add(ec2.createVolume(new CreateVolumeRequest().
+                        withAvailabilityZone(zone).withSize(Integer.parseInt(key))).
+                        getVolume().getVolumeId());
+            }
+        } catch (RuntimeException e) {
+            log.warn("created " + ids.size() + " of " + count + " volumes of " + key, e);
+        }
+        return ids;
+    }
+
+    protected void delete(String id) {
+        ec2.deleteVolume(new DeleteVolumeRequest().withVolumeId(id));
+    }
+
+    protected Map<String, Map<String, String>> findTagged(String tagKey, List<String> keys) {
+        Map<String, Map<String, String>> found = new HashMap<String, Map<String, String>>();
+        DescribeVolumesRequest request = new DescribeVolumesRequest().withFilters(
+                new Filter().withName("tag:" + tagKey).withValues(keys),
+                new Filter().withName("status").withValues("creating", "available"));
+        DescribeVolumesResult result = ec2.describeVolumes(request);
+        for (Volume volume : result.getVolumes()) {
+            for (Tag tag : volume.getTags()) {
+                if (tagKey.equals(tag.getKey())) {
+                    Map<String, String> ids = found.get(tag.getValue());
+                    if (ids == null) {
+                        ids = new HashMap<String, String>();
+                        found.put(tag.getValue(), ids);
+                    }
+                    ids.put(volume.getVolumeId(), volume.getAvailabilityZone());
+                }
+            }
+        }
+        return found;
+    }
+}
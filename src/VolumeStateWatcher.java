@@ -0,0 +1,61 @@
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Volume;
+import com.amazonaws.services.ec2.model.VolumeAttachment;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared watcher of EBS volume states: all watched volume ids are batched
+ * into one DescribeVolumes call per tick. The state of a volume is the
+ * state of its attachment while it has one ("attaching", "attached",
+ * "detaching"), else its own status ("creating", "available", ...). A
+ * watched volume no longer found fails its waiters on that tick, or once
+ * NOT_FOUND_GRACE_MILLIS passed if it was never found.
+ */
+public class VolumeStateWatcher extends StateWatcher<Volume> {
+    static final long NOT_FOUND_GRACE_MILLIS =
+            Long.getLong("ec2.volumeWatcher.notFoundGraceMillis", 30 * 1000);
+
+    public VolumeStateWatcher(AmazonEC2 ec2, long intervalMillis) {
+        super(ec2, "volume", intervalMillis);
+    }
+
+    /**
+     * @return "attaching", "attached", "detaching" for a volume with an
+     *         attachment, else the status of volume
+     */
+    public String stateOf(Volume volume) {
+        for (VolumeAttachment attachment : volume.getAttachments()) {
+            if (attachment.getState() != null) {
+                return attachment.getState();
+            }
+        }
+        return volume.getState();
+    }
+
+    protected Map<String, Volume> describe(List<String> ids) {
+        Map<String, Volume> described = new HashMap<String, Volume>();
+        // filter so that a deleted volume doesn't fail the whole batch
+        DescribeVolumesRequest request = new DescribeVolumesRequest().
+                withFilters(new Filter().withName("volume-id").withValues(ids));
+        for (Volume volume : ec2.describeVolumes(request).getVolumes()) {
+            described.put(volume.getVolumeId(), volume);
+        }
+        return described;
+    }
+
+    protected boolean isUnreachable(String targetState, String state) {
+        if ("deleting".equals(targetState) || "deleted".equals(targetState)) {
+            return false;
+        }
+        return "deleting".equals(state) || "deleted".equals(state) || "error".equals(state);
+    }
+
+    protected long getNotFoundGraceMillis() {
+        return NOT_FOUND_GRACE_MILLIS;
+    }
+}
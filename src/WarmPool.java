@@ -0,0 +1,481 @@
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-launched instances per (AMI, data subnet), so a launch claims one
+ * instead of waiting for EC2 cold start. Pools are configured with
+ * -Dec2.warmPool=ami-1@subnet-a:4,ami-2:2 (subnet optional), and kept
+ * "running" or "stopped" per -Dec2.warmPool.state. Pooled instances are
+ * tagged "warm-pool" so a restarted server adopts them. A pool is
+ * refilled in background after every claim, and drained once nothing was
+ * claimed from it for ec2.warmPool.maxIdleMillis, until its next miss.
+ */
+public class WarmPool {
+    private static final Log log = LogFactory.getLog(WarmPool.class);
+
+    static final String POOL_TAG = "warm-pool";
+    // value of POOL_TAG once an instance left its pool
+    static final String CLAIMED = "claimed";
+    static final boolean KEEP_STOPPED =
+            "stopped".equals(System.getProperty("ec2.warmPool.state", "running"));
+    static final long MAX_IDLE_MILLIS = Long.getLong("ec2.warmPool.maxIdleMillis", 60 * 60 * 1000);
+    static final long LAUNCH_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private static class Pool {
+        final String key;
+        final String imageId;
+        final String subnetId;
+        final int size;
+        // claimable, each either running or stopped
+        final LinkedList<Instance> ready = new LinkedList<Instance>();
+        // surplus being terminated, no longer claimable
+        final List<Instance> reaping = new ArrayList<Instance>();
+        int launching = 0;
+        long lastClaimAt = System.currentTimeMillis();
+        boolean drained = false;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong reaped = new AtomicLong();
+
+        Pool(String imageId, String subnetId, int size) {
+            this.key = keyOf(imageId, subnetId);
+            this.imageId = imageId;
+            this.subnetId = subnetId;
+            this.size = size;
+        }
+    }
+
+    private final RegionContext context;
+    private final AmazonEC2 ec2;
+    private final InstanceStateWatcher instanceWatcher;
+    private final long intervalMillis;
+    private final Map<String, Pool> pools = new LinkedHashMap<String, Pool>();
+    private ScheduledExecutorService scheduler = null;
+    private boolean adopted = false;
+    private boolean refillQueued = false;
+
+    private final Runnable refill = new Runnable() {
+        public void run() {
+            try {
+                tick();
+            } catch (Throwable t) {
+                log.warn("failed to refill warm pools", t);
+            }
+        }
+    };
+
+    /**
+     * @param context region of the pools
+     * @param spec "ami-1@subnet-a:4,ami-2:2", null or empty for no pool
+     * @param intervalMillis how often pools are checked
+     */
+    public WarmPool(RegionContext context, String spec, long intervalMillis) {
+        this.context = context;
+        this.ec2 = context.getEC2();
+        this.instanceWatcher = context.getInstanceWatcher();
+        this.intervalMillis = intervalMillis;
+        if (spec == null) {
+            return;
+        }
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            String target = colon < 0 ? entry : entry.substring(0, colon);
+            int size = colon < 0 ? 1 : Integer.parseInt(entry.substring(colon + 1).trim());
+            int at = target.indexOf('@');
+            Pool pool = at < 0 ? new Pool(target, null, size) :
+                    new Pool(target.substring(0, at), target.substring(at + 1), size);
+            pools.put(pool.key, pool);
+            registerGauges(pool);
+        }
+    }
+
+    static String keyOf(String imageId, String subnetId) {
+        return subnetId == null ? imageId : imageId + "@" + subnetId;
+    }
+
+    public boolean isEnabled() {
+        return !pools.isEmpty();
+    }
+
+    /**
+     * Start adopting and filling pools in background
+     */
+    public synchronized void start() {
+        if (scheduler != null || pools.isEmpty()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("warm-pool"));
+        scheduler.scheduleWithFixedDelay(refill, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Take an instance out of the pool of (imageId, subnetId). The caller
+     * owns it from now on, and has to retag it.
+     * @param imageId
+     * @param subnetId data subnet, null for default
+     * @param stoppedOnly only take a stopped instance, e.g. to change its
+     *                    user data before start
+     * @return the pooled instance, running or stopped, or null if the
+     *         pool is empty or not configured
+     */
+    public Instance claim(String imageId, String subnetId, boolean stoppedOnly) {
+        Instance claimed = null;
+        synchronized (this) {
+            Pool pool = pools.get(keyOf(imageId, subnetId));
+            if (pool == null) {
+                return null;
+            }
+            pool.lastClaimAt = System.currentTimeMillis();
+            pool.drained = false;
+            for (Iterator<Instance> it = pool.ready.iterator(); it.hasNext(); ) {
+                Instance instance = it.next();
+                if (!stoppedOnly || "stopped".equals(instance.getState().getName())) {
+                    it.remove();
+                    claimed = instance;
+                    break;
+                }
+            }
+            if (claimed == null) {
+                pool.misses.incrementAndGet();
+            } else {
+                pool.hits.incrementAndGet();
+            }
+            // refill right away rather than on next tick, one batch for all
+            // claims until it runs
+            if (scheduler != null && !refillQueued) {
+                refillQueued = true;
+                scheduler.execute(refill);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Give up a claimed instance the caller failed to take over, e.g. to
+     * retag, terminating it in background
+     */
+    public void discard(Instance claimed) {
+        log.warn("discarding claimed instance " + claimed.getInstanceId());
+        terminateLater(claimed.getInstanceId());
+    }
+
+    /**
+     * @return {pool-key: {"size":, "ready":, "launching":, "hits":,
+     *         "misses":, "reaped":}}
+     */
+    public synchronized Map<String, Map<String, Long>> getStats() {
+        Map<String, Map<String, Long>> stats = new HashMap<String, Map<String, Long>>();
+        for (Pool pool : pools.values()) {
+            Map<String, Long> poolStats = new HashMap<String, Long>();
+            poolStats.put("size", (long) pool.size);
+            poolStats.put("ready", (long) pool.ready.size());
+            poolStats.put("launching", (long) pool.launching);
+            poolStats.put("hits", pool.hits.get());
+            poolStats.put("misses", pool.misses.get());
+            poolStats.put("reaped", pool.reaped.get());
+            stats.put(pool.key, poolStats);
+        }
+        return stats;
+    }
+
+    private void registerGauges(final Pool pool) {
+        Metrics.gauge("warmpool." + context.getRegion() + "." + pool.key + ".ready",
+                new Metrics.Gauge() {
+                    public double value() {
+                        synchronized (WarmPool.this) {
+                            return pool.ready.size();
+                        }
+                    }
+                });
+    }
+
+    void tick() throws Exception {
+        RateLimitedEC2.setBackground(true);
+        if (!adopted) {
+            adopt();
+            adopted = true;
+        }
+        long now = System.currentTimeMillis();
+        List<Pool> snapshot;
+        synchronized (this) {
+            refillQueued = false;
+            snapshot = new ArrayList<Pool>(pools.values());
+        }
+        // a pool failing doesn't hold up the others
+        for (Pool pool : snapshot) {
+            try {
+                tick(pool, now);
+            } catch (RuntimeException e) {
+                log.warn("failed to refill warm pool " + pool.key, e);
+            }
+        }
+    }
+
+    private void tick(Pool pool, long now) {
+        List<Instance> surplus;
+        int deficit;
+        synchronized (this) {
+            if (!pool.drained && now - pool.lastClaimAt > MAX_IDLE_MILLIS) {
+                pool.drained = true;
+                log.info("draining idle warm pool " + pool.key);
+            }
+            int keep = pool.drained ? 0 : pool.size;
+            while (pool.ready.size() > keep) {
+                pool.reaping.add(pool.ready.removeLast());
+            }
+            surplus = new ArrayList<Instance>(pool.reaping);
+            deficit = keep - pool.ready.size() - pool.launching;
+            if (deficit > 0) {
+                pool.launching += deficit;
+            }
+        }
+        if (!surplus.isEmpty()) {
+            reap(pool, surplus);
+        }
+        if (deficit > 0) {
+            launch(pool, deficit);
+        }
+    }
+
+    /**
+     * terminate surplus instances, which are retried on next tick until
+     * terminated
+     */
+    private void reap(Pool pool, List<Instance> surplus) {
+        List<String> ids = new ArrayList<String>();
+        for (Instance instance : surplus) {
+            ids.add(instance.getInstanceId());
+        }
+        try {
+            ec2.terminateInstances(new TerminateInstancesRequest().withInstanceIds(ids));
+        } catch (RuntimeException e) {
+            log.warn("failed to terminate " + ids.size() + " surplus instances of warm pool " +
+                    pool.key + ", retrying on next tick", e);
+            return;
+        }
+        synchronized (this) {
+            pool.reaping.removeAll(surplus);
+        }
+        pool.reaped.addAndGet(ids.size());
+    }
+
+    /**
+     * Take back pooled instances left by a previous server
+     */
+    private void adopt() {
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(
+                new Filter().withName("tag:" + POOL_TAG).withValues(
+                        new ArrayList<String>(pools.keySet())),
+                new Filter().withName("instance-state-name").withValues(
+                        "pending", "running", "stopping", "stopped"));
+        do {
+            DescribeInstancesResult result = ec2.describeInstances(request);
+            for (Reservation reservation : result.getReservations()) {
+                for (Instance instance : reservation.getInstances()) {
+                    Pool pool;
+                    synchronized (this) {
+                        pool = pools.get(tagOf(instance));
+                        if (pool == null) {
+                            continue;
+                        }
+                        pool.launching++;
+                    }
+                    String state = instance.getState().getName();
+                    if (state.equals("pending")) {
+                        settle(pool, instance.getInstanceId());
+                    } else if (state.equals("stopping")) {
+                        await(pool, instance.getInstanceId(), "stopped");
+                    } else {
+                        ready(pool, instance);
+                    }
+                }
+            }
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+    }
+
+    private static String tagOf(Instance instance) {
+        for (Tag tag : instance.getTags()) {
+            if (POOL_TAG.equals(tag.getKey())) {
+                return tag.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void launch(Pool pool, int count) {
+        List<Instance> instances;
+        try {
+            RunInstancesRequest request = context.newRunInstancesRequest(pool.imageId,
+                    count, pool.subnetId, null);
+            instances = context.runInstances(request).getInstances();
+        } catch (Exception e) {
+            synchronized (this) {
+                pool.launching -= count;
+            }
+            log.warn("failed to launch warm pool " + pool.key, e);
+            return;
+        }
+
+        List<String> ids = new ArrayList<String>();
+        for (Instance instance : instances) {
+            ids.add(instance.getInstanceId());
+        }
+        synchronized (this) {
+            pool.launching -= count - ids.size();
+        }
+        // same tag on all, so one CreateTags
+        try {
+            ec2.createTags(new CreateTagsRequest().withResources(ids).withTags(
+                    new Tag(POOL_TAG, pool.key)));
+        } catch (RuntimeException e) {
+            // untagged, a restart wouldn't adopt them
+            for (String id : ids) {
+                lost(pool, id, e);
+            }
+            return;
+        }
+        for (String id : ids) {
+            settle(pool, id);
+        }
+        log.debug("launched " + ids.size() + " into warm pool " + pool.key);
+    }
+
+    /**
+     * wait until a new instance is running, and stop it if the pool keeps
+     * stopped ones
+     */
+    private void settle(final Pool pool, final String instanceId) {
+        instanceWatcher.watch(instanceId, "running", LAUNCH_TIMEOUT_MILLIS).addCallback(
+                new OperationHandle.Callback<Instance>() {
+                    public void onSuccess(Instance running) {
+                        if (!KEEP_STOPPED || !stopLater(pool, running)) {
+                            ready(pool, running);
+                        }
+                    }
+
+                    public void onFailure(Exception error) {
+                        lost(pool, instanceId, error);
+                    }
+                });
+    }
+
+    /**
+     * stop a running instance on the pool thread rather than the watcher's
+     * @return false if the pools are shut down
+     */
+    private synchronized boolean stopLater(final Pool pool, final Instance running) {
+        if (scheduler == null) {
+            return false;
+        }
+        final String instanceId = running.getInstanceId();
+        try {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    try {
+                        ec2.stopInstances(new StopInstancesRequest().
+                                withInstanceIds(instanceId));
+                    } catch (RuntimeException e) {
+                        lost(pool, instanceId, e);
+                        return;
+                    }
+                    await(pool, instanceId, "stopped");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void await(final Pool pool, final String instanceId, String state) {
+        instanceWatcher.watch(instanceId, state, LAUNCH_TIMEOUT_MILLIS).addCallback(
+                new OperationHandle.Callback<Instance>() {
+                    public void onSuccess(Instance instance) {
+                        ready(pool, instance);
+                    }
+
+                    public void onFailure(Exception error) {
+                        lost(pool, instanceId, error);
+                    }
+                });
+    }
+
+    private synchronized void ready(Pool pool, Instance instance) {
+        pool.launching--;
+        pool.ready.add(instance);
+    }
+
+    private void lost(Pool pool, String instanceId, Exception error) {
+        synchronized (this) {
+            pool.launching--;
+        }
+        log.warn("warm pool " + pool.key + " lost instance " + instanceId + ": " +
+                error.getMessage());
+        // don't leave a stuck instance running unused
+        terminateLater(instanceId);
+    }
+
+    /**
+     * terminate an instance on the pool thread, callers may be on the
+     * watcher's
+     */
+    private synchronized void terminateLater(final String instanceId) {
+        Runnable terminate = new Runnable() {
+            public void run() {
+                try {
+                    ec2.terminateInstances(new TerminateInstancesRequest().
+                            withInstanceIds(instanceId));
+                } catch (RuntimeException e) {
+                    log.warn("failed to terminate instance " + instanceId, e);
+                }
+            }
+        };
+        try {
+            if (scheduler != null) {
+                scheduler.execute(terminate);
+                return;
+            }
+        } catch (RejectedExecutionException e) {
+            // shut down meanwhile
+        }
+        log.warn("warm pools shut down, instance " + instanceId + " left running");
+    }
+}
@@ -0,0 +1,165 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Queueing and rejection of gateway calls over the limits of their
+ * operation class, against FakeEC2Server.
+ */
+public class AdmissionControllerTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private FakeEC2Server fake;
+    private String imageId;
+    private RegionContext context;
+    private EC2JavaServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        // slow enough to keep a launch in flight while others come in
+        fake = new FakeEC2Server(0, 200, 50, 0);
+        fake.start();
+        imageId = fake.addImage("test-image", "hvm");
+        context = new RegionContext("fake", "ap-southeast-1",
+                new BasicAWSCredentials("fake", "fake"), fake.getEndpoint());
+        server = new EC2JavaServer(context);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        context.shutdown();
+        fake.stop();
+    }
+
+    private static GatewayConfig config(final int maxConcurrentLaunches, final int maxQueued,
+                                        final long queueTimeoutMillis) {
+        return new GatewayConfig() {
+            public int getMaxConcurrentLaunches() {
+                return maxConcurrentLaunches;
+            }
+
+            public int getMaxQueued() {
+                return maxQueued;
+            }
+
+            public long getQueueTimeoutMillis() {
+                return queueTimeoutMillis;
+            }
+        };
+    }
+
+    private static long stat(AdmissionController admission, String method, String name) {
+        Long value = admission.getStats().get(method).get(name);
+        return value == null ? 0 : value;
+    }
+
+    private static void awaitStat(AdmissionController admission, String method, String name,
+                                  long expected) throws InterruptedException {
+        while (!admission.getStats().containsKey(method) ||
+                stat(admission, method, name) != expected) {
+            Thread.sleep(10);
+        }
+    }
+
+    private Future<AdmissionController.Ticket> enterLater(final AdmissionController admission,
+                                                          final String method) {
+        return executor.submit(new Callable<AdmissionController.Ticket>() {
+            public AdmissionController.Ticket call() {
+                AdmissionController.Ticket ticket = admission.enter(method);
+                ticket.exit();
+                return ticket;
+            }
+        });
+    }
+
+    private static void assertBusy(Future<?> call) throws InterruptedException {
+        try {
+            call.get();
+            fail("call admitted over the limit");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ServerBusyException);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void rejectsLaunchesOverFullQueue() throws Exception {
+        AdmissionController admission = new AdmissionController(config(1, 1, 30000));
+        final EC2Gateway gateway = admission.wrap(server, EC2Gateway.class);
+        List<Future<String>> launches = new ArrayList<Future<String>>();
+        for (int i = 0; i < 2; i++) {
+            final String name = "vm-" + i;
+            launches.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return gateway.launchInstanceFromAMI(imageId, name, null, null, null).
+                            get("instance-id");
+                }
+            }));
+            // one in flight, the other queued behind it
+            awaitStat(admission, "launchInstanceFromAMI", i == 0 ? "in-flight" : "queued", 1);
+        }
+
+        try {
+            gateway.launchInstanceFromAMI(imageId, "vm-2", null, null, null);
+            fail("launched over a full admission queue");
+        } catch (ServerBusyException e) {
+            assertEquals(1, stat(admission, "launchInstanceFromAMI", "rejected"));
+        }
+        // lookups have permits of their own
+        assertEquals(imageId, gateway.getImageIdFromName("test-image"));
+
+        for (Future<String> launch : launches) {
+            assertNotNull(launch.get());
+        }
+        assertEquals(3, stat(admission, "launchInstanceFromAMI", "calls"));
+        assertEquals(0, stat(admission, "launchInstanceFromAMI", "in-flight"));
+        assertEquals(0, stat(admission, "launchInstanceFromAMI", "queued"));
+        assertEquals("None", gateway.getInstanceIdFromName("vm-2"));
+    }
+
+    @Test(timeout = 10000)
+    public void queuesCallsUntilPermitFreesOrTimeout() throws Exception {
+        AdmissionController admission = new AdmissionController(config(1, 4, 200));
+        AdmissionController.Ticket ticket = admission.enter("provision");
+
+        assertBusy(enterLater(admission, "launchInstancesFromAMI"));
+        assertEquals(1, stat(admission, "launchInstancesFromAMI", "rejected"));
+
+        Future<AdmissionController.Ticket> queued = enterLater(admission, "attachVolumes");
+        awaitStat(admission, "attachVolumes", "queued", 1);
+        ticket.exit();
+        assertNotNull(queued.get());
+        assertEquals(0, stat(admission, "attachVolumes", "rejected"));
+    }
+
+    @Test(timeout = 10000)
+    public void admitsNestedCallsWithTicketOfOuterCall() throws Exception {
+        AdmissionController admission = new AdmissionController(config(1, 0, 0));
+        AdmissionController.Ticket outer = admission.enter("provision");
+        // would be rejected if it needed a permit of its own
+        AdmissionController.Ticket nested = admission.enter("attachVolumes");
+        nested.exit();
+        assertFalse(admission.getStats().containsKey("attachVolumes"));
+
+        // exiting the nested call keeps the permit of the outer one
+        assertBusy(enterLater(admission, "launchInstanceFromAMI"));
+        outer.exit();
+        assertNotNull(enterLater(admission, "launchInstanceFromAMI").get());
+    }
+}
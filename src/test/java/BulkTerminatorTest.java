@@ -0,0 +1,103 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AttachNetworkInterfaceRequest;
+import com.amazonaws.services.ec2.model.AttachVolumeRequest;
+import com.amazonaws.services.ec2.model.CreateNetworkInterfaceRequest;
+import com.amazonaws.services.ec2.model.CreateVolumeRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Sweeps of many instances against FakeEC2Server, some of them protected
+ * from termination.
+ */
+public class BulkTerminatorTest {
+    private FakeEC2Server fake;
+    private String imageId;
+    private RegionContext context;
+
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeEC2Server(0, 0, 50, 0);
+        fake.start();
+        imageId = fake.addImage("test-image", "hvm");
+        // splitting failed batches takes a few dozen terminate calls
+        System.setProperty("ec2.rate.run", "100");
+        context = new RegionContext("fake", "ap-southeast-1",
+                new BasicAWSCredentials("fake", "fake"), fake.getEndpoint());
+    }
+
+    @After
+    public void tearDown() {
+        context.shutdown();
+        fake.stop();
+        System.clearProperty("ec2.rate.run");
+    }
+
+    @Test(timeout = 60000)
+    public void terminatesAllButProtectedInstances() throws Exception {
+        AmazonEC2 ec2 = context.getEC2();
+        // three pages, three terminate batches
+        int count = 2 * BulkTerminator.PAGE_SIZE + 500;
+        List<Instance> instances = ec2.runInstances(new RunInstancesRequest(imageId,
+                count, count)).getReservation().getInstances();
+        String first = instances.get(10).getInstanceId();
+        String second = instances.get(BulkTerminator.PAGE_SIZE + 500).getInstanceId();
+        fake.setTerminationProtection(first, true);
+        fake.setTerminationProtection(second, true);
+
+        // dependents of instances batched with a protected one
+        String interfaceId = ec2.createNetworkInterface(new CreateNetworkInterfaceRequest().
+                withSubnetId("subnet-default")).getNetworkInterface().getNetworkInterfaceId();
+        ec2.attachNetworkInterface(new AttachNetworkInterfaceRequest().
+                withNetworkInterfaceId(interfaceId).
+                withInstanceId(instances.get(11).getInstanceId()).withDeviceIndex(1));
+        String volumeId = ec2.createVolume(new CreateVolumeRequest().withSize(8).
+                withAvailabilityZone("fake-1a")).getVolume().getVolumeId();
+        Thread.sleep(200);
+        ec2.attachVolume(new AttachVolumeRequest(volumeId,
+                instances.get(12).getInstanceId(), "/dev/sdf"));
+        Thread.sleep(200);
+
+        BulkTerminator.Sweep sweep = context.getBulkTerminator().terminateMatching(
+                Collections.singletonList(new Filter().withName("image-id").
+                        withValues(imageId)), true);
+        Map<String, Long> progress = sweep.get(50000);
+        assertEquals(3L, (long) progress.get("pages"));
+        assertEquals((long) count, (long) progress.get("described"));
+        assertEquals(count - 2L, (long) progress.get("terminated"));
+        assertEquals(2L, (long) progress.get("failed"));
+        assertEquals(1L, (long) progress.get("interfaces-queued"));
+        assertEquals(1L, (long) progress.get("volumes-deleted"));
+        assertEquals(0L, (long) progress.get("volumes-pending"));
+
+        List<String> left = new ArrayList<String>();
+        for (Reservation reservation : ec2.describeInstances(new DescribeInstancesRequest().
+                withFilters(new Filter().withName("instance-state-name").withValues("running"))).
+                getReservations()) {
+            for (Instance instance : reservation.getInstances()) {
+                left.add(instance.getInstanceId());
+            }
+        }
+        Collections.sort(left);
+        List<String> expected = new ArrayList<String>();
+        Collections.addAll(expected, first, second);
+        Collections.sort(expected);
+        assertEquals(expected, left);
+    }
+}
@@ -0,0 +1,138 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Operations a restart interrupted, resumed from the journal against
+ * FakeEC2Server.
+ */
+public class EC2JavaServerResumeTest {
+    private static final String REGION = "ap-southeast-1";
+
+    private FakeEC2Server fake;
+    private File dir;
+    private RegionContext context;
+
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeEC2Server(0, 0, 50, 0);
+        fake.start();
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdir();
+        System.setProperty("ec2.journal.dir", dir.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.shutdown();
+        }
+        fake.stop();
+        System.clearProperty("ec2.journal.dir");
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File left : files) {
+                left.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private String runInstance() {
+        AmazonEC2Client ec2 = new AmazonEC2Client(new BasicAWSCredentials("fake", "fake"));
+        ec2.setEndpoint(fake.getEndpoint());
+        try {
+            return ec2.runInstances(new RunInstancesRequest(fake.addImage("test-image", "hvm"),
+                    1, 1)).getReservation().getInstances().get(0).getInstanceId();
+        } finally {
+            ec2.shutdown();
+        }
+    }
+
+    /**
+     * @return journal left by a process which stopped, as a crash would
+     */
+    private OperationJournal crashedJournal() {
+        return new OperationJournal(new File(dir, "journal-fake-" + REGION + ".log"));
+    }
+
+    private EC2JavaServer restart() {
+        context = new RegionContext("fake", REGION, new BasicAWSCredentials("fake", "fake"),
+                fake.getEndpoint());
+        return new EC2JavaServer(context);
+    }
+
+    private static void awaitEnded(OperationJournal journal) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (journal.getStats().get("live") > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("operations still live: " + journal.getStats());
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void resumesLaunchRunButNotTagged() throws Exception {
+        String instanceId = runInstance();
+        OperationJournal journal = crashedJournal();
+        OperationJournal.Entry entry = journal.begin("launch",
+                OperationJournal.arguments("name", "resumed", "image-id", "ami-1"));
+        journal.record(entry, "instance-id", instanceId);
+        journal.shutdown();
+
+        EC2JavaServer server = restart();
+        assertEquals(1, server.resumeOperations());
+        awaitEnded(context.getJournal());
+        assertEquals(instanceId, server.getInstanceIdFromName("resumed"));
+        assertEquals("running", server.getInstanceStatus(instanceId));
+        assertEquals(0, server.resumeOperations());
+    }
+
+    @Test
+    public void resumesBatchLaunch() throws Exception {
+        String first = runInstance();
+        String second = runInstance();
+        OperationJournal journal = crashedJournal();
+        OperationJournal.Entry entry = journal.begin("launch-batch",
+                OperationJournal.arguments("image-id", "ami-1", "name.0", "first",
+                        "name.1", "second"));
+        journal.record(entry, "instance-ids", first + "," + second);
+        journal.shutdown();
+
+        EC2JavaServer server = restart();
+        assertEquals(1, server.resumeOperations());
+        awaitEnded(context.getJournal());
+        assertEquals(first, server.getInstanceIdFromName("first"));
+        assertEquals(second, server.getInstanceIdFromName("second"));
+    }
+
+    @Test
+    public void resumesDeleteInstance() throws Exception {
+        String instanceId = runInstance();
+        OperationJournal journal = crashedJournal();
+        journal.begin("delete-instance", OperationJournal.arguments("instance-id", instanceId));
+        journal.shutdown();
+
+        EC2JavaServer server = restart();
+        assertEquals(1, server.resumeOperations());
+        awaitEnded(context.getJournal());
+        // ended once termination is accepted, the instance shuts down after
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!"terminated".equals(server.getInstanceStatus(instanceId)) &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("terminated", server.getInstanceStatus(instanceId));
+    }
+}
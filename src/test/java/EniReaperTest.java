@@ -0,0 +1,76 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.CreateNetworkInterfaceRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Deletion of released network interfaces against FakeEC2Server.
+ */
+public class EniReaperTest {
+    private FakeEC2Server fake;
+    private AmazonEC2Client ec2;
+    private EniReaper reaper;
+
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeEC2Server(0, 0, 50, 0);
+        fake.start();
+        ec2 = new AmazonEC2Client(new BasicAWSCredentials("fake", "fake"));
+        ec2.setEndpoint(fake.getEndpoint());
+        reaper = new EniReaper(ec2, 100);
+    }
+
+    @After
+    public void tearDown() {
+        reaper.shutdown();
+        ec2.shutdown();
+        fake.stop();
+    }
+
+    private String createInterface() {
+        return ec2.createNetworkInterface(new CreateNetworkInterfaceRequest().
+                withSubnetId("subnet-api")).getNetworkInterface().getNetworkInterfaceId();
+    }
+
+    @Test(timeout = 10000)
+    public void deletesReleasedInterfacesInOneBatch() throws Exception {
+        String first = createInterface();
+        String second = createInterface();
+        fake.resetRequestCounts();
+
+        // one already gone counts as done
+        reaper.enqueue(Arrays.asList(first, second, "eni-gone")).get();
+        assertEquals(2L, (long) reaper.getStats().get("deleted"));
+        assertEquals(0, reaper.getQueueDepth());
+        assertEquals(1L, (long) fake.getRequestCounts().get("DescribeNetworkInterfaces"));
+        assertEquals(2L, (long) fake.getRequestCounts().get("DeleteNetworkInterface"));
+    }
+
+    @Test(timeout = 10000)
+    public void retriesFailedDeletes() throws Exception {
+        String networkInterfaceId = createInterface();
+        fake.setFailure("DeleteNetworkInterface", "InternalError");
+
+        OperationHandle<Void> handle = reaper.enqueue(
+                Collections.singletonList(networkInterfaceId));
+        Thread.sleep(500);
+        assertFalse(handle.isDone());
+        assertEquals(1, reaper.getQueueDepth());
+        assertEquals(0L, (long) reaper.getStats().get("deleted"));
+
+        fake.setFailure("DeleteNetworkInterface", null);
+        handle.get();
+        assertEquals(1L, (long) reaper.getStats().get("deleted"));
+        assertEquals(0, reaper.getQueueDepth());
+    }
+}
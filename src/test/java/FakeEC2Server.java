@@ -0,0 +1,1096 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in of the EC2 Query API, for measuring the server
+ * without an AWS account. Point AmazonEC2Client at getEndpoint(). It keeps
+ * instances, network interfaces, volumes, snapshots and images in memory,
+ * moves them through their states after a transition delay, and can add
+ * latency to every request and throttle a share of them.
+ */
+public class FakeEC2Server {
+    static final String XMLNS = "http://ec2.amazonaws.com/doc/2014-06-15/";
+    // account of the caller, "self" in owner filters
+    static final String OWNER_ID = "000000000000";
+
+    private final HttpServer server;
+    private final long latencyMillis;
+    private final long transitionMillis;
+    private final double throttleRate;
+    private final Random random = new Random();
+    private final AtomicLong sequence = new AtomicLong(0x10000000L);
+    private final ConcurrentMap<String, AtomicLong> requests =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    private final Map<String, FakeInstance> instances = new LinkedHashMap<String, FakeInstance>();
+    private final Map<String, FakeInterface> interfaces = new LinkedHashMap<String, FakeInterface>();
+    private final Map<String, FakeVolume> volumes = new LinkedHashMap<String, FakeVolume>();
+    private final Map<String, FakeSnapshot> snapshots = new LinkedHashMap<String, FakeSnapshot>();
+    private final Map<String, FakeImage> images = new LinkedHashMap<String, FakeImage>();
+    private final List<String> zones = new ArrayList<String>();
+    // zones failing RunInstances with InsufficientInstanceCapacity
+    private final Set<String> exhaustedZones = new HashSet<String>();
+    // actions failing every request, with their error code
+    private final ConcurrentMap<String, String> failures = new ConcurrentHashMap<String, String>();
+
+    private abstract static class Resource {
+        final String id;
+        final Map<String, String> tags = new LinkedHashMap<String, String>();
+
+        Resource(String id) {
+            this.id = id;
+        }
+
+        abstract List<String> attribute(String name);
+
+        List<String> tagAttribute(String name) {
+            if (name.startsWith("tag:")) {
+                String value = tags.get(name.substring(4));
+                return value == null ? Collections.<String>emptyList() :
+                        Collections.singletonList(value);
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    private class FakeInstance extends Resource {
+        final String imageId;
+        final String instanceType;
+        final String zone;
+        final String subnetId;
+        final long launchedAt = System.currentTimeMillis();
+        long stoppedAt = 0;
+        long startedAt = launchedAt;
+        long terminatedAt = 0;
+        boolean terminationProtected = false;
+
+        FakeInstance(String id, String imageId, String instanceType, String zone,
+                     String subnetId) {
+            super(id);
+            this.imageId = imageId;
+            this.instanceType = instanceType;
+            this.zone = zone;
+            this.subnetId = subnetId;
+        }
+
+        String state() {
+            long now = System.currentTimeMillis();
+            if (terminatedAt > 0) {
+                return now - terminatedAt < transitionMillis ? "shutting-down" : "terminated";
+            }
+            if (stoppedAt > 0) {
+                return now - stoppedAt < transitionMillis ? "stopping" : "stopped";
+            }
+            return now - startedAt < transitionMillis ? "pending" : "running";
+        }
+
+        int stateCode() {
+            String state = state();
+            if (state.equals("pending")) {
+                return 0;
+            } else if (state.equals("running")) {
+                return 16;
+            } else if (state.equals("shutting-down")) {
+                return 32;
+            } else if (state.equals("terminated")) {
+                return 48;
+            } else if (state.equals("stopping")) {
+                return 64;
+            }
+            return 80;
+        }
+
+        String publicIp() {
+            int n = Integer.parseInt(id.substring(id.length() - 4), 16);
+            return "54.0." + (n / 256) % 256 + "." + n % 256;
+        }
+
+        List<String> attribute(String name) {
+            if (name.equals("instance-id")) {
+                return Collections.singletonList(id);
+            } else if (name.equals("instance-state-name")) {
+                return Collections.singletonList(state());
+            } else if (name.equals("image-id")) {
+                return Collections.singletonList(imageId);
+            } else if (name.equals("availability-zone")) {
+                return Collections.singletonList(zone);
+            }
+            return tagAttribute(name);
+        }
+    }
+
+    private class FakeInterface extends Resource {
+        final String subnetId;
+        final String macAddress;
+        final String description;
+        String instanceId = null;
+        int deviceIndex = 0;
+        boolean deleteOnTermination = false;
+
+        FakeInterface(String id, String subnetId, String description) {
+            super(id);
+            this.subnetId = subnetId;
+            this.description = description;
+            long n = sequence.incrementAndGet();
+            this.macAddress = String.format("0a:%02x:%02x:%02x:%02x:%02x",
+                    (n >> 32) & 0xff, (n >> 24) & 0xff, (n >> 16) & 0xff,
+                    (n >> 8) & 0xff, n & 0xff);
+        }
+
+        FakeInstance attachedInstance() {
+            if (instanceId == null) {
+                return null;
+            }
+            FakeInstance instance = instances.get(instanceId);
+            // released once the instance is terminated
+            if (instance == null || instance.state().equals("terminated")) {
+                return null;
+            }
+            return instance;
+        }
+
+        String status() {
+            return attachedInstance() == null ? "available" : "in-use";
+        }
+
+        List<String> attribute(String name) {
+            if (name.equals("network-interface-id")) {
+                return Collections.singletonList(id);
+            } else if (name.equals("subnet-id")) {
+                return Collections.singletonList(subnetId);
+            } else if (name.equals("status")) {
+                return Collections.singletonList(status());
+            } else if (name.equals("attachment.instance-id")) {
+                return attachedInstance() == null ? Collections.<String>emptyList() :
+                        Collections.singletonList(instanceId);
+            } else if (name.equals("description")) {
+                return Collections.singletonList(description == null ? "" : description);
+            }
+            return tagAttribute(name);
+        }
+    }
+
+    private class FakeVolume extends Resource {
+        final int size;
+        final String zone;
+        final String snapshotId;
+        final long createdAt = System.currentTimeMillis();
+        String instanceId = null;
+        // instance of the attachment being detached
+        String detachedFrom = null;
+        String device = null;
+        long attachedAt = 0;
+        long detachedAt = 0;
+
+        FakeVolume(String id, int size, String zone, String snapshotId) {
+            super(id);
+            this.size = size;
+            this.zone = zone;
+            this.snapshotId = snapshotId;
+        }
+
+        String status() {
+            long now = System.currentTimeMillis();
+            if (now - createdAt < transitionMillis) {
+                return "creating";
+            }
+            return instanceId != null || now - detachedAt < transitionMillis ?
+                    "in-use" : "available";
+        }
+
+        String attachmentStatus() {
+            long now = System.currentTimeMillis();
+            if (instanceId != null) {
+                return now - attachedAt < transitionMillis ? "attaching" : "attached";
+            }
+            return now - detachedAt < transitionMillis ? "detaching" : null;
+        }
+
+        List<String> attribute(String name) {
+            if (name.equals("volume-id")) {
+                return Collections.singletonList(id);
+            } else if (name.equals("status")) {
+                return Collections.singletonList(status());
+            } else if (name.equals("attachment.instance-id")) {
+                return instanceId == null ? Collections.<String>emptyList() :
+                        Collections.singletonList(instanceId);
+            } else if (name.equals("size")) {
+                return Collections.singletonList(String.valueOf(size));
+            } else if (name.equals("availability-zone")) {
+                return Collections.singletonList(zone);
+            }
+            return tagAttribute(name);
+        }
+    }
+
+    private class FakeSnapshot extends Resource {
+        final String description;
+        final int volumeSize;
+        final String ownerId;
+
+        FakeSnapshot(String id, String description, int volumeSize, String ownerId) {
+            super(id);
+            this.description = description;
+            this.volumeSize = volumeSize;
+            this.ownerId = ownerId;
+        }
+
+        List<String> attribute(String name) {
+            if (name.equals("snapshot-id")) {
+                return Collections.singletonList(id);
+            } else if (name.equals("description")) {
+                return Collections.singletonList(description);
+            }
+            return tagAttribute(name);
+        }
+    }
+
+    private class FakeImage extends Resource {
+        final String virtualizationType;
+
+        FakeImage(String id, String virtualizationType) {
+            super(id);
+            this.virtualizationType = virtualizationType;
+        }
+
+        List<String> attribute(String name) {
+            if (name.equals("image-id")) {
+                return Collections.singletonList(id);
+            } else if (name.equals("virtualization-type")) {
+                return Collections.singletonList(virtualizationType);
+            }
+            return tagAttribute(name);
+        }
+    }
+
+    private static class FakeException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+        final String code;
+
+        FakeException(int status, String code, String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    /**
+     * @param port local port, 0 for any free one
+     * @param latencyMillis added to every request
+     * @param transitionMillis time every state transition takes
+     * @param throttleRate share of requests failed with RequestLimitExceeded
+     * @throws IOException
+     */
+    public FakeEC2Server(int port, long latencyMillis, long transitionMillis,
+                         double throttleRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.transitionMillis = transitionMillis;
+        this.throttleRate = throttleRate;
+        zones.add("fake-1a");
+        zones.add("fake-1b");
+        zones.add("fake-1c");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool(
+                new DaemonThreadFactory("fake-ec2")));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Make RunInstances in zone fail for lack of capacity, or not
+     */
+    public synchronized void setZoneCapacity(String zone, boolean hasCapacity) {
+        if (hasCapacity) {
+            exhaustedZones.remove(zone);
+        } else {
+            exhaustedZones.add(zone);
+        }
+    }
+
+    /**
+     * Make every request of action fail with errorCode, or succeed again
+     * @param errorCode null to stop failing
+     */
+    public void setFailure(String action, String errorCode) {
+        if (errorCode == null) {
+            failures.remove(action);
+        } else {
+            failures.put(action, errorCode);
+        }
+    }
+
+    /**
+     * Make TerminateInstances of instanceId fail with OperationNotPermitted,
+     * failing every other id of the same call too
+     */
+    public synchronized void setTerminationProtection(String instanceId, boolean enabled) {
+        FakeInstance instance = instances.get(instanceId);
+        if (instance == null) {
+            throw new IllegalArgumentException("no instance " + instanceId);
+        }
+        instance.terminationProtected = enabled;
+    }
+
+    public synchronized String addImage(String name, String virtualizationType) {
+        FakeImage image = new FakeImage(newId("ami"), virtualizationType);
+        image.tags.put("Name", name);
+        images.put(image.id, image);
+        return image.id;
+    }
+
+    public synchronized String addSnapshot(String description, int volumeSize) {
+        return addSnapshot(description, volumeSize, OWNER_ID);
+    }
+
+    /**
+     * Add a snapshot of another account, shared with the caller
+     */
+    public synchronized String addSnapshot(String description, int volumeSize,
+                                           String ownerId) {
+        FakeSnapshot snapshot = new FakeSnapshot(newId("snap"), description, volumeSize,
+                ownerId);
+        snapshots.put(snapshot.id, snapshot);
+        return snapshot.id;
+    }
+
+    /**
+     * @return {action: number of requests}
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : requests.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public void resetRequestCounts() {
+        requests.clear();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        Map<String, String> params = parseParams(exchange);
+        String action = params.get("Action");
+        count(action);
+        int status = 200;
+        String body;
+        try {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (throttleRate > 0 && random.nextDouble() < throttleRate) {
+                throw new FakeException(503, "RequestLimitExceeded", "Request limit exceeded.");
+            }
+            String failure = failures.get(action);
+            if (failure != null) {
+                throw new FakeException(400, failure, action + " failed as configured");
+            }
+            body = dispatch(action, params);
+        } catch (FakeException e) {
+            status = e.status;
+            body = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Response><Errors><Error><Code>" +
+                    e.code + "</Code><Message>" + escape(e.getMessage()) +
+                    "</Message></Error></Errors><RequestID>" + newId("req") +
+                    "</RequestID></Response>";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = 500;
+            body = "";
+        } catch (RuntimeException e) {
+            status = 500;
+            body = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Response><Errors><Error>" +
+                    "<Code>InternalError</Code><Message>" + escape(String.valueOf(e)) +
+                    "</Message></Error></Errors><RequestID>" + newId("req") +
+                    "</RequestID></Response>";
+        }
+
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/xml;charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private synchronized String dispatch(String action, Map<String, String> params)
+            throws FakeException {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<").append(action).
+                append("Response xmlns=\"").append(XMLNS).append("\"><requestId>").
+                append(newId("req")).append("</requestId>");
+        if ("DescribeAvailabilityZones".equals(action)) {
+            describeAvailabilityZones(xml);
+        } else if ("DescribeImages".equals(action)) {
+            describeImages(params, xml);
+        } else if ("RunInstances".equals(action)) {
+            runInstances(params, xml);
+        } else if ("CreateTags".equals(action)) {
+            createTags(params, xml);
+        } else if ("DescribeInstances".equals(action)) {
+            describeInstances(params, xml);
+        } else if ("DescribeInstanceStatus".equals(action)) {
+            describeInstanceStatus(params, xml);
+        } else if ("TerminateInstances".equals(action)) {
+            changeInstanceStates(params, xml, "terminate");
+        } else if ("StopInstances".equals(action)) {
+            changeInstanceStates(params, xml, "stop");
+        } else if ("StartInstances".equals(action)) {
+            changeInstanceStates(params, xml, "start");
+        } else if ("RebootInstances".equals(action)) {
+            findAll(instances, list(params, "InstanceId"), "InvalidInstanceID.NotFound");
+            xml.append("<return>true</return>");
+        } else if ("ModifyInstanceAttribute".equals(action)) {
+            find(instances, params.get("InstanceId"), "InvalidInstanceID.NotFound");
+            xml.append("<return>true</return>");
+        } else if ("CreateNetworkInterface".equals(action)) {
+            createNetworkInterface(params, xml);
+        } else if ("AttachNetworkInterface".equals(action)) {
+            attachNetworkInterface(params, xml);
+        } else if ("ModifyNetworkInterfaceAttribute".equals(action)) {
+            find(interfaces, params.get("NetworkInterfaceId"),
+                    "InvalidNetworkInterfaceID.NotFound");
+            xml.append("<return>true</return>");
+        } else if ("DeleteNetworkInterface".equals(action)) {
+            deleteNetworkInterface(params, xml);
+        } else if ("DescribeNetworkInterfaces".equals(action)) {
+            describeNetworkInterfaces(params, xml);
+        } else if ("CreateVolume".equals(action)) {
+            createVolume(params, xml);
+        } else if ("DeleteVolume".equals(action)) {
+            deleteVolume(params, xml);
+        } else if ("DescribeVolumes".equals(action)) {
+            describeVolumes(params, xml);
+        } else if ("AttachVolume".equals(action)) {
+            attachVolume(params, xml);
+        } else if ("DetachVolume".equals(action)) {
+            detachVolume(params, xml);
+        } else if ("DescribeSnapshots".equals(action)) {
+            describeSnapshots(params, xml);
+        } else {
+            throw new FakeException(400, "InvalidAction",
+                    "The action " + action + " is not valid for this web service.");
+        }
+        xml.append("</").append(action).append("Response>");
+        return xml.toString();
+    }
+
+    private void describeAvailabilityZones(StringBuilder xml) {
+        xml.append("<availabilityZoneInfo>");
+        for (String zone : zones) {
+            xml.append("<item>");
+            element(xml, "zoneName", zone);
+            element(xml, "zoneState", "available");
+            element(xml, "regionName", "fake-1");
+            xml.append("<messageSet/></item>");
+        }
+        xml.append("</availabilityZoneInfo>");
+    }
+
+    private void describeImages(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        xml.append("<imagesSet>");
+        for (FakeImage image : select(images, params, "ImageId", "InvalidAMIID.NotFound")) {
+            xml.append("<item>");
+            element(xml, "imageId", image.id);
+            element(xml, "imageState", "available");
+            element(xml, "virtualizationType", image.virtualizationType);
+            tagSet(xml, image);
+            xml.append("</item>");
+        }
+        xml.append("</imagesSet>");
+    }
+
+    private void runInstances(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        String imageId = params.get("ImageId");
+        if (!images.containsKey(imageId)) {
+            throw new FakeException(400, "InvalidAMIID.NotFound",
+                    "The image id '[" + imageId + "]' does not exist");
+        }
+        int count = Integer.parseInt(params.get("MaxCount"));
+        String zone = params.get("Placement.AvailabilityZone");
+        if (exhaustedZones.contains(zone == null ? zones.get(0) : zone)) {
+            throw new FakeException(500, "InsufficientInstanceCapacity",
+                    "We currently do not have sufficient capacity in the Availability Zone " +
+                            "you requested");
+        }
+        String subnetId = params.get("SubnetId");
+        if (subnetId == null) {
+            subnetId = "subnet-default";
+        }
+        xml.append("<reservationId>").append(newId("r")).append("</reservationId>");
+        xml.append("<ownerId>000000000000</ownerId><groupSet/><instancesSet>");
+        for (int i = 0; i < count; i++) {
+            FakeInstance instance = new FakeInstance(newId("i"), imageId,
+                    params.get("InstanceType"), zone == null ? zones.get(0) : zone, subnetId);
+            instances.put(instance.id, instance);
+            FakeInterface primary = new FakeInterface(newId("eni"), subnetId, "primary");
+            primary.instanceId = instance.id;
+            primary.deleteOnTermination = true;
+            interfaces.put(primary.id, primary);
+            instanceXml(xml, instance);
+        }
+        xml.append("</instancesSet>");
+    }
+
+    private void createTags(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        List<Resource> resources = new ArrayList<Resource>();
+        for (String id : list(params, "ResourceId")) {
+            Resource resource = resource(id);
+            if (resource == null) {
+                throw new FakeException(400, "InvalidID",
+                        "The ID '" + id + "' is not valid");
+            }
+            resources.add(resource);
+        }
+        for (int i = 1; params.containsKey("Tag." + i + ".Key"); i++) {
+            String value = params.get("Tag." + i + ".Value");
+            for (Resource resource : resources) {
+                resource.tags.put(params.get("Tag." + i + ".Key"), value == null ? "" : value);
+            }
+        }
+        xml.append("<return>true</return>");
+    }
+
+    private void describeInstances(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        List<FakeInstance> selected = select(instances, params, "InstanceId",
+                "InvalidInstanceID.NotFound");
+        // the next token is the id of the last instance returned, so a
+        // page isn't shifted by instances leaving the filter meanwhile
+        int from = 0;
+        if (params.containsKey("NextToken")) {
+            List<String> order = new ArrayList<String>(instances.keySet());
+            int last = order.indexOf(params.get("NextToken"));
+            while (from < selected.size() && order.indexOf(selected.get(from).id) <= last) {
+                from++;
+            }
+        }
+        int to = params.containsKey("MaxResults") ?
+                Math.min(selected.size(), from + Integer.parseInt(params.get("MaxResults"))) :
+                selected.size();
+        xml.append("<reservationSet>");
+        for (FakeInstance instance : selected.subList(from, to)) {
+            xml.append("<item><reservationId>r-").append(instance.id.substring(2)).
+                    append("</reservationId><ownerId>000000000000</ownerId><groupSet/>").
+                    append("<instancesSet>");
+            instanceXml(xml, instance);
+            xml.append("</instancesSet></item>");
+        }
+        xml.append("</reservationSet>");
+        if (to < selected.size()) {
+            element(xml, "nextToken", selected.get(to - 1).id);
+        }
+    }
+
+    private void describeInstanceStatus(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        xml.append("<instanceStatusSet>");
+        for (FakeInstance instance : select(instances, params, "InstanceId",
+                "InvalidInstanceID.NotFound")) {
+            if (!instance.state().equals("running")) {
+                continue;
+            }
+            xml.append("<item>");
+            element(xml, "instanceId", instance.id);
+            element(xml, "availabilityZone", instance.zone);
+            xml.append("<instanceState><code>16</code><name>running</name></instanceState>");
+            xml.append("</item>");
+        }
+        xml.append("</instanceStatusSet>");
+    }
+
+    private void changeInstanceStates(Map<String, String> params, StringBuilder xml,
+                                      String change) throws FakeException {
+        List<FakeInstance> changed = findAll(instances, list(params, "InstanceId"),
+                "InvalidInstanceID.NotFound");
+        for (FakeInstance instance : changed) {
+            if (change.equals("terminate") && instance.terminationProtected) {
+                throw new FakeException(400, "OperationNotPermitted", "The instance '" +
+                        instance.id + "' may not be terminated. Modify its " +
+                        "'disableApiTermination' instance attribute and try again.");
+            }
+        }
+        xml.append("<instancesSet>");
+        long now = System.currentTimeMillis();
+        for (FakeInstance instance : changed) {
+            String previous = instance.state();
+            int previousCode = instance.stateCode();
+            if (change.equals("terminate")) {
+                if (instance.terminatedAt == 0) {
+                    instance.terminatedAt = now;
+                    // volumes are released while it shuts down
+                    for (FakeVolume volume : volumes.values()) {
+                        if (instance.id.equals(volume.instanceId)) {
+                            volume.detachedFrom = volume.instanceId;
+                            volume.instanceId = null;
+                            volume.detachedAt = now;
+                        }
+                    }
+                }
+            } else if (change.equals("stop")) {
+                if (instance.stoppedAt == 0) {
+                    instance.stoppedAt = now;
+                }
+            } else if (instance.stoppedAt > 0) {
+                instance.stoppedAt = 0;
+                instance.startedAt = now;
+            }
+            xml.append("<item>");
+            element(xml, "instanceId", instance.id);
+            xml.append("<currentState><code>").append(instance.stateCode()).
+                    append("</code><name>").append(instance.state()).
+                    append("</name></currentState>");
+            xml.append("<previousState><code>").append(previousCode).
+                    append("</code><name>").append(previous).
+                    append("</name></previousState>");
+            xml.append("</item>");
+        }
+        xml.append("</instancesSet>");
+    }
+
+    private void createNetworkInterface(Map<String, String> params, StringBuilder xml) {
+        FakeInterface networkInterface = new FakeInterface(newId("eni"),
+                params.get("SubnetId"), params.get("Description"));
+        interfaces.put(networkInterface.id, networkInterface);
+        xml.append("<networkInterface>");
+        interfaceXml(xml, networkInterface);
+        xml.append("</networkInterface>");
+    }
+
+    private void attachNetworkInterface(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        FakeInterface networkInterface = find(interfaces, params.get("NetworkInterfaceId"),
+                "InvalidNetworkInterfaceID.NotFound");
+        FakeInstance instance = find(instances, params.get("InstanceId"),
+                "InvalidInstanceID.NotFound");
+        if (networkInterface.attachedInstance() != null) {
+            throw new FakeException(400, "InvalidNetworkInterface.InUse",
+                    "Interface: [" + networkInterface.id + "] in use.");
+        }
+        if (!instance.state().equals("running") && !instance.state().equals("stopped")) {
+            throw new FakeException(400, "IncorrectState",
+                    "The instance '" + instance.id + "' is not in a valid state");
+        }
+        networkInterface.instanceId = instance.id;
+        networkInterface.deviceIndex = Integer.parseInt(params.get("DeviceIndex"));
+        element(xml, "attachmentId", "eni-attach-" + networkInterface.id.substring(4));
+    }
+
+    private void deleteNetworkInterface(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        FakeInterface networkInterface = find(interfaces, params.get("NetworkInterfaceId"),
+                "InvalidNetworkInterfaceID.NotFound");
+        if (networkInterface.attachedInstance() != null) {
+            throw new FakeException(400, "InvalidNetworkInterface.InUse",
+                    "Interface: [" + networkInterface.id + "] in use.");
+        }
+        interfaces.remove(networkInterface.id);
+        xml.append("<return>true</return>");
+    }
+
+    private void describeNetworkInterfaces(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        xml.append("<networkInterfaceSet>");
+        for (FakeInterface networkInterface : select(interfaces, params,
+                "NetworkInterfaceId", "InvalidNetworkInterfaceID.NotFound")) {
+            // gone along with its terminated instance
+            if (networkInterface.deleteOnTermination && networkInterface.instanceId != null &&
+                    networkInterface.attachedInstance() == null) {
+                continue;
+            }
+            xml.append("<item>");
+            interfaceXml(xml, networkInterface);
+            xml.append("</item>");
+        }
+        xml.append("</networkInterfaceSet>");
+    }
+
+    private void createVolume(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        String snapshotId = params.get("SnapshotId");
+        int size;
+        if (snapshotId != null) {
+            size = find(snapshots, snapshotId, "InvalidSnapshot.NotFound").volumeSize;
+        } else {
+            size = Integer.parseInt(params.get("Size"));
+        }
+        FakeVolume volume = new FakeVolume(newId("vol"), size,
+                params.get("AvailabilityZone"), snapshotId);
+        volumes.put(volume.id, volume);
+        volumeFields(xml, volume);
+    }
+
+    private void deleteVolume(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        FakeVolume volume = find(volumes, params.get("VolumeId"), "InvalidVolume.NotFound");
+        if (!volume.status().equals("available")) {
+            throw new FakeException(400, "VolumeInUse",
+                    "Volume " + volume.id + " is currently " + volume.status());
+        }
+        volumes.remove(volume.id);
+        xml.append("<return>true</return>");
+    }
+
+    private void describeVolumes(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        xml.append("<volumeSet>");
+        for (FakeVolume volume : select(volumes, params, "VolumeId", "InvalidVolume.NotFound")) {
+            xml.append("<item>");
+            volumeFields(xml, volume);
+            xml.append("</item>");
+        }
+        xml.append("</volumeSet>");
+    }
+
+    private void attachVolume(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        FakeVolume volume = find(volumes, params.get("VolumeId"), "InvalidVolume.NotFound");
+        FakeInstance instance = find(instances, params.get("InstanceId"),
+                "InvalidInstanceID.NotFound");
+        if (!volume.status().equals("available")) {
+            throw new FakeException(400, "IncorrectState",
+                    "vol '" + volume.id + "' is not 'available'.");
+        }
+        if (!volume.zone.equals(instance.zone)) {
+            throw new FakeException(400, "InvalidVolume.ZoneMismatch",
+                    "The volume '" + volume.id + "' is not in the same availability zone " +
+                            "as instance '" + instance.id + "'");
+        }
+        volume.instanceId = instance.id;
+        volume.device = params.get("Device");
+        volume.attachedAt = System.currentTimeMillis();
+        attachmentFields(xml, volume, volume.attachmentStatus());
+    }
+
+    private void detachVolume(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        FakeVolume volume = find(volumes, params.get("VolumeId"), "InvalidVolume.NotFound");
+        if (volume.instanceId == null) {
+            throw new FakeException(400, "IncorrectState",
+                    "Volume '" + volume.id + "' is in the 'available' state.");
+        }
+        attachmentFields(xml, volume, "detaching");
+        volume.detachedFrom = volume.instanceId;
+        volume.instanceId = null;
+        volume.detachedAt = System.currentTimeMillis();
+    }
+
+    private void describeSnapshots(Map<String, String> params, StringBuilder xml)
+            throws FakeException {
+        List<String> owners = list(params, "Owner");
+        xml.append("<snapshotSet>");
+        for (FakeSnapshot snapshot : select(snapshots, params, "SnapshotId",
+                "InvalidSnapshot.NotFound")) {
+            if (!owners.isEmpty() && !owners.contains(snapshot.ownerId) &&
+                    !(owners.contains("self") && snapshot.ownerId.equals(OWNER_ID))) {
+                continue;
+            }
+            xml.append("<item>");
+            element(xml, "snapshotId", snapshot.id);
+            element(xml, "ownerId", snapshot.ownerId);
+            element(xml, "status", "completed");
+            element(xml, "volumeSize", String.valueOf(snapshot.volumeSize));
+            element(xml, "description", snapshot.description);
+            tagSet(xml, snapshot);
+            xml.append("</item>");
+        }
+        xml.append("</snapshotSet>");
+    }
+
+    private void instanceXml(StringBuilder xml, FakeInstance instance) {
+        xml.append("<item>");
+        element(xml, "instanceId", instance.id);
+        element(xml, "imageId", instance.imageId);
+        xml.append("<instanceState><code>").append(instance.stateCode()).
+                append("</code><name>").append(instance.state()).append("</name></instanceState>");
+        element(xml, "instanceType", instance.instanceType);
+        xml.append("<placement>");
+        element(xml, "availabilityZone", instance.zone);
+        xml.append("</placement>");
+        element(xml, "subnetId", instance.subnetId);
+        if (instance.state().equals("running")) {
+            element(xml, "ipAddress", instance.publicIp());
+        }
+        tagSet(xml, instance);
+        xml.append("<blockDeviceMapping>");
+        for (FakeVolume volume : volumes.values()) {
+            if (instance.id.equals(volume.instanceId)) {
+                xml.append("<item>");
+                element(xml, "deviceName", volume.device);
+                xml.append("<ebs>");
+                element(xml, "volumeId", volume.id);
+                element(xml, "status", volume.attachmentStatus());
+                element(xml, "deleteOnTermination", "false");
+                xml.append("</ebs></item>");
+            }
+        }
+        xml.append("</blockDeviceMapping>");
+        xml.append("<networkInterfaceSet>");
+        for (FakeInterface networkInterface : interfaces.values()) {
+            if (instance.id.equals(networkInterface.instanceId) &&
+                    networkInterface.attachedInstance() != null) {
+                xml.append("<item>");
+                element(xml, "networkInterfaceId", networkInterface.id);
+                element(xml, "subnetId", networkInterface.subnetId);
+                element(xml, "status", "in-use");
+                xml.append("<attachment>");
+                element(xml, "deviceIndex", String.valueOf(networkInterface.deviceIndex));
+                element(xml, "status", "attached");
+                element(xml, "deleteOnTermination",
+                        String.valueOf(networkInterface.deleteOnTermination));
+                xml.append("</attachment></item>");
+            }
+        }
+        xml.append("</networkInterfaceSet>");
+        xml.append("</item>");
+    }
+
+    private void interfaceXml(StringBuilder xml, FakeInterface networkInterface) {
+        element(xml, "networkInterfaceId", networkInterface.id);
+        element(xml, "subnetId", networkInterface.subnetId);
+        element(xml, "description", networkInterface.description);
+        element(xml, "status", networkInterface.status());
+        element(xml, "macAddress", networkInterface.macAddress);
+        if (networkInterface.attachedInstance() != null) {
+            xml.append("<attachment>");
+            element(xml, "instanceId", networkInterface.instanceId);
+            element(xml, "deviceIndex", String.valueOf(networkInterface.deviceIndex));
+            element(xml, "status", "attached");
+            element(xml, "deleteOnTermination",
+                    String.valueOf(networkInterface.deleteOnTermination));
+            xml.append("</attachment>");
+        }
+        tagSet(xml, networkInterface);
+    }
+
+    private void volumeFields(StringBuilder xml, FakeVolume volume) {
+        element(xml, "volumeId", volume.id);
+        element(xml, "size", String.valueOf(volume.size));
+        element(xml, "snapshotId", volume.snapshotId);
+        element(xml, "availabilityZone", volume.zone);
+        element(xml, "status", volume.status());
+        element(xml, "volumeType", "standard");
+        xml.append("<attachmentSet>");
+        String attachmentStatus = volume.attachmentStatus();
+        if (attachmentStatus != null) {
+            xml.append("<item>");
+            attachmentFields(xml, volume, attachmentStatus);
+            xml.append("</item>");
+        }
+        xml.append("</attachmentSet>");
+        tagSet(xml, volume);
+    }
+
+    private void attachmentFields(StringBuilder xml, FakeVolume volume, String status) {
+        element(xml, "volumeId", volume.id);
+        element(xml, "instanceId",
+                volume.instanceId != null ? volume.instanceId : volume.detachedFrom);
+        element(xml, "device", volume.device);
+        element(xml, "status", status);
+    }
+
+    private void tagSet(StringBuilder xml, Resource resource) {
+        xml.append("<tagSet>");
+        for (Map.Entry<String, String> tag : resource.tags.entrySet()) {
+            xml.append("<item>");
+            element(xml, "key", tag.getKey());
+            element(xml, "value", tag.getValue());
+            xml.append("</item>");
+        }
+        xml.append("</tagSet>");
+    }
+
+    private static void element(StringBuilder xml, String name, String value) {
+        if (value != null) {
+            xml.append('<').append(name).append('>').append(escape(value)).
+                    append("</").append(name).append('>');
+        }
+    }
+
+    /**
+     * Resources selected by ids "<idParam>.N" if any, then by filters
+     */
+    private <T extends Resource> List<T> select(Map<String, T> all, Map<String, String> params,
+                                                String idParam, String notFoundCode)
+            throws FakeException {
+        List<String> ids = list(params, idParam);
+        Collection<T> candidates = ids.isEmpty() ? all.values() :
+                findAll(all, ids, notFoundCode);
+        Map<String, List<Pattern>> filters = filters(params);
+        List<T> selected = new ArrayList<T>();
+        for (T resource : candidates) {
+            if (matches(resource, filters)) {
+                selected.add(resource);
+            }
+        }
+        return selected;
+    }
+
+    private <T extends Resource> List<T> findAll(Map<String, T> all, List<String> ids,
+                                                 String notFoundCode) throws FakeException {
+        List<T> found = new ArrayList<T>();
+        for (String id : ids) {
+            found.add(find(all, id, notFoundCode));
+        }
+        return found;
+    }
+
+    private <T extends Resource> T find(Map<String, T> all, String id, String notFoundCode)
+            throws FakeException {
+        T resource = all.get(id);
+        if (resource == null) {
+            throw new FakeException(400, notFoundCode, "The ID '" + id + "' does not exist");
+        }
+        return resource;
+    }
+
+    private Resource resource(String id) {
+        if (instances.containsKey(id)) {
+            return instances.get(id);
+        } else if (volumes.containsKey(id)) {
+            return volumes.get(id);
+        } else if (interfaces.containsKey(id)) {
+            return interfaces.get(id);
+        } else if (snapshots.containsKey(id)) {
+            return snapshots.get(id);
+        }
+        return images.get(id);
+    }
+
+    private static boolean matches(Resource resource, Map<String, List<Pattern>> filters) {
+        for (Map.Entry<String, List<Pattern>> filter : filters.entrySet()) {
+            boolean matched = false;
+            for (String value : resource.attribute(filter.getKey())) {
+                for (Pattern pattern : filter.getValue()) {
+                    if (pattern.matcher(value).matches()) {
+                        matched = true;
+                    }
+                }
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, List<Pattern>> filters(Map<String, String> params) {
+        Map<String, List<Pattern>> filters = new HashMap<String, List<Pattern>>();
+        for (int i = 1; params.containsKey("Filter." + i + ".Name"); i++) {
+            List<Pattern> patterns = new ArrayList<Pattern>();
+            for (String value : list(params, "Filter." + i + ".Value")) {
+                patterns.add(glob(value));
+            }
+            filters.put(params.get("Filter." + i + ".Name"), patterns);
+        }
+        return filters;
+    }
+
+    private static Pattern glob(String value) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static List<String> list(Map<String, String> params, String prefix) {
+        List<String> values = new ArrayList<String>();
+        for (int i = 1; params.containsKey(prefix + "." + i); i++) {
+            values.add(params.get(prefix + "." + i));
+        }
+        return values;
+    }
+
+    private static Map<String, String> parseParams(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            body.write(buffer, 0, n);
+        }
+        String form = body.toString("UTF-8");
+        if (query != null) {
+            form = form.isEmpty() ? query : form + "&" + query;
+        }
+        Map<String, String> params = new HashMap<String, String>();
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private String newId(String prefix) {
+        return prefix + "-" + Long.toHexString(sequence.incrementAndGet());
+    }
+
+    private void count(String action) {
+        AtomicLong counter = requests.get(action);
+        if (counter == null) {
+            requests.putIfAbsent(action, new AtomicLong());
+            counter = requests.get(action);
+        }
+        counter.incrementAndGet();
+    }
+}
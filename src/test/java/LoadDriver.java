@@ -0,0 +1,244 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load benchmark of the gateway methods against FakeEC2Server, so it needs
+ * no AWS account. Each scenario calls one gateway method from many threads
+ * and reports throughput, latency percentiles, errors and the EC2 API calls
+ * it took. It lives with the tests, run it from the test classpath and tune
+ * it with system properties, e.g.
+ * <pre>
+ * java -cp target/classes:target/test-classes:... -Dload.threads=32 -Dload.operations=500 -Dload.latencyMillis=20
+ *      -Dload.transitionMillis=500 -Dload.throttleRate=0.01 -Dload.warmPoolSize=50
+ *      -Dload.resourcePoolSize=50
+ *      -Dec2.watchIntervalMillis=200 LoadDriver
+ * </pre>
+ */
+public class LoadDriver {
+    static final int THREADS = Integer.getInteger("load.threads", 16);
+    static final int OPERATIONS = Integer.getInteger("load.operations", 200);
+    static final long LATENCY_MILLIS = Long.getLong("load.latencyMillis", 20);
+    static final long TRANSITION_MILLIS = Long.getLong("load.transitionMillis", 500);
+    static final double THROTTLE_RATE =
+            Double.parseDouble(System.getProperty("load.throttleRate", "0"));
+    // instances kept in warm pool of the launched image, 0 for none
+    static final int WARM_POOL_SIZE = Integer.getInteger("load.warmPoolSize", 0);
+    // blank volumes of 8GiB and api subnet interfaces kept pooled, 0 for none
+    static final int RESOURCE_POOL_SIZE = Integer.getInteger("load.resourcePoolSize", 0);
+    static final int SNAPSHOTS = Integer.getInteger("load.snapshots", 1000);
+
+    /**
+     * One call of the scenario
+     */
+    interface Call {
+        void run(int i) throws Exception;
+    }
+
+    private final FakeEC2Server fake;
+    private final EC2JavaServer server;
+
+    LoadDriver(FakeEC2Server fake, EC2JavaServer server) {
+        this.fake = fake;
+        this.server = server;
+    }
+
+    /**
+     * Run call OPERATIONS times from THREADS threads and print the report
+     * @param name of the scenario
+     * @param call
+     */
+    void run(String name, final Call call) throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        fake.resetRequestCounts();
+
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new DaemonThreadFactory("load-" + name).newThread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i; (i = next.getAndIncrement()) < OPERATIONS; ) {
+                            long begin = System.nanoTime();
+                            try {
+                                call.run(i);
+                            } catch (Exception e) {
+                                if (errors.incrementAndGet() == 1) {
+                                    System.out.println("  first error: " + e);
+                                }
+                            }
+                            histogram.record((System.nanoTime() - begin) / 1000);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(
+                "%-24s ops=%d errors=%d throughput=%.1f/s mean=%.2fms p50=%.2fms " +
+                        "p99=%.2fms max=%.2fms",
+                name, histogram.getCount(), errors.get(), histogram.getCount() / seconds,
+                histogram.getMeanMicros() / 1000.0,
+                histogram.getPercentileMicros(0.5) / 1000.0,
+                histogram.getPercentileMicros(0.99) / 1000.0,
+                histogram.getMaxMicros() / 1000.0));
+        System.out.println("  EC2 calls: " + fake.getRequestCounts());
+    }
+
+    private static void awaitWarmPool(EC2JavaServer server) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (true) {
+            Map<String, Long> stats = server.getWarmPoolStats().values().iterator().next();
+            if (stats.get("ready") >= WARM_POOL_SIZE) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        System.out.println("warm pool of " + WARM_POOL_SIZE + " filled in " +
+                (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static void awaitResourcePools(EC2JavaServer server)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (true) {
+            Map<String, Map<String, Map<String, Long>>> stats = server.getResourcePoolStats();
+            if (stats.get("volumes").get("8").get("ready") >= RESOURCE_POOL_SIZE &&
+                    stats.get("network-interfaces").get("subnet-api").get("ready") >=
+                            RESOURCE_POOL_SIZE) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        System.out.println("resource pools of " + RESOURCE_POOL_SIZE + " filled in " +
+                (System.currentTimeMillis() - start) + "ms");
+    }
+
+    public static void main(String[] args) throws Exception {
+        FakeEC2Server fake = new FakeEC2Server(0, LATENCY_MILLIS, TRANSITION_MILLIS,
+                THROTTLE_RATE);
+        fake.start();
+        final String imageId = fake.addImage("load-image", "hvm");
+        final List<String> openstackSnapshotIds = new ArrayList<String>();
+        for (int i = 0; i < SNAPSHOTS; i++) {
+            String openstackSnapshotId = UUID.randomUUID().toString();
+            fake.addSnapshot("Created by OpenStack for " + openstackSnapshotId, 8);
+            openstackSnapshotIds.add(openstackSnapshotId);
+        }
+        if (WARM_POOL_SIZE > 0) {
+            System.setProperty("ec2.warmPool", imageId + "@subnet-data:" + WARM_POOL_SIZE);
+        }
+        if (RESOURCE_POOL_SIZE > 0) {
+            System.setProperty("ec2.volumePool", "8:" + RESOURCE_POOL_SIZE);
+            System.setProperty("ec2.eniPool", "subnet-api:" + RESOURCE_POOL_SIZE);
+        }
+        RegionContext context = new RegionContext("fake", "ap-southeast-1",
+                new BasicAWSCredentials("fake", "fake"), fake.getEndpoint());
+        EC2ClientRegistry.register(context);
+        final EC2JavaServer server = new EC2JavaServer(context);
+        LoadDriver driver = new LoadDriver(fake, server);
+        System.out.println("fake EC2 at " + fake.getEndpoint() + ", threads=" + THREADS +
+                ", operations=" + OPERATIONS + ", latency=" + LATENCY_MILLIS +
+                "ms, transition=" + TRANSITION_MILLIS + "ms, throttle=" + THROTTLE_RATE);
+
+        try {
+            if (WARM_POOL_SIZE > 0) {
+                awaitWarmPool(server);
+            }
+            if (RESOURCE_POOL_SIZE > 0) {
+                awaitResourcePools(server);
+            }
+            final List<String> instanceIds =
+                    Collections.synchronizedList(new ArrayList<String>());
+            driver.run("launchInstanceFromAMI", new Call() {
+                public void run(int i) throws Exception {
+                    Map<String, String> result = server.launchInstanceFromAMI(
+                            imageId, "load-" + i, "subnet-data", "subnet-api", null);
+                    instanceIds.add(result.get("instance-id"));
+                }
+            });
+            if (instanceIds.isEmpty()) {
+                throw new Exception("no instance launched");
+            }
+
+            driver.run("getInstanceIdFromName", new Call() {
+                public void run(int i) throws Exception {
+                    server.getInstanceIdFromName("load-" + i);
+                }
+            });
+            driver.run("getImageIdFromName", new Call() {
+                public void run(int i) throws Exception {
+                    server.getImageIdFromName("load-image");
+                }
+            });
+            // misses are not cached, so every call goes to EC2
+            driver.run("getVolumeIdFromName", new Call() {
+                public void run(int i) throws Exception {
+                    server.getVolumeIdFromName("missing-" + i);
+                }
+            });
+            driver.run("getInstanceStatus", new Call() {
+                public void run(int i) throws Exception {
+                    server.getInstanceStatus(instanceIds.get(i % instanceIds.size()));
+                }
+            });
+            driver.run("get_instance_macs", new Call() {
+                public void run(int i) throws Exception {
+                    server.get_instance_macs(instanceIds.get(i % instanceIds.size()));
+                }
+            });
+            final List<String> volumeIds =
+                    Collections.synchronizedList(new ArrayList<String>());
+            driver.run("createVolume", new Call() {
+                public void run(int i) throws Exception {
+                    volumeIds.add(server.createVolume("load-volume-" + i, 8L));
+                }
+            });
+            driver.run("createVolumeFromSnapshot", new Call() {
+                public void run(int i) throws Exception {
+                    volumeIds.add(server.createVolumeFromSnapshot(
+                            openstackSnapshotIds.get(i % openstackSnapshotIds.size()),
+                            "load-snapshot-volume-" + i));
+                }
+            });
+            driver.run("deleteVolume", new Call() {
+                public void run(int i) throws Exception {
+                    for (int j = i; j < volumeIds.size(); j += OPERATIONS) {
+                        server.deleteVolume(volumeIds.get(j));
+                    }
+                }
+            });
+            driver.run("deleteInstance", new Call() {
+                public void run(int i) throws Exception {
+                    if (i < instanceIds.size()) {
+                        server.deleteInstance(instanceIds.get(i));
+                    }
+                }
+            });
+            if (WARM_POOL_SIZE > 0) {
+                System.out.println("warm pool: " + server.getWarmPoolStats());
+            }
+            if (RESOURCE_POOL_SIZE > 0) {
+                System.out.println("resource pools: " + server.getResourcePoolStats());
+            }
+            System.out.println("snapshot index: " + server.getSnapshotIndexStats());
+        } finally {
+            context.shutdown();
+            fake.stop();
+        }
+    }
+}
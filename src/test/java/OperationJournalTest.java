@@ -0,0 +1,166 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replay of the operation journal after a restart, including a record torn
+ * by a crash while it was written.
+ */
+public class OperationJournalTest {
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdir();
+        file = new File(dir, "journal.log");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File left : files) {
+                left.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static List<OperationJournal.Entry> interrupted(OperationJournal journal) {
+        final List<OperationJournal.Entry> entries = new ArrayList<OperationJournal.Entry>();
+        journal.resume(new OperationJournal.Recovery() {
+            public void resume(OperationJournal.Entry entry) {
+                entries.add(entry);
+            }
+        });
+        return entries;
+    }
+
+    @Test
+    public void replaysOperationsNotEnded() {
+        OperationJournal journal = new OperationJournal(file);
+        OperationJournal.Entry done = journal.begin("launch",
+                OperationJournal.arguments("name", "done"));
+        OperationJournal.Entry pending = journal.begin("launch",
+                OperationJournal.arguments("name", "pending", "api-subnet-id", null));
+        journal.record(pending, "instance-id", "i-1");
+        journal.end(done);
+        journal.shutdown();
+
+        OperationJournal reopened = new OperationJournal(file);
+        List<OperationJournal.Entry> entries = interrupted(reopened);
+        assertEquals(1, entries.size());
+        assertEquals("launch", entries.get(0).getKind());
+        assertEquals("pending", entries.get(0).get("name"));
+        assertEquals("i-1", entries.get(0).get("instance-id"));
+        assertEquals(null, entries.get(0).get("api-subnet-id"));
+        // resumed once only
+        assertEquals(0, interrupted(reopened).size());
+
+        reopened.end(entries.get(0));
+        reopened.shutdown();
+        assertEquals(0, interrupted(new OperationJournal(file)).size());
+    }
+
+    @Test
+    public void ignoresTornTail() throws IOException {
+        OperationJournal journal = new OperationJournal(file);
+        OperationJournal.Entry whole = journal.begin("delete-instance",
+                OperationJournal.arguments("instance-id", "i-1"));
+        journal.record(whole, "network-interface-ids", "eni-1,eni-2");
+        journal.begin("delete-instance", OperationJournal.arguments("instance-id", "i-2"));
+        long end = journal.getStats().get("bytes-used");
+        journal.shutdown();
+
+        // crash while the last record was written: its length is there,
+        // its bytes only in part
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(end - 2);
+            int last = out.read();
+            out.seek(end - 2);
+            out.write(~last);
+        } finally {
+            out.close();
+        }
+
+        List<OperationJournal.Entry> entries = interrupted(new OperationJournal(file));
+        assertEquals(1, entries.size());
+        assertEquals("i-1", entries.get(0).get("instance-id"));
+        assertEquals("eni-1,eni-2", entries.get(0).get("network-interface-ids"));
+    }
+
+    @Test
+    public void keepsValuesOverUtfLimit() {
+        // ids of a launch of 10000 instances
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            ids.append(i == 0 ? "" : ",").append("i-").append(Integer.toHexString(0x10000000 + i));
+        }
+        OperationJournal journal = new OperationJournal(file);
+        OperationJournal.Entry entry = journal.begin("launch-batch",
+                OperationJournal.arguments("name.0", "\u00e9t\u00e9"));
+        journal.record(entry, "instance-ids", ids.toString());
+        journal.shutdown();
+
+        List<OperationJournal.Entry> entries = interrupted(new OperationJournal(file));
+        assertEquals(1, entries.size());
+        assertEquals(ids.toString(), entries.get(0).get("instance-ids"));
+        assertEquals("\u00e9t\u00e9", entries.get(0).get("name.0"));
+    }
+
+    @Test
+    public void replaysRecordsOfPreviousFormat() throws IOException {
+        // a begin and a step with values in modified UTF-8
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeLong(7);
+        out.writeUTF("delete-instance");
+        out.writeInt(1);
+        out.writeUTF("instance-id");
+        out.writeUTF("i-1");
+        byte[] begin = bytes.toByteArray();
+        bytes.reset();
+        out.writeByte(2);
+        out.writeLong(7);
+        out.writeUTF("network-interface-ids");
+        out.writeUTF("eni-1");
+        byte[] step = bytes.toByteArray();
+
+        RandomAccessFile previous = new RandomAccessFile(file, "rw");
+        try {
+            for (byte[] record : new byte[][] {begin, step}) {
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                previous.writeInt(record.length);
+                previous.writeInt((int) crc.getValue());
+                previous.write(record);
+            }
+        } finally {
+            previous.close();
+        }
+
+        OperationJournal journal = new OperationJournal(file);
+        List<OperationJournal.Entry> entries = interrupted(journal);
+        assertEquals(1, entries.size());
+        assertEquals("i-1", entries.get(0).get("instance-id"));
+        assertEquals("eni-1", entries.get(0).get("network-interface-ids"));
+        // new entries don't reuse its id
+        assertEquals(8, journal.begin("launch", OperationJournal.arguments()).getId());
+    }
+}
@@ -0,0 +1,88 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Failover of launches between zones of FakeEC2Server when one runs out
+ * of capacity.
+ */
+public class PlacementSchedulerTest {
+    private FakeEC2Server fake;
+    private AmazonEC2Client ec2;
+    private String imageId;
+
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeEC2Server(0, 0, 50, 0);
+        fake.start();
+        imageId = fake.addImage("test-image", "hvm");
+        // capacity errors are answered with 500, fail over without retrying
+        ec2 = new AmazonEC2Client(new BasicAWSCredentials("fake", "fake"),
+                new ClientConfiguration().withMaxErrorRetry(0));
+        ec2.setEndpoint(fake.getEndpoint());
+    }
+
+    @After
+    public void tearDown() {
+        ec2.shutdown();
+        fake.stop();
+    }
+
+    private RunInstancesRequest request(String instanceType) {
+        return new RunInstancesRequest(imageId, 1, 1).withInstanceType(instanceType);
+    }
+
+    @Test
+    public void failsOverToZoneWithCapacity() throws Exception {
+        PlacementScheduler placement = new PlacementScheduler(ec2, false);
+        assertEquals(Arrays.asList("fake-1a", "fake-1b", "fake-1c"),
+                placement.candidates("m3.medium"));
+        fake.setZoneCapacity("fake-1a", false);
+
+        Reservation reservation = placement.run(request("m3.medium"));
+        String instanceId = reservation.getInstances().get(0).getInstanceId();
+        assertEquals("fake-1b", placement.zoneOf(instanceId));
+
+        Map<String, Map<String, Long>> stats = placement.getStats();
+        assertEquals(1L, (long) stats.get("fake-1a").get("capacity-errors"));
+        assertTrue(stats.get("fake-1a").get("cooldown-millis") > 0);
+        assertEquals(0L, (long) stats.get("fake-1b").get("capacity-errors"));
+
+        // the zone cools down for the instance type which failed only
+        assertEquals(Arrays.asList("fake-1b", "fake-1c", "fake-1a"),
+                placement.candidates("m3.medium"));
+        assertEquals("fake-1a", placement.candidates("c3.large").get(0));
+    }
+
+    @Test
+    public void failsWhenNoZoneHasCapacity() throws Exception {
+        PlacementScheduler placement = new PlacementScheduler(ec2, false);
+        for (String zone : placement.candidates("m3.medium")) {
+            fake.setZoneCapacity(zone, false);
+        }
+        try {
+            placement.run(request("m3.medium"));
+            fail("launch without capacity succeeded");
+        } catch (AmazonServiceException e) {
+            assertEquals("InsufficientInstanceCapacity", e.getErrorCode());
+        }
+        for (Map<String, Long> zoneStats : placement.getStats().values()) {
+            assertEquals(1L, (long) zoneStats.get("capacity-errors"));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Provisioning of a VM with its volumes and interfaces against
+ * FakeEC2Server.
+ */
+public class ProvisionTest {
+    private static final String SNAPSHOT_ID = "0b4e2a61-7c3d-4f58-9a0e-1d2c3b4a5f60";
+
+    private FakeEC2Server fake;
+    private String imageId;
+    private RegionContext context;
+    private EC2JavaServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeEC2Server(0, 0, 50, 0);
+        fake.start();
+        imageId = fake.addImage("test-image", "hvm");
+        context = new RegionContext("fake", "ap-southeast-1",
+                new BasicAWSCredentials("fake", "fake"), fake.getEndpoint());
+        server = new EC2JavaServer(context);
+    }
+
+    @After
+    public void tearDown() {
+        context.shutdown();
+        fake.stop();
+    }
+
+    @Test(timeout = 30000)
+    public void provisionsInstanceWithVolumesAndInterfaces() throws Exception {
+        fake.addSnapshot("Snapshot of " + SNAPSHOT_ID, 4);
+        HashMap<String, HashMap<String, String>> result = server.provision(
+                new ProvisionSpec("vm", imageId).withNetwork("subnet-api", "api").
+                        withVolume("disk1", 8, "/dev/sdf").
+                        withSnapshotVolume("disk2", SNAPSHOT_ID, "/dev/sdg"));
+
+        String instanceId = result.get("instance").get("instance-id");
+        assertEquals(instanceId, server.getInstanceIdFromName("vm"));
+        assertEquals("/dev/sdf", result.get("devices").get("disk1"));
+        assertEquals("/dev/sdg", result.get("devices").get("disk2"));
+        assertEquals(result.get("volumes").get("disk1"), server.getVolumeIdFromName("disk1"));
+        assertNotNull(result.get("macs").get("subnet-api"));
+    }
+
+    @Test(timeout = 30000)
+    public void failsWithFailedStep() throws Exception {
+        try {
+            server.provision(new ProvisionSpec("vm", imageId).
+                    withVolume("disk1", 8, "/dev/sdf").
+                    withSnapshotVolume("disk2", "7f6e5d4c-3b2a-4190-8e7f-6a5b4c3d2e1f",
+                            "/dev/sdg"));
+            fail("provisioned a volume of a missing snapshot");
+        } catch (Exception e) {
+            assertEquals("snapshot is not unique or empty", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Batching of single-key lookups by the request coalescer.
+ */
+public class RequestCoalescerTest {
+    // long enough that a test waiting for the window times out
+    private static final long WINDOW_MILLIS = 60 * 1000;
+
+    /**
+     * Answers "key!" for keys without "missing", recording each batch and
+     * holding the first one until released
+     */
+    private static class Loader implements RequestCoalescer.BatchLoader<String, String> {
+        final List<Set<String>> batches = new ArrayList<Set<String>>();
+        final CountDownLatch firstLoading = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        Loader(boolean holdFirst) {
+            release = new CountDownLatch(holdFirst ? 1 : 0);
+        }
+
+        public Map<String, String> load(Set<String> keys) throws Exception {
+            boolean first;
+            synchronized (this) {
+                first = batches.isEmpty();
+                batches.add(new HashSet<String>(keys));
+            }
+            if (first) {
+                firstLoading.countDown();
+                release.await();
+            }
+            if (keys.contains("fail")) {
+                throw new Exception("failed batch");
+            }
+            Map<String, String> values = new HashMap<String, String>();
+            for (String key : keys) {
+                if (!key.contains("missing")) {
+                    values.put(key, key + "!");
+                }
+            }
+            return values;
+        }
+
+        synchronized List<Set<String>> getBatches() {
+            return new ArrayList<Set<String>>(batches);
+        }
+    }
+
+    private RequestCoalescer<String, String> coalescer;
+
+    @After
+    public void tearDown() {
+        if (coalescer != null) {
+            coalescer.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void loadsLookupAtOnceWhenIdle() throws Exception {
+        Loader loader = new Loader(false);
+        coalescer = new RequestCoalescer<String, String>("test", loader, WINDOW_MILLIS, 100, 2);
+        assertEquals("a!", coalescer.get("a"));
+        assertNull(coalescer.get("missing"));
+        assertEquals(2, loader.getBatches().size());
+    }
+
+    @Test(timeout = 10000)
+    public void batchesLookupsWhileLoadInFlight() throws Exception {
+        Loader loader = new Loader(true);
+        coalescer = new RequestCoalescer<String, String>("test", loader, WINDOW_MILLIS, 100, 2);
+        OperationHandle<String> first = coalescer.submit("a");
+        loader.firstLoading.await();
+        OperationHandle<String> b = coalescer.submit("b");
+        OperationHandle<String> c = coalescer.submit("c");
+        OperationHandle<String> again = coalescer.submit("b");
+        loader.release.countDown();
+
+        assertEquals("a!", first.get());
+        assertEquals("b!", b.get());
+        assertEquals("c!", c.get());
+        assertEquals("b!", again.get());
+        assertEquals(Arrays.asList(new HashSet<String>(Arrays.asList("a")),
+                new HashSet<String>(Arrays.asList("b", "c"))), loader.getBatches());
+    }
+
+    @Test(timeout = 10000)
+    public void loadsFullBatchWithoutWaiting() throws Exception {
+        Loader loader = new Loader(true);
+        coalescer = new RequestCoalescer<String, String>("test", loader, WINDOW_MILLIS, 2, 2);
+        coalescer.submit("a");
+        loader.firstLoading.await();
+        OperationHandle<String> b = coalescer.submit("b");
+        OperationHandle<String> c = coalescer.submit("c");
+        // loads on the second loader thread while the first is held
+        assertEquals("b!", b.get());
+        assertEquals("c!", c.get());
+        loader.release.countDown();
+    }
+
+    @Test(timeout = 10000)
+    public void failsEveryLookupOfFailedBatch() throws Exception {
+        Loader loader = new Loader(true);
+        coalescer = new RequestCoalescer<String, String>("test", loader, WINDOW_MILLIS, 100, 2);
+        coalescer.submit("a");
+        loader.firstLoading.await();
+        OperationHandle<String> failing = coalescer.submit("fail");
+        OperationHandle<String> other = coalescer.submit("b");
+        loader.release.countDown();
+        for (OperationHandle<String> handle : Arrays.asList(failing, other)) {
+            try {
+                handle.get();
+                fail("lookup of a failed batch succeeded");
+            } catch (Exception e) {
+                assertEquals("failed batch", e.getMessage());
+            }
+        }
+    }
+}
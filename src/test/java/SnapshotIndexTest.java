@@ -0,0 +1,115 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Lookups of OpenStack snapshot ids through the snapshot index, against
+ * FakeEC2Server.
+ */
+public class SnapshotIndexTest {
+    private static final String ID = "0b4e2a61-7c3d-4f58-9a0e-1d2c3b4a5f60";
+    private static final String OTHER_ID = "7f6e5d4c-3b2a-4190-8e7f-6a5b4c3d2e1f";
+
+    private FakeEC2Server fake;
+    private AmazonEC2Client ec2;
+    private SnapshotIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeEC2Server(0, 0, 50, 0);
+        fake.start();
+        ec2 = new AmazonEC2Client(new BasicAWSCredentials("fake", "fake"));
+        ec2.setEndpoint(fake.getEndpoint());
+    }
+
+    @After
+    public void tearDown() {
+        if (index != null) {
+            index.shutdown();
+        }
+        ec2.shutdown();
+        fake.stop();
+    }
+
+    private void startIndex() throws InterruptedException {
+        index = new SnapshotIndex(ec2, "", null, 0);
+        index.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (index.getStats().get("age-millis") < 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("index not built");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void findsIndexedSnapshotWithoutScan() throws Exception {
+        String snapshotId = fake.addSnapshot("Snapshot of volume " + ID, 8);
+        fake.addSnapshot("not an OpenStack snapshot", 8);
+        startIndex();
+        fake.resetRequestCounts();
+
+        assertEquals(Collections.singletonList(snapshotId), index.find(ID.toUpperCase()));
+        assertEquals(1L, (long) index.getStats().get("hits"));
+        assertEquals(0L, (long) index.getStats().get("scans"));
+        assertEquals(null, fake.getRequestCounts().get("DescribeSnapshots"));
+    }
+
+    @Test
+    public void scansForIdsNotIndexed() throws Exception {
+        // public snapshots are not indexed, nor are ones made after the build
+        String shared = fake.addSnapshot("Snapshot of volume " + ID, 8, "111111111111");
+        startIndex();
+        String later = fake.addSnapshot("Snapshot of volume " + OTHER_ID, 8);
+
+        assertEquals(Collections.singletonList(shared), index.find(ID));
+        assertEquals(Collections.singletonList(later), index.find(OTHER_ID));
+        assertEquals(Collections.<String>emptyList(), index.find("not-a-uuid"));
+        assertEquals(3L, (long) index.getStats().get("scans"));
+
+        // what a scan found is then served from the index
+        assertEquals(Collections.singletonList(later), index.find(OTHER_ID));
+        assertEquals(1L, (long) index.getStats().get("hits"));
+    }
+
+    @Test
+    public void findsEverySnapshotOfAmbiguousId() throws Exception {
+        String first = fake.addSnapshot("Snapshot of volume " + ID, 8);
+        String second = fake.addSnapshot("Copy of " + ID, 8);
+        startIndex();
+
+        assertEquals(new HashSet<String>(Arrays.asList(first, second)),
+                new HashSet<String>(index.find(ID)));
+        assertEquals(0L, (long) index.getStats().get("scans"));
+    }
+
+    @Test
+    public void savesAndLoadsIndex() throws IOException {
+        Map<String, List<String>> saved = new HashMap<String, List<String>>();
+        saved.put(ID, Arrays.asList("snap-1"));
+        saved.put(OTHER_ID, Arrays.asList("snap-2", "snap-3"));
+        File file = File.createTempFile("snapshots", ".gz");
+        try {
+            SnapshotIndex.save(saved, file);
+            assertEquals(saved, SnapshotIndex.load(file));
+            assertEquals(false, new File(file.getPath() + ".tmp").exists());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateVolumeRequest;
+import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.amazonaws.services.ec2.model.Volume;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Delivery of volume state changes to slow and failing listeners against
+ * FakeEC2Server.
+ */
+public class StateStreamTest {
+    private FakeEC2Server fake;
+    private RegionContext context;
+    private StateStream stream;
+
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeEC2Server(0, 0, 50, 0);
+        fake.start();
+        context = new RegionContext("fake", "ap-southeast-1",
+                new BasicAWSCredentials("fake", "fake"), fake.getEndpoint());
+    }
+
+    @After
+    public void tearDown() {
+        if (stream != null) {
+            stream.shutdown();
+        }
+        context.shutdown();
+        fake.stop();
+    }
+
+    private List<String> createVolumes(int count) throws InterruptedException {
+        AmazonEC2 ec2 = context.getEC2();
+        List<String> volumeIds = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            volumeIds.add(ec2.createVolume(new CreateVolumeRequest().withSize(8).
+                    withAvailabilityZone("fake-1a")).getVolume().getVolumeId());
+        }
+        // subscribed once available, so that each gets a single event
+        boolean available = false;
+        while (!available) {
+            Thread.sleep(50);
+            available = true;
+            for (Volume volume : ec2.describeVolumes(
+                    new DescribeVolumesRequest(volumeIds)).getVolumes()) {
+                available &= "available".equals(volume.getState());
+            }
+        }
+        return volumeIds;
+    }
+
+    private long stat(String subscriptionId, String name) {
+        return stream.getStats().get(subscriptionId).get(name);
+    }
+
+    private void awaitStat(String subscriptionId, String name, long expected)
+            throws InterruptedException {
+        while (stat(subscriptionId, name) != expected) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Records the ids of the changes delivered, blocking on the first one
+     * until released
+     */
+    private static class BlockingListener implements StateListener {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final List<String> resourceIds = Collections.synchronizedList(new ArrayList<String>());
+
+        public void onStateChange(String resourceType, String resourceId,
+                                  String previousState, String state) {
+            resourceIds.add(resourceId);
+            entered.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Fails the given number of calls, then succeeds
+     */
+    private static class FailingListener implements StateListener {
+        final AtomicInteger calls = new AtomicInteger();
+        final int failures;
+
+        FailingListener(int failures) {
+            this.failures = failures;
+        }
+
+        public void onStateChange(String resourceType, String resourceId,
+                                  String previousState, String state) {
+            if (calls.incrementAndGet() <= failures) {
+                throw new RuntimeException("listener gone");
+            }
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void dropsOldestEventsOfSlowListener() throws Exception {
+        stream = new StateStream(context.getInstanceWatcher(), context.getVolumeWatcher(), 2);
+        List<String> volumeIds = createVolumes(7);
+        String newest = volumeIds.get(6);
+        // its state is known once polled for another subscription
+        String other = stream.subscribe(new FailingListener(0), null,
+                Collections.singletonList(newest));
+        awaitStat(other, "delivered", 1);
+
+        BlockingListener listener = new BlockingListener();
+        String subscriptionId = stream.subscribe(listener, null, volumeIds.subList(0, 1));
+        listener.entered.await();
+        stream.add(subscriptionId, null, volumeIds.subList(1, 6));
+        awaitStat(subscriptionId, "dropped", 3);
+        assertEquals(2, stat(subscriptionId, "queued"));
+        // the current state of a known id is queued right away
+        stream.add(subscriptionId, null, Collections.singletonList(newest));
+        assertEquals(4, stat(subscriptionId, "dropped"));
+
+        listener.released.countDown();
+        awaitStat(subscriptionId, "delivered", 3);
+        assertEquals(0, stat(subscriptionId, "queued"));
+        assertEquals(3, listener.resourceIds.size());
+        assertEquals(volumeIds.get(0), listener.resourceIds.get(0));
+        assertEquals(newest, listener.resourceIds.get(2));
+    }
+
+    @Test(timeout = 20000)
+    public void unsubscribesListenerFailingRepeatedly() throws Exception {
+        stream = new StateStream(context.getInstanceWatcher(), context.getVolumeWatcher(), 10);
+        List<String> volumeIds = createVolumes(StateStream.MAX_FAILURES + 1);
+        FailingListener failing = new FailingListener(Integer.MAX_VALUE);
+        String failingId = stream.subscribe(failing, null, volumeIds);
+        // failures in a row only count
+        FailingListener flaky = new FailingListener(StateStream.MAX_FAILURES - 1);
+        String flakyId = stream.subscribe(flaky, null, volumeIds);
+
+        awaitStat(flakyId, "delivered", 2);
+        while (stream.getStats().containsKey(failingId)) {
+            Thread.sleep(10);
+        }
+        assertEquals(StateStream.MAX_FAILURES, failing.calls.get());
+        assertEquals(0, stat(flakyId, "dropped"));
+        try {
+            stream.add(failingId, null, volumeIds);
+            fail("added to an unsubscribed listener");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Ordering of dependent tasks and failures of a task graph.
+ */
+public class TaskGraphTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static TaskGraph.Task value(final Object value) {
+        return new TaskGraph.Task() {
+            public Object run(Map<String, Object> results) {
+                return value;
+            }
+        };
+    }
+
+    @Test(timeout = 10000)
+    public void passesResultsOfDependencies() throws Exception {
+        final OperationHandle<Object> pending = new OperationHandle<Object>("pending");
+        TaskGraph graph = new TaskGraph("test", executor);
+        graph.add("a", value(1));
+        // done once the handle completes, with its result
+        graph.add("b", value(pending));
+        graph.add("sum", new TaskGraph.Task() {
+            public Object run(Map<String, Object> results) {
+                return (Integer) results.get("a") + (Integer) results.get("b");
+            }
+        }, "a", "b");
+
+        OperationHandle<Map<String, Object>> handle = graph.start();
+        Thread.sleep(100);
+        assertFalse(handle.isDone());
+        pending.complete(2);
+        assertEquals(3, handle.get().get("sum"));
+    }
+
+    @Test(timeout = 10000)
+    public void failedDependencyFailsGraph() throws Exception {
+        final AtomicBoolean ran = new AtomicBoolean();
+        final OperationHandle<Object> pending = new OperationHandle<Object>("pending");
+        TaskGraph graph = new TaskGraph("test", executor);
+        graph.add("launch", value(pending));
+        graph.add("attach", new TaskGraph.Task() {
+            public Object run(Map<String, Object> results) {
+                ran.set(true);
+                return null;
+            }
+        }, "launch");
+        graph.add("other", value("done"));
+
+        OperationHandle<Map<String, Object>> handle = graph.start();
+        pending.fail(new Exception("never running"));
+        try {
+            handle.get();
+            fail("graph of a failed task succeeded");
+        } catch (Exception e) {
+            assertEquals("never running", e.getMessage());
+        }
+        Thread.sleep(100);
+        assertFalse(ran.get());
+    }
+
+    @Test(timeout = 10000)
+    public void failsWithTaskThrowing() throws Exception {
+        TaskGraph graph = new TaskGraph("test", executor);
+        graph.add("create", new TaskGraph.Task() {
+            public Object run(Map<String, Object> results) throws Exception {
+                throw new Exception("no capacity");
+            }
+        });
+        try {
+            graph.start().get();
+            fail("graph of a failed task succeeded");
+        } catch (Exception e) {
+            assertEquals("no capacity", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsUnknownDependency() {
+        TaskGraph graph = new TaskGraph("test", executor);
+        graph.add("a", value(1));
+        try {
+            graph.add("b", value(2), "c");
+            fail("added a task depending on an unknown one");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            graph.add("a", value(3));
+            fail("added a duplicate task");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pacing of the token bucket and the tokens it reserves for interactive
+ * callers.
+ */
+public class TokenBucketTest {
+    private static long millisToAcquire(TokenBucket bucket, int count, boolean background)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            bucket.acquire(background);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Test
+    public void reservesTokensForInteractiveCallers() throws InterruptedException {
+        // refills one token a second, a quarter of 8 is reserved
+        TokenBucket bucket = new TokenBucket("test", 1, 8);
+        assertTrue(millisToAcquire(bucket, 6, true) < 500);
+        assertTrue(millisToAcquire(bucket, 2, false) < 500);
+    }
+
+    @Test(timeout = 10000)
+    public void smallBucketStillServesBackgroundCallers() throws InterruptedException {
+        // burst of one at a rate under one a second, as RateLimitedEC2 sizes it
+        TokenBucket bucket = new TokenBucket("test", 0.5, 1);
+        assertTrue(millisToAcquire(bucket, 1, true) < 500);
+        assertTrue(millisToAcquire(bucket, 1, true) >= 1500);
+    }
+
+    @Test
+    public void adaptsRateToThrottling() {
+        TokenBucket bucket = new TokenBucket("test", 10, 10);
+        bucket.onThrottle();
+        assertEquals(5, bucket.getRate(), 1e-9);
+        bucket.onSuccess();
+        assertEquals(5.1, bucket.getRate(), 1e-9);
+        for (int i = 0; i < 20; i++) {
+            bucket.onThrottle();
+        }
+        assertEquals(0.2, bucket.getRate(), 1e-9);
+    }
+}
@@ -0,0 +1,108 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateVolumeRequest;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Batches of volume attaches and detaches, one of them failing, against
+ * FakeEC2Server.
+ */
+public class VolumeAttacherTest {
+    private FakeEC2Server fake;
+    private String imageId;
+    private RegionContext context;
+    private EC2JavaServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        // slow enough to see the batch in progress
+        fake = new FakeEC2Server(0, 100, 50, 0);
+        fake.start();
+        imageId = fake.addImage("test-image", "hvm");
+        context = new RegionContext("fake", "ap-southeast-1",
+                new BasicAWSCredentials("fake", "fake"), fake.getEndpoint());
+        server = new EC2JavaServer(context);
+    }
+
+    @After
+    public void tearDown() {
+        context.shutdown();
+        fake.stop();
+    }
+
+    private String createVolume(String zone) {
+        return context.getEC2().createVolume(new CreateVolumeRequest().withSize(8).
+                withAvailabilityZone(zone)).getVolume().getVolumeId();
+    }
+
+    @Test(timeout = 30000)
+    public void attachesBatchWithFailedVolume() throws Exception {
+        AmazonEC2 ec2 = context.getEC2();
+        String instanceId = ec2.runInstances(new RunInstancesRequest(imageId, 1, 1).
+                withPlacement(new Placement("fake-1a"))).getReservation().getInstances().
+                get(0).getInstanceId();
+        Map<String, String> instanceIds = new HashMap<String, String>();
+        Map<String, String> devices = new HashMap<String, String>();
+        String[] letters = {"f", "g", "h"};
+        for (String letter : letters) {
+            String volumeId = createVolume("fake-1a");
+            instanceIds.put(volumeId, instanceId);
+            devices.put(volumeId, "/dev/sd" + letter);
+        }
+        // not in the zone of the instance
+        String elsewhere = createVolume("fake-1b");
+        instanceIds.put(elsewhere, instanceId);
+        devices.put(elsewhere, "/dev/sdi");
+        Thread.sleep(200);
+
+        VolumeAttacher.Batch batch = server.attachVolumesAsync(instanceIds, devices);
+        Map<String, Long> progress = batch.getProgress();
+        assertEquals(4L, (long) progress.get("requested"));
+        assertEquals(4L, (long) progress.get("pending"));
+        assertEquals(0L, (long) progress.get("done"));
+
+        HashMap<String, HashMap<String, String>> results = batch.get();
+        progress = batch.getProgress();
+        assertEquals(0L, (long) progress.get("pending"));
+        assertEquals(3L, (long) progress.get("done"));
+        assertEquals(1L, (long) progress.get("failed"));
+        for (Map.Entry<String, String> entry : devices.entrySet()) {
+            HashMap<String, String> result = results.get(entry.getKey());
+            assertEquals(instanceId, result.get("instance-id"));
+            if (entry.getKey().equals(elsewhere)) {
+                assertTrue(result.get("error").contains("InvalidVolume.ZoneMismatch"));
+            } else {
+                assertEquals("attached", result.get("state"));
+                assertEquals(entry.getValue(), result.get("device"));
+            }
+        }
+        try {
+            batch.getHandle(elsewhere).get();
+            fail("attached a volume of another zone");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("InvalidVolume.ZoneMismatch"));
+        }
+
+        instanceIds.remove(elsewhere);
+        VolumeAttacher.Batch detached = server.detachVolumesAsync(instanceIds, false);
+        results = detached.get();
+        assertEquals(3L, (long) detached.getProgress().get("done"));
+        assertEquals(0L, (long) detached.getProgress().get("failed"));
+        for (String volumeId : instanceIds.keySet()) {
+            assertEquals("available", results.get(volumeId).get("state"));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Claims, refills and reaping of warm pools against FakeEC2Server.
+ */
+public class WarmPoolTest {
+    private FakeEC2Server fake;
+    private String imageId;
+    private RegionContext context;
+
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeEC2Server(0, 0, 50, 0);
+        fake.start();
+        imageId = fake.addImage("test-image", "hvm");
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.shutdown();
+        }
+        fake.stop();
+        System.clearProperty("ec2.warmPool");
+    }
+
+    private WarmPool startPool(int size) {
+        System.setProperty("ec2.warmPool", imageId + ":" + size);
+        context = new RegionContext("fake", "ap-southeast-1",
+                new BasicAWSCredentials("fake", "fake"), fake.getEndpoint());
+        return context.getWarmPool();
+    }
+
+    private Map<String, Long> await(WarmPool pool, String stat, long value)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            Map<String, Long> stats = pool.getStats().get(imageId);
+            if (stats.get(stat) == value) {
+                return stats;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("no " + stat + "=" + value + " in " + stats);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private List<Instance> instances() {
+        List<Instance> instances = new ArrayList<Instance>();
+        for (Reservation reservation : context.getEC2().describeInstances(
+                new DescribeInstancesRequest().withFilters(new Filter().withName("image-id").
+                        withValues(imageId))).getReservations()) {
+            instances.addAll(reservation.getInstances());
+        }
+        return instances;
+    }
+
+    private void awaitTerminated(String instanceId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            for (Instance instance : instances()) {
+                if (instance.getInstanceId().equals(instanceId) &&
+                        instance.getState().getName().matches("shutting-down|terminated")) {
+                    return;
+                }
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError(instanceId + " not terminated");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void claimsAndRefills() throws Exception {
+        WarmPool pool = startPool(2);
+        await(pool, "ready", 2);
+
+        Instance claimed = pool.claim(imageId, null, false);
+        assertNotNull(claimed);
+        assertEquals("running", claimed.getState().getName());
+        assertNull(pool.claim(imageId, null, true));
+        assertNull(pool.claim("ami-unknown", null, false));
+
+        Map<String, Long> stats = await(pool, "ready", 2);
+        assertEquals(1L, (long) stats.get("hits"));
+        assertEquals(1L, (long) stats.get("misses"));
+        assertEquals(3, instances().size());
+    }
+
+    @Test
+    public void adoptsAndReapsSurplus() throws Exception {
+        // left tagged by a previous server with a bigger pool
+        List<String> left = new ArrayList<String>();
+        RegionContext previous = new RegionContext("fake", "ap-southeast-1",
+                new BasicAWSCredentials("fake", "fake"), fake.getEndpoint());
+        try {
+            for (Instance instance : previous.getEC2().runInstances(
+                    new RunInstancesRequest(imageId, 3, 3)).getReservation().getInstances()) {
+                left.add(instance.getInstanceId());
+            }
+            previous.getEC2().createTags(new CreateTagsRequest().withResources(left).
+                    withTags(new Tag(WarmPool.POOL_TAG, imageId)));
+        } finally {
+            previous.shutdown();
+        }
+        Thread.sleep(100);
+
+        WarmPool pool = startPool(1);
+        Map<String, Long> stats = await(pool, "reaped", 2);
+        assertEquals(1L, (long) stats.get("ready"));
+        assertEquals(3, instances().size());
+        Instance kept = pool.claim(imageId, null, false);
+        assertNotNull(kept);
+        for (String instanceId : left) {
+            if (!instanceId.equals(kept.getInstanceId())) {
+                awaitTerminated(instanceId);
+            }
+        }
+    }
+
+    @Test
+    public void terminatesInstancesItFailsToTag() throws Exception {
+        fake.setFailure("CreateTags", "InternalError");
+        WarmPool pool = startPool(1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            List<Instance> instances = instances();
+            if (!instances.isEmpty()) {
+                awaitTerminated(instances.get(0).getInstanceId());
+                break;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("nothing launched");
+            }
+            Thread.sleep(20);
+        }
+        assertEquals(0L, (long) pool.getStats().get(imageId).get("ready"));
+    }
+
+    @Test
+    public void terminatesClaimedInstanceLaunchFailsToTake() throws Exception {
+        WarmPool pool = startPool(1);
+        await(pool, "ready", 1);
+        String pooledId = instances().get(0).getInstanceId();
+        EC2JavaServer server = new EC2JavaServer(context);
+
+        fake.setFailure("CreateTags", "InternalError");
+        try {
+            server.launchInstanceFromAMI(imageId, "test", null, null, null);
+            fail("launch succeeded without its name tag");
+        } catch (Exception e) {
+            // expected
+        }
+        assertEquals(1L, (long) pool.getStats().get(imageId).get("hits"));
+        awaitTerminated(pooledId);
+    }
+}